@@ -7134,6 +7134,21 @@ define("Api", ["require", "exports", "Utils"], function (require, exports, Utils
                     error({ error: "ServerError" });
             });
         };
+        Api.get = function (endpoint, success, error) {
+            $.ajax({
+                url: endpoint,
+                method: "GET"
+            })
+                .done(function (response) {
+                success(response);
+            }).fail(function (e) {
+                console.log(e);
+                if (e.responseJSON)
+                    error(e.responseJSON);
+                else
+                    error({ error: "ServerError" });
+            });
+        };
         Api.signup = function (email, name, success, error) {
             this.request("api/signup", { email: email, name: name }, function (r) {
                 success();
@@ -7163,18 +7178,29 @@ define("Api", ["require", "exports", "Utils"], function (require, exports, Utils
             });
         };
         Api.loadProject = function (projectId, success, error) {
-            this.request("api/getproject", { projectId: projectId }, function (project) {
-                try {
-                    project.contentObject = JSON.parse(project.content);
-                }
-                catch (e) {
-                    console.log(e);
-                    error({ error: "ServerError" });
-                }
+            var project = null;
+            var content = null;
+            var failed = false;
+            var done = function () {
+                if (failed || project == null || content == null)
+                    return;
+                project.contentObject = content;
                 success(project);
-            }, function (e) {
+            };
+            var fail = function (e) {
+                if (failed)
+                    return;
+                failed = true;
                 error(e);
-            });
+            };
+            this.get("api/project?content=false&projectId=" + encodeURIComponent(projectId), function (p) {
+                project = p;
+                done();
+            }, fail);
+            this.get("api/projectcontent?projectId=" + encodeURIComponent(projectId), function (c) {
+                content = c;
+                done();
+            }, fail);
         };
         Api.saveProject = function (project, success, error) {
             this.request("api/saveproject", project, function (r) {
@@ -7184,10 +7210,21 @@ define("Api", ["require", "exports", "Utils"], function (require, exports, Utils
             });
         };
         Api.saveThumbnail = function (projectId, thumbnail, success, error) {
-            this.request("api/savethumbnail", { projectId: projectId, thumbnail: thumbnail }, function (r) {
+            $.ajax({
+                url: "api/savethumbnail?projectId=" + encodeURIComponent(projectId),
+                method: "POST",
+                contentType: "text/plain; charset=us-ascii",
+                processData: false,
+                data: thumbnail
+            })
+                .done(function () {
                 success();
-            }, function (e) {
-                error(e);
+            }).fail(function (e) {
+                console.log(e);
+                if (e.responseJSON)
+                    error(e.responseJSON);
+                else
+                    error({ error: "ServerError" });
             });
         };
         Api.deleteProject = function (projectId, success, error) {
@@ -7197,25 +7234,56 @@ define("Api", ["require", "exports", "Utils"], function (require, exports, Utils
                 error();
             });
         };
-        Api.getUserProjects = function (userName, worldData, success, error) {
-            this.request("api/getprojects", { userName: userName, worldData: worldData }, function (projects) {
-                success(projects);
+        Api.getProjectRevisions = function (projectId, success, error) {
+            this.request("api/getprojectrevisions", { projectId: projectId }, function (revisions) {
+                success(revisions);
+            }, function (e) {
+                error(e);
+            });
+        };
+        Api.getProjectRevision = function (projectId, revision, success, error) {
+            this.request("api/getprojectrevision", { projectId: projectId, revision: revision }, function (r) {
+                success(JSON.parse(r.content));
+            }, function (e) {
+                error(e);
+            });
+        };
+        Api.restoreProjectRevision = function (projectId, revision, success, error) {
+            this.request("api/restoreprojectrevision", { projectId: projectId, revision: revision }, function () {
+                success();
             }, function (e) {
                 error(e);
             });
         };
-        Api.getProjectsAdmin = function (sorting, dateOffset, success, error) {
-            this.request("/api/getprojectsadmin", { sorting: sorting, dateOffset: dateOffset }, function (projects) {
+        Api.getUserProjects = function (userName, worldData, cursor, pageSize, success, error) {
+            var url = "api/projects?userName=" + encodeURIComponent(userName) + "&worldData=" + worldData + "&pageSize=" + pageSize;
+            if (cursor)
+                url += "&cursorLastModified=" + encodeURIComponent(cursor.lastModified) + "&cursorCode=" + encodeURIComponent(cursor.code);
+            this.get(url, function (projects) {
                 success(projects);
             }, function (e) {
                 error(e);
             });
         };
+        Api.getProjectsAdmin = function (sorting, cursor, includeContent, success, error) {
+            this.request("/api/getprojectsadmin", { sorting: sorting, cursor: cursor, pageSize: 20, includeContent: includeContent }, function (page) {
+                success(page);
+            }, function (e) {
+                error(e);
+            });
+        };
+        Api.searchProjects = function (query, offset, limit, success, error) {
+            this.get("api/searchprojects?query=" + encodeURIComponent(query) + "&offset=" + offset + "&limit=" + limit, function (result) {
+                success(result);
+            }, function (e) {
+                error(e);
+            });
+        };
         Api.getFeaturedProjects = function (success, error) {
-            this.request("api/getfeaturedprojects", {}, function (projects) {
+            this.get("api/getfeaturedprojects", function (projects) {
                 projects.forEach(function (project) {
                     try {
-                        project.contentObject = JSON.parse(project.content);
+                        project.contentObject = Api.parsePreview(project.preview);
                     }
                     catch (e) {
                         console.log(e);
@@ -7227,6 +7295,17 @@ define("Api", ["require", "exports", "Utils"], function (require, exports, Utils
                 error(e);
             });
         };
+        Api.parsePreview = function (preview) {
+            var world = { tiles: new Array(16 * 16), robot: { x: 0, y: 0, dirX: 1, dirY: 0, angle: 0 } };
+            if (preview) {
+                var parsed = JSON.parse(preview);
+                if (parsed.robot)
+                    world.robot = parsed.robot;
+                if (parsed.tiles)
+                    parsed.tiles.forEach(function (tile) { return world.tiles[tile[0]] = tile[1]; });
+            }
+            return { world: world };
+        };
         Api.getUserName = function () {
             return Utils_4.escapeHtml(this.getCookie("name"));
         };
@@ -7245,8 +7324,13 @@ define("Api", ["require", "exports", "Utils"], function (require, exports, Utils
         Api.getProjectUrl = function (name) {
             return Utils_4.escapeHtml("/project.html?id=" + name);
         };
-        Api.getProjectThumbnailUrl = function (code) {
-            return Utils_4.escapeHtml("/thumbnails/" + code + ".png");
+        Api.getProjectThumbnailUrl = function (code, hash, width) {
+            var params = [];
+            if (hash)
+                params.push("v=" + hash);
+            if (width)
+                params.push("w=" + Math.ceil(width * (window.devicePixelRatio || 1)));
+            return Utils_4.escapeHtml("/thumbnails/" + code + ".png" + (params.length > 0 ? "?" + params.join("&") : ""));
         };
         Api.getImageProxyUrl = function (url) {
             return "/api/proxyimage?url=" + encodeURIComponent(url);
@@ -9959,7 +10043,7 @@ define("widgets/ProjectPreview", ["require", "exports", "widgets/Widget", "widge
                 });
             }
             else if (this.project.type == "canvas") {
-                var thumbnail = $("<img src=\"" + Api_4.Api.getProjectThumbnailUrl(this.project.code) + "\" style=\"width: 192px; height: 108px;\"/>");
+                var thumbnail = $("<img src=\"" + Api_4.Api.getProjectThumbnailUrl(this.project.code, this.project.thumbnail, 192) + "\" style=\"width: 192px; height: 108px;\"/>");
                 thumbnail[0].addEventListener("click", function () {
                     window.location = Api_4.Api.getProjectUrl(_this.project.code);
                 });
@@ -9983,6 +10067,9 @@ define("widgets/ProjectList", ["require", "exports", "widgets/Widget", "Api", "w
             _this.provider = provider;
             _this.projects = [];
             _this.sorting = "LastModified";
+            _this.cursor = null;
+            _this.hasMore = true;
+            _this.generation = 0;
             _this.fetching = false;
             return _this;
         }
@@ -10002,6 +10089,10 @@ define("widgets/ProjectList", ["require", "exports", "widgets/Widget", "Api", "w
                     self.sorting = "LastModified";
                 }
                 self.projects.length = 0;
+                self.cursor = null;
+                self.hasMore = true;
+                self.fetching = false;
+                self.generation++;
                 projectsDom.find(".pb-project-list-item").remove();
                 self.fetchProjects();
             });
@@ -10017,14 +10108,20 @@ define("widgets/ProjectList", ["require", "exports", "widgets/Widget", "Api", "w
         };
         ProjectList.prototype.fetchProjects = function () {
             var _this = this;
-            if (this.fetching)
+            if (this.fetching || !this.hasMore)
                 return;
-            console.log("Fetching");
-            this.provider(this.sorting, this.projects.length == 0 ? null : this.projects[this.projects.length - 1].created, function (projects) {
-                _this.renderProjects(projects);
-                projects.forEach(function (project) { return _this.projects.push(project); });
+            var generation = this.generation;
+            this.provider(this.sorting, this.cursor, function (page) {
+                if (generation != _this.generation)
+                    return;
+                _this.renderProjects(page.projects);
+                page.projects.forEach(function (project) { return _this.projects.push(project); });
+                _this.cursor = page.nextCursor;
+                _this.hasMore = page.nextCursor != null;
                 _this.fetching = false;
             }, function () {
+                if (generation != _this.generation)
+                    return;
                 Dialog_7.Dialog.alert("Error", $("<p>Couldn't retrieve projects.</p>")).show();
                 _this.fetching = false;
             });
@@ -10035,7 +10132,7 @@ define("widgets/ProjectList", ["require", "exports", "widgets/Widget", "Api", "w
             projects.forEach(function (project) {
                 var projectDom = $("\n\t\t\t\t<div class=\"pb-project-list-item\">\n\t\t\t\t</div>\n\t\t\t");
                 try {
-                    project.contentObject = JSON.parse(project.content);
+                    project.contentObject = Api_5.Api.parsePreview(project.preview);
                     var preview = new ProjectPreview_1.ProjectPreview(project).render();
                     projectDom.append(preview);
                     projectDom.append("\n\t\t\t\t\t<div class=\"pb-project-list-item-description\">\n\t\t\t\t\t\t<h3><a href=\"" + Api_5.Api.getProjectUrl(project.code) + "\">" + project.title + "</a></h3>\n\t\t\t\t\t\t<table>\n\t\t\t\t\t\t\t<tr><td>Created:</td><td>" + project.created + "</td></tr>\n\t\t\t\t\t\t\t<tr><td>Last modified:</td><td>" + project.lastModified + "</td></tr>\n\t\t\t\t\t\t</table>\n\t\t\t\t\t</div>\n\t\t\t\t");
@@ -10079,7 +10176,7 @@ define("AdminPage", ["require", "exports", "widgets/Events", "widgets/Toolbar",
             this.eventBus.addListener(this.toolbar);
             parent.append(this.toolbar.render());
             var dom = $("\n\t\t\t<div id=\"pb-admin-page\">\n\t\t\t\t<h1>Administration</h1>\n\t\t\t</div>\n\t\t");
-            var projectList = new ProjectList_1.ProjectList(this.eventBus, function (sorting, dateOffset, success, error) { return Api_6.Api.getProjectsAdmin(sorting, dateOffset, success, error); });
+            var projectList = new ProjectList_1.ProjectList(this.eventBus, function (sorting, cursor, success, error) { return Api_6.Api.getProjectsAdmin(sorting, cursor, false, success, error); });
             dom.append(projectList.render());
             $(parent).append(dom);
         }
@@ -10368,6 +10465,9 @@ define("UserPage", ["require", "exports", "widgets/Events", "widgets/Toolbar", "
             var _this = this;
             this.eventBus = new Events_11.EventBus();
             this.toolbar = new Toolbar_6.Toolbar(this.eventBus, Toolbar_6.ToolbarMode.UserPage);
+            this.cursor = null;
+            this.hasMore = true;
+            this.fetching = false;
             this.eventBus.addListener(this);
             this.eventBus.addListener(this.toolbar);
             parent.append(this.toolbar.render());
@@ -10382,18 +10482,68 @@ define("UserPage", ["require", "exports", "widgets/Events", "widgets/Toolbar", "
                 dialog.show();
             }
             else {
-                Api_9.Api.getUserProjects(userId, true, function (projects) {
-                    _this.renderUser(dom, userId, projects);
-                }, function (error) {
-                });
+                var projectsDom_1 = this.renderUser(dom, userId);
+                window.onscroll = function () {
+                    if (_this.isScrolledToBottom())
+                        _this.fetchProjects(projectsDom_1, userId);
+                };
+                this.fetchProjects(projectsDom_1, userId);
             }
         }
-        UserPage.prototype.renderUser = function (dom, userId, projects) {
+        UserPage.prototype.fetchProjects = function (projectsDom, userId) {
+            var _this = this;
+            if (this.fetching || !this.hasMore)
+                return;
+            this.fetching = true;
+            Api_9.Api.getUserProjects(userId, true, this.cursor, UserPage.PAGE_SIZE, function (projects) {
+                _this.renderProjects(projectsDom, projects);
+                if (projects.length > 0)
+                    _this.cursor = projects[projects.length - 1];
+                _this.hasMore = projects.length == UserPage.PAGE_SIZE;
+                _this.fetching = false;
+                if (_this.isScrolledToBottom())
+                    _this.fetchProjects(projectsDom, userId);
+            }, function (error) {
+                _this.fetching = false;
+            });
+        };
+        UserPage.prototype.isScrolledToBottom = function () {
+            return window.scrollY + window.innerHeight >= document.body.scrollHeight - 100;
+        };
+        UserPage.prototype.renderUser = function (dom, userId) {
             var projectsDom = ($("\n\t\t\t<div class=\"pb-page-section\">\n\t\t\t\t<h1>" + userId + "'s projects</h1>\n\t\t\t\t<div class=\"pb-project-list\">\n\t\t\t\t\t<div class=\"pb-project-list-sort\">\n\t\t\t\t\t\t<span>Sort by:</span>\n\t\t\t\t\t\t<select>\n\t\t\t\t\t\t\t<option value=\"lastmodified\">Last modified</option>\n\t\t\t\t\t\t\t<option value=\"newest\">Newest</option>\n\t\t\t\t\t\t\t<option value=\"oldest\">Oldest</option>\n\t\t\t\t\t\t</select>\n\t\t\t\t\t</div>\n\t\t\t\t</div>\n\t\t\t</div>\n\t\t"));
+            projectsDom.find(".pb-project-list-sort > select").on("change", function () {
+                var sort;
+                var selected = $(this).val();
+                var projects = projectsDom.find(".pb-project-list-item");
+                projects.detach();
+                projects.toArray().sort(function (a, b) {
+                    var projectA = a.project;
+                    var projectB = b.project;
+                    if (selected == "newest") {
+                        return projectA.created > projectB.created ? -1 : 1;
+                    }
+                    else if (selected == "oldest") {
+                        return projectA.created < projectB.created ? -1 : -1;
+                    }
+                    else if (selected == "lastmodified") {
+                        return projectA.lastModified > projectB.lastModified ? -1 : 1;
+                    }
+                    else {
+                        return 0;
+                    }
+                }).forEach(function (project) {
+                    projectsDom.append(project);
+                });
+            });
+            dom.append(projectsDom);
+            return projectsDom;
+        };
+        UserPage.prototype.renderProjects = function (projectsDom, projects) {
             projects.forEach(function (project) {
                 var projectDom = $("\n\t\t\t\t<div class=\"pb-project-list-item\">\n\t\t\t\t</div>\n\t\t\t");
                 try {
-                    project.contentObject = JSON.parse(project.content);
+                    project.contentObject = Api_9.Api.parsePreview(project.preview);
                     var preview = new ProjectPreview_2.ProjectPreview(project).render();
                     projectDom.append(preview);
                     projectDom.append("\n\t\t\t\t\t<div class=\"pb-project-list-item-description\">\n\t\t\t\t\t\t<h3><a href=\"" + Api_9.Api.getProjectUrl(project.code) + "\">" + project.title + "</a></h3>\n\t\t\t\t\t\t<table>\n\t\t\t\t\t\t\t<tr><td>Created:</td><td>" + project.created + "</td></tr>\n\t\t\t\t\t\t\t<tr><td>Last modified:</td><td>" + project.lastModified + "</td></tr>\n\t\t\t\t\t\t</table>\n\t\t\t\t\t</div>\n\t\t\t\t");
@@ -10417,34 +10567,10 @@ define("UserPage", ["require", "exports", "widgets/Events", "widgets/Toolbar", "
                     console.log("Couldn't load world data for project " + project.code + ".");
                 }
             });
-            projectsDom.find(".pb-project-list-sort > select").on("change", function () {
-                var sort;
-                var selected = $(this).val();
-                var projects = projectsDom.find(".pb-project-list-item");
-                projects.detach();
-                projects.toArray().sort(function (a, b) {
-                    var projectA = a.project;
-                    var projectB = b.project;
-                    if (selected == "newest") {
-                        return projectA.created > projectB.created ? -1 : 1;
-                    }
-                    else if (selected == "oldest") {
-                        return projectA.created < projectB.created ? -1 : -1;
-                    }
-                    else if (selected == "lastmodified") {
-                        return projectA.lastModified > projectB.lastModified ? -1 : 1;
-                    }
-                    else {
-                        return 0;
-                    }
-                }).forEach(function (project) {
-                    projectsDom.append(project);
-                });
-            });
-            dom.append(projectsDom);
         };
         UserPage.prototype.onEvent = function (event) {
         };
+        UserPage.PAGE_SIZE = 50;
         return UserPage;
     }());
     exports.UserPage = UserPage;
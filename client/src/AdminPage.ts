@@ -24,7 +24,7 @@ export class AdminPage implements EventListener {
 				<h1>Administration</h1>
 			</div>
 		`);
-		let projectList = new ProjectList(this.eventBus, (sorting, dateOffset, success, error) => Api.getProjectsAdmin(sorting, dateOffset, success, error));
+		let projectList = new ProjectList(this.eventBus, (sorting, cursor, success, error) => Api.getProjectsAdmin(sorting, cursor, false, success, error));
 		dom.append(projectList.render());
 		$(parent).append(dom);
 	}
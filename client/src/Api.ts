@@ -15,11 +15,30 @@ export interface Project {
 	title: string
 	description: string
 	content: string
+	preview: string
 	contentObject: any
 	created: string
 	lastModified: string
 	public: boolean
+	featured: boolean
 	type: ProjectType
+	thumbnail: string
+}
+
+export interface ProjectsPage {
+	projects: Array<Project>
+	nextCursor: string
+}
+
+export interface SearchResult {
+	projects: Array<Project>
+	total: number
+}
+
+export interface ProjectRevision {
+	revision: number
+	created: string
+	snapshot: boolean
 }
 
 export class Api {
@@ -42,6 +61,22 @@ export class Api {
 		});
 	}
 
+	private static get <Response>(endpoint: string, success: (r: Response) => void, error: (e: RequestError) => void) {
+		$.ajax({
+			url: endpoint,
+			method: "GET"
+		})
+		.done((response) => {
+			success(response as Response);
+		}).fail((e) => {
+			console.log(e);
+			if (e.responseJSON)
+				error(e.responseJSON as RequestError);
+			else
+				error({ error: "ServerError" });
+		});
+	}
+
 	public static signup(email: string, name: string,  success: () => void, error: (e: RequestError) => void) {
 		this.request("api/signup", { email: email, name: name },
 		(r: { name: string, token: string }) => {
@@ -78,19 +113,34 @@ export class Api {
 		});
 	}
 
+	/**
+	 * Loads the project and its content in parallel. The content is
+	 * fetched separately, as the server can send it as stored, gzipped.
+	 */
 	public static loadProject(projectId: string, success: (project: Project) => void, error: (e: RequestError) => void) {
-		this.request("api/getproject", { projectId: projectId },
-		(project: Project) => {
-			try {
-				project.contentObject = JSON.parse(project.content);
-			} catch (e) {
-				console.log(e);
-				error({error: "ServerError"});
-			}
+		let project: Project = null;
+		let content: any = null;
+		let failed = false;
+		let done = () => {
+			if (failed || project == null || content == null) return;
+			project.contentObject = content;
 			success(project);
-		}, (e: RequestError) => {
+		};
+		let fail = (e: RequestError) => {
+			if (failed) return;
+			failed = true;
 			error(e);
-		});
+		};
+		this.get("api/project?content=false&projectId=" + encodeURIComponent(projectId),
+		(p: Project) => {
+			project = p;
+			done();
+		}, fail);
+		this.get("api/projectcontent?projectId=" + encodeURIComponent(projectId),
+		(c: any) => {
+			content = c;
+			done();
+		}, fail);
 	}
 
 	static saveProject(project: Project, success: (id: string) => void, error: (error: RequestError) => void): any {
@@ -103,11 +153,22 @@ export class Api {
 	}
 
 	static saveThumbnail(projectId: string, thumbnail: string, success: () => void, error: (error: RequestError) => void): any {
-		this.request("api/savethumbnail", {projectId: projectId, thumbnail: thumbnail},
-		(r: {projectId: string}) => {
+		// Sent as plain text, so the server can decode it while streaming it to disk
+		$.ajax({
+			url: "api/savethumbnail?projectId=" + encodeURIComponent(projectId),
+			method: "POST",
+			contentType: "text/plain; charset=us-ascii",
+			processData: false,
+			data: thumbnail
+		})
+		.done(() => {
 			success();
-		}, (e: RequestError) => {
-			error(e);
+		}).fail((e) => {
+			console.log(e);
+			if (e.responseJSON)
+				error(e.responseJSON as RequestError);
+			else
+				error({ error: "ServerError" });
 		});
 	}
 
@@ -120,17 +181,41 @@ export class Api {
 		});
 	}
 
-	static getUserProjects (userName: string, worldData: boolean, success: (projects: Array<Project>) => void, error: (error: RequestError) => void) {
-		this.request("api/getprojects", { userName: userName, worldData: worldData },
-		(projects: Array<Project>) => {
-			success(projects);
+	static getProjectRevisions(projectId: string, success: (revisions: Array<ProjectRevision>) => void, error: (error: RequestError) => void) {
+		this.request("api/getprojectrevisions", { projectId: projectId },
+		(revisions: Array<ProjectRevision>) => {
+			success(revisions);
+		}, (e: RequestError) => {
+			error(e);
+		});
+	}
+
+	static getProjectRevision(projectId: string, revision: number, success: (contentObject: any) => void, error: (error: RequestError) => void) {
+		this.request("api/getprojectrevision", { projectId: projectId, revision: revision },
+		(r: { content: string }) => {
+			success(JSON.parse(r.content));
+		}, (e: RequestError) => {
+			error(e);
+		});
+	}
+
+	static restoreProjectRevision(projectId: string, revision: number, success: () => void, error: (error: RequestError) => void) {
+		this.request("api/restoreprojectrevision", { projectId: projectId, revision: revision },
+		() => {
+			success();
 		}, (e: RequestError) => {
 			error(e);
 		});
 	}
 
-	static getProjectsAdmin (sorting: Sorting, dateOffset: string, success: (projects: Array<Project>) => void, error: (error: RequestError) => void) {
-		this.request("/api/getprojectsadmin", {sorting: sorting, dateOffset: dateOffset},
+	/**
+	 * Fetches a page of the user's projects, newest first. Pass the last project of the
+	 * previous page as the cursor to fetch the next page.
+	 */
+	static getUserProjects (userName: string, worldData: boolean, cursor: Project, pageSize: number, success: (projects: Array<Project>) => void, error: (error: RequestError) => void) {
+		let url = "api/projects?userName=" + encodeURIComponent(userName) + "&worldData=" + worldData + "&pageSize=" + pageSize;
+		if (cursor) url += "&cursorLastModified=" + encodeURIComponent(cursor.lastModified) + "&cursorCode=" + encodeURIComponent(cursor.code);
+		this.get(url,
 		(projects: Array<Project>) => {
 			success(projects);
 		}, (e: RequestError) => {
@@ -138,12 +223,30 @@ export class Api {
 		});
 	}
 
+	static getProjectsAdmin (sorting: Sorting, cursor: string, includeContent: boolean, success: (page: ProjectsPage) => void, error: (error: RequestError) => void) {
+		this.request("/api/getprojectsadmin", {sorting: sorting, cursor: cursor, pageSize: 20, includeContent: includeContent},
+		(page: ProjectsPage) => {
+			success(page);
+		}, (e: RequestError) => {
+			error(e);
+		});
+	}
+
+	static searchProjects (query: string, offset: number, limit: number, success: (result: SearchResult) => void, error: (error: RequestError) => void) {
+		this.get("api/searchprojects?query=" + encodeURIComponent(query) + "&offset=" + offset + "&limit=" + limit,
+		(result: SearchResult) => {
+			success(result);
+		}, (e: RequestError) => {
+			error(e);
+		});
+	}
+
 	static getFeaturedProjects(success: (projects: Array<Project>) => void, error: (error: RequestError) => void) {
-		this.request("api/getfeaturedprojects", { },
+		this.get("api/getfeaturedprojects",
 		(projects: Array<Project>) => {
 			projects.forEach(project => {
 				try {
-					project.contentObject = JSON.parse(project.content);
+					project.contentObject = Api.parsePreview(project.preview);
 				} catch (e) {
 					console.log(e);
 					error({error: "ServerError"});
@@ -155,6 +258,21 @@ export class Api {
 		});
 	}
 
+	/**
+	 * Expands the compact preview returned by project lists into the
+	 * content object shape {world: {tiles, robot}} the preview widget expects.
+	 * Previews store only the non-empty tiles as [index, tile] pairs.
+	 */
+	static parsePreview (preview: string): any {
+		let world = { tiles: new Array(16 * 16), robot: { x: 0, y: 0, dirX: 1, dirY: 0, angle: 0 } };
+		if (preview) {
+			let parsed = JSON.parse(preview);
+			if (parsed.robot) world.robot = parsed.robot;
+			if (parsed.tiles) parsed.tiles.forEach((tile: [number, any]) => world.tiles[tile[0]] = tile[1]);
+		}
+		return { world: world };
+	}
+
 	/**
 	 * Everything below returns client side, user provided strings. They
 	 * need to be HTML escaped for insertion into the DOM.
@@ -183,8 +301,11 @@ export class Api {
 		return escapeHtml("/project.html?id=" + name);
 	}
 
-	static getProjectThumbnailUrl(code: string): any {
-		return escapeHtml("/thumbnails/" + code + ".png");
+	static getProjectThumbnailUrl(code: string, hash?: string, width?: number): any {
+		let params = [];
+		if (hash) params.push("v=" + hash);
+		if (width) params.push("w=" + Math.ceil(width * (window.devicePixelRatio || 1)));
+		return escapeHtml("/thumbnails/" + code + ".png" + (params.length > 0 ? "?" + params.join("&") : ""));
 	}
 
 	static getImageProxyUrl(url: string): string {
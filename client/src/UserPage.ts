@@ -5,8 +5,12 @@ import { Dialog } from "./widgets/Dialog";
 import { ProjectPreview } from "./widgets/ProjectPreview";
 
 export class UserPage implements EventListener {
+	private static PAGE_SIZE = 50;
 	private eventBus = new EventBus();
 	private toolbar = new Toolbar(this.eventBus, ToolbarMode.UserPage);
+	private cursor: Project = null;
+	private hasMore = true;
+	private fetching = false;
 
 	constructor (parent: JQuery) {
 		// Register the components
@@ -33,17 +37,37 @@ export class UserPage implements EventListener {
 			})
 			dialog.show();
 		} else {
-			Api.getUserProjects(userId, true,
-				(projects) => {
-					this.renderUser(dom, userId, projects);
-				}, (error) => {
-
-				}
-			);
+			let projectsDom = this.renderUser(dom, userId);
+			// Fetch the next page once the user scrolls to the end of the list.
+			window.onscroll = () => {
+				if (this.isScrolledToBottom()) this.fetchProjects(projectsDom, userId);
+			};
+			this.fetchProjects(projectsDom, userId);
 		}
 	}
 
-	renderUser(dom: JQuery, userId: string, projects: Project[]) {
+	fetchProjects(projectsDom: JQuery, userId: string) {
+		if (this.fetching || !this.hasMore) return;
+		this.fetching = true;
+		Api.getUserProjects(userId, true, this.cursor, UserPage.PAGE_SIZE,
+			(projects) => {
+				this.renderProjects(projectsDom, projects);
+				if (projects.length > 0) this.cursor = projects[projects.length - 1];
+				this.hasMore = projects.length == UserPage.PAGE_SIZE;
+				this.fetching = false;
+				// The page might not fill the window, in which case there's nothing to scroll.
+				if (this.isScrolledToBottom()) this.fetchProjects(projectsDom, userId);
+			}, (error) => {
+				this.fetching = false;
+			}
+		);
+	}
+
+	isScrolledToBottom() {
+		return window.scrollY + window.innerHeight >= document.body.scrollHeight - 100;
+	}
+
+	renderUser(dom: JQuery, userId: string): JQuery {
 		let projectsDom = ($(/*html*/`
 			<div class="pb-page-section">
 				<h1>${userId}'s projects</h1>
@@ -60,13 +84,42 @@ export class UserPage implements EventListener {
 			</div>
 		`));
 
+		projectsDom.find(".pb-project-list-sort > select").on("change", function() {
+			let sort;
+			let selected = $(this).val();
+			let projects = projectsDom.find(".pb-project-list-item")
+			projects.detach();
+			projects.toArray().sort((a, b) => {
+				let projectA = (a as any).project as Project;
+				let projectB = (b as any).project as Project;
+
+				if (selected == "newest") {
+					return projectA.created > projectB.created ? -1 : 1;
+				} else if  (selected == "oldest") {
+					return projectA.created < projectB.created ? -1 : -1;
+				} else if (selected == "lastmodified") {
+					return projectA.lastModified > projectB.lastModified ? -1 : 1;
+				} else {
+					return 0;
+				}
+			}).forEach(project => {
+				projectsDom.append(project);
+			});
+
+		});
+
+		dom.append(projectsDom);
+		return projectsDom;
+	}
+
+	renderProjects(projectsDom: JQuery, projects: Project[]) {
 		projects.forEach(project => {
 			let projectDom = $(/*html*/`
 				<div class="pb-project-list-item">
 				</div>
 			`);
 			try {
-				project.contentObject = JSON.parse(project.content);
+				project.contentObject = Api.parsePreview(project.preview);
 				let preview = new ProjectPreview(project).render()
 				projectDom.append(preview);
 				projectDom.append(/*html*/`
@@ -97,32 +150,6 @@ export class UserPage implements EventListener {
 				console.log("Couldn't load world data for project " + project.code + ".");
 			}
 		})
-
-		projectsDom.find(".pb-project-list-sort > select").on("change", function() {
-			let sort;
-			let selected = $(this).val();
-			let projects = projectsDom.find(".pb-project-list-item")
-			projects.detach();
-			projects.toArray().sort((a, b) => {
-				let projectA = (a as any).project as Project;
-				let projectB = (b as any).project as Project;
-
-				if (selected == "newest") {
-					return projectA.created > projectB.created ? -1 : 1;
-				} else if  (selected == "oldest") {
-					return projectA.created < projectB.created ? -1 : -1;
-				} else if (selected == "lastmodified") {
-					return projectA.lastModified > projectB.lastModified ? -1 : 1;
-				} else {
-					return 0;
-				}
-			}).forEach(project => {
-				projectsDom.append(project);
-			});
-
-		});
-
-		dom.append(projectsDom);
 	}
 
 	onEvent(event: Event) {
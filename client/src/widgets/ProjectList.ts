@@ -1,6 +1,6 @@
 import { Widget } from "./Widget";
 import { Event, EventBus } from "./Events"
-import { Project, Api, Sorting } from "../Api";
+import { Project, Api, Sorting, ProjectsPage } from "../Api";
 import { Dialog } from "./Dialog";
 import { ProjectPreview } from "./ProjectPreview";
 
@@ -8,8 +8,11 @@ export class ProjectList extends Widget {
 	private projectsDom: JQuery;
 	private projects: Array<Project> = [];
 	private sorting: Sorting = "LastModified";
+	private cursor: string = null;
+	private hasMore = true;
+	private generation = 0;
 
-	constructor(bus: EventBus, private provider: (sorting: Sorting, dateOffset: string, success: (projects: Array<Project>) => void, error: () => void) => void) {
+	constructor(bus: EventBus, private provider: (sorting: Sorting, cursor: string, success: (page: ProjectsPage) => void, error: () => void) => void) {
 		super(bus);
 	}
 
@@ -38,6 +41,10 @@ export class ProjectList extends Widget {
 				self.sorting = "LastModified"
 			}
 			self.projects.length = 0;
+			self.cursor = null;
+			self.hasMore = true;
+			self.fetching = false;
+			self.generation++;
 			projectsDom.find(".pb-project-list-item").remove();
 			self.fetchProjects();
 		});
@@ -55,14 +62,19 @@ export class ProjectList extends Widget {
 
 	private fetching = false;
 	private fetchProjects() {
-		if (this.fetching) return;
-		console.log("Fetching");
-		this.provider(this.sorting, this.projects.length == 0 ? null : this.projects[this.projects.length - 1].created,
-			(projects: Project[]) => {
-				this.renderProjects(projects);
-				projects.forEach(project => this.projects.push(project));
+		if (this.fetching || !this.hasMore) return;
+		// Ignore responses for a previous sort order.
+		let generation = this.generation;
+		this.provider(this.sorting, this.cursor,
+			(page: ProjectsPage) => {
+				if (generation != this.generation) return;
+				this.renderProjects(page.projects);
+				page.projects.forEach(project => this.projects.push(project));
+				this.cursor = page.nextCursor;
+				this.hasMore = page.nextCursor != null;
 				this.fetching = false;
 			}, () => {
+				if (generation != this.generation) return;
 				Dialog.alert("Error", $("<p>Couldn't retrieve projects.</p>")).show();
 				this.fetching = false;
 			});
@@ -76,7 +88,7 @@ export class ProjectList extends Widget {
 				</div>
 			`);
 			try {
-				project.contentObject = JSON.parse(project.content);
+				project.contentObject = Api.parsePreview(project.preview);
 				let preview = new ProjectPreview(project).render()
 				projectDom.append(preview);
 				projectDom.append(/*html*/`
@@ -36,7 +36,7 @@ export class ProjectPreview extends Widget {
 				(window.location as any) = Api.getProjectUrl(this.project.code);
 			});
 		} else if (this.project.type == "canvas") {
-			let thumbnail = $(`<img src="${Api.getProjectThumbnailUrl(this.project.code)}" style="width: 192px; height: 108px;"/>`);
+			let thumbnail = $(`<img src="${Api.getProjectThumbnailUrl(this.project.code, this.project.thumbnail, 192)}" style="width: 192px; height: 108px;"/>`);
 			thumbnail[0].addEventListener("click", () => {
 				(window.location as any) = Api.getProjectUrl(this.project.code);
 			});
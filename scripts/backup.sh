@@ -23,7 +23,7 @@ if [ -z $GDRIVE_FOLDER ] ; then echo "Specify \$GDRIVE_FOLDER"; exit -1; fi
 MYSQL_DUMP_FILE="paperbots-`date +%F`.sql"
 ZIP_DUMP_FILE="$MYSQL_DUMP_FILE.tar.gz"
 echo "Dumping paperbots database to $MYSQL_DUMP_FILE"
-ssh -l $SERVER_USER $SERVER_HOST "echo $SERVER_PWD | sudo -S docker exec $PAPERBOTS_DB_CONTAINER mysqldump --default-character-set=utf8mb4 -uroot -p$PAPERBOTS_DB_PWD --port $PAPERBOTS_DB_PORT paperbots" > $MYSQL_DUMP_FILE
+ssh -l $SERVER_USER $SERVER_HOST "echo $SERVER_PWD | sudo -S docker exec $PAPERBOTS_DB_CONTAINER mysqldump --default-character-set=utf8mb4 --hex-blob -uroot -p$PAPERBOTS_DB_PWD --port $PAPERBOTS_DB_PORT paperbots" > $MYSQL_DUMP_FILE
 echo "Uploading $DUMP_FILE to GDrive"
 tar -czvf $ZIP_DUMP_FILE $MYSQL_DUMP_FILE
 gdrive upload -p $GDRIVE_FOLDER $ZIP_DUMP_FILE
@@ -0,0 +1,101 @@
+package io.paperbots;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.GZIPOutputStream;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import io.javalin.Context;
+import io.paperbots.PaperbotsException.PaperbotsError;
+
+/** A response body that is built once and sent many times. The body is compressed and hashed up front, so sending it only copies
+ * bytes. Clients that accept gzip get the compressed body, clients that already have the body get a 304 Not Modified. */
+public class CachedResponse {
+	private static final ObjectMapper json = new ObjectMapper();
+
+	private final byte[] body;
+	private final byte[] gzippedBody;
+	private final String contentType;
+	private final String etag;
+	private final long lastModified;
+
+	public CachedResponse (byte[] body, String contentType, long lastModified) {
+		this.body = body;
+		this.gzippedBody = gzip(body);
+		this.contentType = contentType;
+		this.etag = "\"" + hash(body) + "\"";
+		this.lastModified = lastModified;
+	}
+
+	/** Serializes the value to JSON the same way {@link Context#json(Object)} does. */
+	public static CachedResponse json (Object value, long lastModified) {
+		try {
+			return new CachedResponse(json.writeValueAsBytes(value), "application/json", lastModified);
+		} catch (JsonProcessingException e) {
+			throw new PaperbotsException(PaperbotsError.ServerError, "Couldn't serialize response", e);
+		}
+	}
+
+	/** Sends the body, or a 304 Not Modified if the client's copy is current.
+	 * @param cacheControl the value of the <code>Cache-Control</code> header, or null */
+	public void send (Context ctx, String cacheControl) throws IOException {
+		ctx.header("Vary", "Accept-Encoding");
+		if (cacheControl != null) ctx.header("Cache-Control", cacheControl);
+		boolean gzip = HttpCaching.acceptsGzip(ctx);
+		if (HttpCaching.checkNotModified(ctx, HttpCaching.etag(etag, gzip), lastModified)) return;
+
+		// Write straight to the servlet output stream, so Javalin doesn't compress the body a second time.
+		byte[] bytes = body;
+		if (gzip) {
+			bytes = gzippedBody;
+			ctx.header("Content-Encoding", "gzip");
+		}
+		ctx.contentType(contentType);
+		ctx.res.setContentLength(bytes.length);
+		ctx.res.getOutputStream().write(bytes);
+	}
+
+	public byte[] getBody () {
+		return body;
+	}
+
+	public byte[] getGzippedBody () {
+		return gzippedBody;
+	}
+
+	public String getETag () {
+		return etag;
+	}
+
+	public long getLastModified () {
+		return lastModified;
+	}
+
+	static byte[] gzip (byte[] data) {
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(data.length / 4 + 64);
+			try (GZIPOutputStream out = new GZIPOutputStream(bytes)) {
+				out.write(data);
+			}
+			return bytes.toByteArray();
+		} catch (IOException e) {
+			throw new PaperbotsException(PaperbotsError.ServerError, "Couldn't compress response", e);
+		}
+	}
+
+	static String hash (byte[] data) {
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-256").digest(data);
+			StringBuilder hex = new StringBuilder(32);
+			for (int i = 0; i < 16; i++)
+				hex.append(String.format("%02x", digest[i]));
+			return hex.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new PaperbotsException(PaperbotsError.ServerError, "SHA-256 not supported", e);
+		}
+	}
+}
@@ -8,6 +8,9 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Optional;
 
 /**
@@ -27,6 +30,24 @@ import java.util.Optional;
  * <li><code>PAPERBOTS_DB_USER</code>: the MySQL user.</li>
  * <li><code>PAPERBOTS_DB_PWD</code>: the MySQL user password.</li>
  * </ul>
+ *
+ * <p>
+ * The following environment variables are optional and tune the database connection pool, see {@link DatabaseConfig}.
+ * </p>
+ *
+ * <ul>
+ * <li><code>PAPERBOTS_DB_POOL_SIZE</code>: the maximum number of pooled connections.</li>
+ * <li><code>PAPERBOTS_DB_IDLE_TIMEOUT</code>: the time in milliseconds after which an idle connection is closed.</li>
+ * <li><code>PAPERBOTS_DB_CONNECTION_TIMEOUT</code>: the time in milliseconds a request waits for a pooled connection.</li>
+ * <li><code>PAPERBOTS_DB_INIT_SQL</code>: SQL executed once on every new connection.</li>
+ * <li><code>PAPERBOTS_DB_SERVER_PREP_STMTS</code>: whether to use server-side prepared statements.</li>
+ * <li><code>PAPERBOTS_DB_PREP_STMT_CACHE_SIZE</code>: the number of prepared statements cached per connection.</li>
+ * <li><code>PAPERBOTS_DB_REPLICA_JDBC_URLS</code>: comma separated JDBC URLs of read replicas, see {@link ReadReplicas}.</li>
+ * <li><code>PAPERBOTS_DB_REPLICA_MAX_LAG</code>: the replication lag in milliseconds above which a replica is not read from.</li>
+ * <li><code>PAPERBOTS_MAX_THUMBNAIL_SIZE</code>: the maximum size of an uploaded thumbnail in bytes, see {@link FilesConfig}.</li>
+ * <li><code>PAPERBOTS_DRAIN_TIMEOUT</code>: the time in milliseconds a shutdown waits for in-flight requests, see {@link ServerConfig}.</li>
+ * <li><code>PAPERBOTS_WARMUP_ROUNDS</code>: how often the warm-up requests are replayed before the server reports ready.</li>
+ * </ul>
  */
 @JsonIgnoreProperties(ignoreUnknown = true)
 public class Config {
@@ -34,14 +55,17 @@ public class Config {
 	private final EmailConfig emailConfig;
 	private final DatabaseConfig databaseConfig;
 	private final FilesConfig filesConfig;
+	private final ServerConfig serverConfig;
 
 	@JsonCreator
 	public Config (@JsonProperty("reloadPassword") String reloadPassword, @JsonProperty("emailConfig") EmailConfig emailConfig,
-		@JsonProperty("databaseConfig") DatabaseConfig databaseConfig, FilesConfig filesConfig) {
+		@JsonProperty("databaseConfig") DatabaseConfig databaseConfig, FilesConfig filesConfig,
+		@JsonProperty("serverConfig") ServerConfig serverConfig) {
 		this.reloadPassword = Optional.ofNullable(reloadPassword).orElseThrow( () -> new AssertionError("Reload password configuration missing"));
 		this.emailConfig = emailConfig;
 		this.databaseConfig = databaseConfig;
 		this.filesConfig = filesConfig;
+		this.serverConfig = Optional.ofNullable(serverConfig).orElseGet( () -> new ServerConfig(null, null));
 	}
 
 	public EmailConfig getEmailConfig () {
@@ -56,6 +80,10 @@ public class Config {
 		return filesConfig;
 	}
 
+	public ServerConfig getServerConfig () {
+		return serverConfig;
+	}
+
 	public String getReloadPassword () {
 		return reloadPassword;
 	}
@@ -77,8 +105,36 @@ public class Config {
 		return new Config(System.getenv("PAPERBOTS_RELOAD_PWD"),
 			new EmailConfig(System.getenv("PAPERBOTS_EMAIL_HOST"), Integer.parseInt(System.getenv("PAPERBOTS_EMAIL_PORT")),
 				System.getenv("PAPERBOTS_EMAIL_ADDRESS"), System.getenv("PAPERBOTS_EMAIL_PWD"), Boolean.parseBoolean(System.getenv("PAPERBOTS_EMAIL_SSL"))),
-			new DatabaseConfig(System.getenv("PAPERBOTS_DB_JDBC_URL"), System.getenv("PAPERBOTS_DB_USER"), System.getenv("PAPERBOTS_DB_PWD")),
-			new FilesConfig(System.getenv("PAPERBOTS_FILES_DIR")));
+			new DatabaseConfig(System.getenv("PAPERBOTS_DB_JDBC_URL"), System.getenv("PAPERBOTS_DB_USER"), System.getenv("PAPERBOTS_DB_PWD"),
+				intFromEnv("PAPERBOTS_DB_POOL_SIZE"), longFromEnv("PAPERBOTS_DB_IDLE_TIMEOUT"), longFromEnv("PAPERBOTS_DB_CONNECTION_TIMEOUT"),
+				System.getenv("PAPERBOTS_DB_INIT_SQL"), booleanFromEnv("PAPERBOTS_DB_SERVER_PREP_STMTS"), intFromEnv("PAPERBOTS_DB_PREP_STMT_CACHE_SIZE"),
+				listFromEnv("PAPERBOTS_DB_REPLICA_JDBC_URLS"), longFromEnv("PAPERBOTS_DB_REPLICA_MAX_LAG")),
+			new FilesConfig(System.getenv("PAPERBOTS_FILES_DIR"), longFromEnv("PAPERBOTS_MAX_THUMBNAIL_SIZE")),
+			new ServerConfig(longFromEnv("PAPERBOTS_DRAIN_TIMEOUT"), intFromEnv("PAPERBOTS_WARMUP_ROUNDS")));
+	}
+
+	private static Integer intFromEnv (String name) {
+		String value = System.getenv(name);
+		return value != null ? Integer.parseInt(value) : null;
+	}
+
+	private static Long longFromEnv (String name) {
+		String value = System.getenv(name);
+		return value != null ? Long.parseLong(value) : null;
+	}
+
+	private static List<String> listFromEnv (String name) {
+		String value = System.getenv(name);
+		if (value == null || value.trim().isEmpty()) return null;
+		List<String> values = new ArrayList<>();
+		for (String element : value.split(","))
+			if (!element.trim().isEmpty()) values.add(element.trim());
+		return values;
+	}
+
+	private static Boolean booleanFromEnv (String name) {
+		String value = System.getenv(name);
+		return value != null ? Boolean.parseBoolean(value) : null;
 	}
 
 	@JsonIgnoreProperties(ignoreUnknown = true)
@@ -119,17 +175,44 @@ public class Config {
 		}
 	}
 
+	/** Database connection settings. All connection pool settings are optional and fall back to sensible defaults. Read replicas
+	 * are optional, they use the same user, password and pool settings as the primary. */
 	@JsonIgnoreProperties(ignoreUnknown = true)
 	public static class DatabaseConfig {
 		private final String jdbcUrl;
 		private final String user;
 		private final String password;
+		private final int maxPoolSize;
+		private final long idleTimeout;
+		private final long connectionTimeout;
+		private final String connectionInitSql;
+		private final boolean serverPreparedStatements;
+		private final int preparedStatementCacheSize;
+		private final List<String> replicaJdbcUrls;
+		private final long replicaMaxLag;
+
+		public DatabaseConfig (String jdbcUrl, String user, String password) {
+			this(jdbcUrl, user, password, null, null, null, null, null, null, null, null);
+		}
 
 		@JsonCreator
-		public DatabaseConfig (@JsonProperty("jdbcUrl") String jdbcUrl, @JsonProperty("user") String user, @JsonProperty("password") final String password) {
+		public DatabaseConfig (@JsonProperty("jdbcUrl") String jdbcUrl, @JsonProperty("user") String user, @JsonProperty("password") final String password,
+			@JsonProperty("maxPoolSize") Integer maxPoolSize, @JsonProperty("idleTimeout") Long idleTimeout,
+			@JsonProperty("connectionTimeout") Long connectionTimeout, @JsonProperty("connectionInitSql") String connectionInitSql,
+			@JsonProperty("serverPreparedStatements") Boolean serverPreparedStatements, @JsonProperty("preparedStatementCacheSize") Integer preparedStatementCacheSize,
+			@JsonProperty("replicaJdbcUrls") List<String> replicaJdbcUrls, @JsonProperty("replicaMaxLag") Long replicaMaxLag) {
 			this.jdbcUrl = Optional.ofNullable(jdbcUrl).orElseThrow( () -> new IllegalArgumentException("Database JDBC URL is missing."));
 			this.user = Optional.ofNullable(user).orElseThrow( () -> new IllegalArgumentException("Database user is missing."));
 			this.password = Optional.ofNullable(password).orElseThrow( () -> new IllegalArgumentException("Database password is missing."));
+			this.maxPoolSize = Optional.ofNullable(maxPoolSize).orElse(10);
+			this.idleTimeout = Optional.ofNullable(idleTimeout).orElse(10 * 60 * 1000l);
+			this.connectionTimeout = Optional.ofNullable(connectionTimeout).orElse(10 * 1000l);
+			this.connectionInitSql = Optional.ofNullable(connectionInitSql).orElse("SET NAMES 'utf8mb4' COLLATE 'utf8mb4_unicode_ci'");
+			this.serverPreparedStatements = Optional.ofNullable(serverPreparedStatements).orElse(true);
+			this.preparedStatementCacheSize = Optional.ofNullable(preparedStatementCacheSize).orElse(250);
+			this.replicaJdbcUrls = Optional.ofNullable(replicaJdbcUrls).orElse(Collections.emptyList());
+			this.replicaMaxLag = Optional.ofNullable(replicaMaxLag).orElse(5 * 1000l);
+			if (this.maxPoolSize < 1) throw new IllegalArgumentException("Database pool size must be at least 1.");
 		}
 
 		public String getJdbcUrl () {
@@ -143,19 +226,88 @@ public class Config {
 		public String getPassword () {
 			return password;
 		}
+
+		public int getMaxPoolSize () {
+			return maxPoolSize;
+		}
+
+		public long getIdleTimeout () {
+			return idleTimeout;
+		}
+
+		public long getConnectionTimeout () {
+			return connectionTimeout;
+		}
+
+		/** @return SQL executed once for each new connection. Defaults to setting the connection character set to utf8mb4. */
+		public String getConnectionInitSql () {
+			return connectionInitSql;
+		}
+
+		public boolean getServerPreparedStatements () {
+			return serverPreparedStatements;
+		}
+
+		public int getPreparedStatementCacheSize () {
+			return preparedStatementCacheSize;
+		}
+
+		/** @return the JDBC URLs of the read replicas, empty if all reads go to the primary. */
+		public List<String> getReplicaJdbcUrls () {
+			return replicaJdbcUrls;
+		}
+
+		/** @return the replication lag in milliseconds above which a replica is considered unhealthy. */
+		public long getReplicaMaxLag () {
+			return replicaMaxLag;
+		}
 	}
 
 	@JsonIgnoreProperties(ignoreUnknown = true)
 	public static class FilesConfig {
 		private final String filesDir;
+		private final long maxThumbnailSize;
+
+		public FilesConfig (String filesDir) {
+			this(filesDir, null);
+		}
 
 		@JsonCreator
-		public FilesConfig (@JsonProperty("filesDir") String filesDir) {
+		public FilesConfig (@JsonProperty("filesDir") String filesDir, @JsonProperty("maxThumbnailSize") Long maxThumbnailSize) {
 			this.filesDir = Optional.ofNullable(filesDir).orElseThrow( () -> new IllegalArgumentException("Files directory is missing."));
+			this.maxThumbnailSize = Optional.ofNullable(maxThumbnailSize).orElse(1024 * 1024l);
 		}
 
 		public String getFilesDir () {
 			return filesDir;
 		}
+
+		/** The maximum size of an uploaded thumbnail in bytes, after decoding. Larger uploads are rejected. */
+		public long getMaxThumbnailSize () {
+			return maxThumbnailSize;
+		}
+	}
+
+	@JsonIgnoreProperties(ignoreUnknown = true)
+	public static class ServerConfig {
+		private final long drainTimeout;
+		private final int warmupRounds;
+
+		@JsonCreator
+		public ServerConfig (@JsonProperty("drainTimeout") Long drainTimeout, @JsonProperty("warmupRounds") Integer warmupRounds) {
+			this.drainTimeout = Optional.ofNullable(drainTimeout).orElse(30 * 1000l);
+			this.warmupRounds = Optional.ofNullable(warmupRounds).orElse(0);
+		}
+
+		/** The time in milliseconds a shutdown waits for in-flight requests to complete before closing their connections. */
+		public long getDrainTimeout () {
+			return drainTimeout;
+		}
+
+		/** How often the requests of {@link Warmup} are replayed after startup before the server reports ready, 0 to report ready
+		 * right away. */
+		public int getWarmupRounds () {
+			return warmupRounds;
+		}
 	}
 }
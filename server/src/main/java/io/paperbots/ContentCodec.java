@@ -0,0 +1,128 @@
+package io.paperbots;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+import org.jdbi.v3.core.Jdbi;
+
+import com.esotericsoftware.minlog.Log;
+
+import io.paperbots.PaperbotsException.PaperbotsError;
+
+/** Encodes project content for storage in the <code>projects.content</code> column. Stored content starts with a version byte:
+ *
+ * <ul>
+ * <li>{@link #RAW}: the rest is the UTF-8 encoded content. Used for content too small to benefit from compression.</li>
+ * <li>{@link #GZIP}: the rest is the gzip compressed, UTF-8 encoded content. It can be sent as is to clients accepting gzip.</li>
+ * </ul>
+ *
+ * Rows written before content was compressed hold plain UTF-8 JSON, which never starts with either version byte, so they are
+ * decoded as is. They are re-encoded in the background by {@link #startReencode(Jdbi)}, or when the project is saved. */
+public class ContentCodec {
+	public static final byte RAW = 0;
+	public static final byte GZIP = 1;
+
+	/** Content shorter than this is stored raw, as gzip's header and trailer would outweigh the savings. */
+	private static final int MIN_COMPRESSED_LENGTH = 256;
+	private static final int REENCODE_BATCH_SIZE = 200;
+	private static final long REENCODE_PAUSE = 100;
+
+	public static byte[] encode (String content) {
+		byte[] bytes = content.getBytes(StandardCharsets.UTF_8);
+		if (bytes.length >= MIN_COMPRESSED_LENGTH) {
+			byte[] compressed = CachedResponse.gzip(bytes);
+			if (compressed.length < bytes.length) return withVersion(GZIP, compressed);
+		}
+		return withVersion(RAW, bytes);
+	}
+
+	public static String decode (byte[] stored) {
+		if (stored == null) return null;
+		if (stored.length == 0) return "";
+		switch (stored[0]) {
+		case RAW:
+			return new String(stored, 1, stored.length - 1, StandardCharsets.UTF_8);
+		case GZIP:
+			return new String(gunzip(stored, 1), StandardCharsets.UTF_8);
+		default:
+			return new String(stored, StandardCharsets.UTF_8);
+		}
+	}
+
+	/** @return whether the stored content is gzip compressed, see {@link #getGzipped(byte[])}. */
+	public static boolean isGzipped (byte[] stored) {
+		return stored.length > 0 && stored[0] == GZIP;
+	}
+
+	/** @return the gzip stream of stored content for which {@link #isGzipped(byte[])} returns true. */
+	public static byte[] getGzipped (byte[] stored) {
+		if (!isGzipped(stored)) throw new IllegalArgumentException("Content is not gzipped.");
+		return Arrays.copyOfRange(stored, 1, stored.length);
+	}
+
+	/** Re-encodes the content of projects saved before content was encoded, in batches on a background thread, so their content
+	 * can be sent gzipped as well. */
+	public static void startReencode (Jdbi jdbi) {
+		Thread thread = new Thread( () -> reencode(jdbi), "Content re-encode");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	private static void reencode (Jdbi jdbi) {
+		AtomicLong reencoded = Metrics.counter("content.reencoded");
+		// Walk the primary key, so each batch continues where the previous one ended. The first byte of unencoded content is
+		// neither RAW nor GZIP.
+		int[] lastId = {0};
+		try {
+			while (true) {
+				int selected = jdbi.withHandle(handle -> {
+					List<Object[]> contents = handle.createQuery("SELECT id, content FROM projects WHERE id > :lastId AND ASCII(content) > :gzip ORDER BY id LIMIT :limit")
+						.bind("lastId", lastId[0])
+						.bind("gzip", GZIP)
+						.bind("limit", REENCODE_BATCH_SIZE)
+						.map( (rs, ctx) -> new Object[] {rs.getInt("id"), encode(decode(rs.getBytes("content")))})
+						.list();
+					for (Object[] content : contents) {
+						lastId[0] = (int)content[0];
+						// Keep lastModified as is, and don't overwrite content written by a concurrent save, which is encoded already.
+						// Bump the version, as clients accepting gzip now get the content gzipped.
+						reencoded.addAndGet(handle.createUpdate("UPDATE projects SET content=:content, lastModified=lastModified, version=version+1 WHERE id=:id AND ASCII(content) > :gzip")
+							.bind("content", (byte[])content[1]).bind("id", (int)content[0]).bind("gzip", GZIP).execute());
+					}
+					return contents.size();
+				});
+				if (selected == 0) break;
+				Thread.sleep(REENCODE_PAUSE);
+			}
+			if (reencoded.get() > 0) Log.info("Re-encoded the content of " + reencoded.get() + " projects");
+		} catch (Throwable t) {
+			Log.error("Couldn't re-encode project content", t);
+		}
+	}
+
+	private static byte[] withVersion (byte version, byte[] body) {
+		byte[] stored = new byte[body.length + 1];
+		stored[0] = version;
+		System.arraycopy(body, 0, stored, 1, body.length);
+		return stored;
+	}
+
+	private static byte[] gunzip (byte[] data, int offset) {
+		try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(data, offset, data.length - offset))) {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(data.length * 4);
+			byte[] buffer = new byte[8192];
+			int read;
+			while ((read = in.read(buffer)) != -1)
+				bytes.write(buffer, 0, read);
+			return bytes.toByteArray();
+		} catch (IOException e) {
+			throw new PaperbotsException(PaperbotsError.ServerError, "Couldn't decompress content", e);
+		}
+	}
+}
@@ -1,27 +1,101 @@
-
 package io.paperbots;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
 import org.flywaydb.core.Flyway;
 import org.jdbi.v3.core.Jdbi;
 
-import java.util.Properties;
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+import com.zaxxer.hikari.metrics.IMetricsTracker;
+import com.zaxxer.hikari.metrics.MetricsTrackerFactory;
+import com.zaxxer.hikari.metrics.PoolStats;
 
 public class Database {
     public static Jdbi setupDatabase(Config.DatabaseConfig config, boolean test) {
-        final Jdbi jdbi;
+        HikariDataSource dataSource = createDataSource(config, "paperbots");
 
-        Properties properties = new Properties();
-        properties.setProperty("user", config.getUser());
-        properties.setProperty("password", config.getPassword());
-        properties.setProperty("useSSL", "false");
-        properties.setProperty("useUnicode", "true");
-        properties.setProperty("characterEncoding", "UTF-8");
-
-        jdbi = Jdbi.create(config.getJdbcUrl(), properties);
-        Flyway flyway = Flyway.configure().dataSource(config.getJdbcUrl(), config.getUser(), config.getPassword()).load();
+        Jdbi jdbi = Jdbi.create(dataSource);
+        Flyway flyway = Flyway.configure().dataSource(dataSource).load();
         if (test) flyway.clean();
         flyway.migrate();
 
         return jdbi;
     }
+
+    /** Connects to the read replicas of the configuration, if any. Replicas aren't migrated, they receive the primary's schema
+     * through replication. */
+    public static ReadReplicas setupReplicas(Config.DatabaseConfig config) {
+        List<Jdbi> replicas = new ArrayList<>();
+        List<String> urls = config.getReplicaJdbcUrls();
+        for (int i = 0; i < urls.size(); i++) {
+            replicas.add(Jdbi.create(createDataSource(config, urls.get(i), "replica" + i, true)));
+        }
+        return new ReadReplicas(replicas, config.getReplicaMaxLag());
+    }
+
+    /** Creates a pooled data source for the given configuration. The pool's gauges are registered with {@link Metrics} under
+     * <code>db.&lt;poolName&gt;.</code>. */
+    static HikariDataSource createDataSource(Config.DatabaseConfig config, String poolName) {
+        return createDataSource(config, config.getJdbcUrl(), poolName, false);
+    }
+
+    private static HikariDataSource createDataSource(Config.DatabaseConfig config, String jdbcUrl, String poolName, boolean readOnly) {
+        HikariConfig hikari = new HikariConfig();
+        hikari.setPoolName(poolName);
+        hikari.setJdbcUrl(jdbcUrl);
+        hikari.setUsername(config.getUser());
+        hikari.setPassword(config.getPassword());
+        hikari.setMaximumPoolSize(config.getMaxPoolSize());
+        hikari.setIdleTimeout(config.getIdleTimeout());
+        hikari.setConnectionTimeout(config.getConnectionTimeout());
+        hikari.setConnectionInitSql(config.getConnectionInitSql());
+        hikari.setReadOnly(readOnly);
+
+        hikari.addDataSourceProperty("useSSL", "false");
+        hikari.addDataSourceProperty("useUnicode", "true");
+        hikari.addDataSourceProperty("characterEncoding", "UTF-8");
+        hikari.addDataSourceProperty("useServerPrepStmts", Boolean.toString(config.getServerPreparedStatements()));
+        hikari.addDataSourceProperty("cachePrepStmts", "true");
+        hikari.addDataSourceProperty("prepStmtCacheSize", Integer.toString(config.getPreparedStatementCacheSize()));
+        hikari.addDataSourceProperty("prepStmtCacheSqlLimit", "2048");
+
+        hikari.setMetricsTrackerFactory(new PoolMetrics());
+        return new HikariDataSource(hikari);
+    }
+
+    /** Exposes the gauges of a connection pool via {@link Metrics}: active, idle and total connections, threads waiting for a
+     * connection, the accumulated and maximum time spent waiting for a connection and the number of timeouts. */
+    private static class PoolMetrics implements MetricsTrackerFactory {
+        @Override
+        public IMetricsTracker create(String poolName, PoolStats poolStats) {
+            String prefix = "db." + poolName + ".";
+            Metrics.gauge(prefix + "active", poolStats::getActiveConnections);
+            Metrics.gauge(prefix + "idle", poolStats::getIdleConnections);
+            Metrics.gauge(prefix + "total", poolStats::getTotalConnections);
+            Metrics.gauge(prefix + "waiting", poolStats::getPendingThreads);
+            AtomicLong acquired = Metrics.counter(prefix + "acquired");
+            AtomicLong waitMillis = Metrics.counter(prefix + "waitMillis");
+            AtomicLong maxWaitMillis = Metrics.counter(prefix + "maxWaitMillis");
+            AtomicLong timeouts = Metrics.counter(prefix + "timeouts");
+
+            return new IMetricsTracker() {
+                @Override
+                public void recordConnectionAcquiredNanos(long elapsedAcquiredNanos) {
+                    long millis = TimeUnit.NANOSECONDS.toMillis(elapsedAcquiredNanos);
+                    acquired.incrementAndGet();
+                    waitMillis.addAndGet(millis);
+                    maxWaitMillis.accumulateAndGet(millis, Math::max);
+                }
+
+                @Override
+                public void recordConnectionTimeout() {
+                    timeouts.incrementAndGet();
+                }
+            };
+        }
+    }
 }
@@ -0,0 +1,226 @@
+package io.paperbots;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+import org.jdbi.v3.core.Handle;
+import org.jdbi.v3.core.Jdbi;
+
+import com.esotericsoftware.minlog.Log;
+
+import io.paperbots.Emails.Email;
+
+/** Durable queue of outgoing emails. Emails are inserted into the <code>emailOutbox</code> table as part of the caller's
+ * transaction via {@link #enqueue(Handle, String, String, String)}. A background dispatcher polls the table, and sends due emails
+ * in batches on a small thread pool once the inserting transaction has been committed. Each batch goes out over a single SMTP
+ * connection, see {@link Emails#send(List)}. Emails are leased while they wait for and go through a send, the dispatcher renews
+ * the lease until the send completed, however long the batch takes. Failed sends are retried with exponential backoff.
+ * After {@link #MAX_ATTEMPTS} attempts an email is marked as failed and kept in the table for inspection. */
+public class EmailOutbox {
+	private static final int MAX_ATTEMPTS = 8;
+	private static final int MAX_BATCH_SIZE = 20;
+	private static final long POLL_INTERVAL = 1000;
+	private static final int LEASE_SECONDS = 120;
+	private static final long LEASE_RENEWAL_INTERVAL = LEASE_SECONDS * 1000 / 4;
+	private static final int BASE_BACKOFF_SECONDS = 10;
+	private static final int MAX_BACKOFF_SECONDS = 60 * 60;
+	private static final long CLOSE_TIMEOUT = 1000 * 10;
+
+	private final Jdbi jdbi;
+	private final Emails emails;
+	private final int threads;
+	private final ScheduledExecutorService poller;
+	private final ExecutorService senders;
+	private final AtomicInteger inFlight = new AtomicInteger();
+	private final Set<Integer> leased = ConcurrentHashMap.newKeySet();
+	private long lastLeaseRenewal;
+	private final AtomicLong sent = Metrics.counter("emailOutbox.sent");
+	private final AtomicLong retried = Metrics.counter("emailOutbox.retried");
+	private final AtomicLong failed = Metrics.counter("emailOutbox.failed");
+	private volatile long pending;
+
+	/** @param threads the number of threads sending emails concurrently */
+	public EmailOutbox (Jdbi jdbi, Emails emails, int threads) {
+		this.jdbi = jdbi;
+		this.emails = emails;
+		this.threads = threads;
+		this.poller = Executors.newSingleThreadScheduledExecutor(daemonThreads("Email outbox poller"));
+		this.senders = Executors.newFixedThreadPool(threads, daemonThreads("Email outbox sender"));
+		Metrics.gauge("emailOutbox.pending", () -> pending);
+		Metrics.gauge("emailOutbox.inFlight", inFlight::get);
+		poller.scheduleWithFixedDelay(this::poll, POLL_INTERVAL, POLL_INTERVAL, TimeUnit.MILLISECONDS);
+	}
+
+	/** Queues the email. The email will only be sent once the transaction of the handle has been committed. */
+	public void enqueue (Handle handle, String to, String subject, String message) {
+		//@off
+		handle.createUpdate("insert into emailOutbox (recipient, subject, message) value (:recipient, :subject, :message)")
+			.bind("recipient", to)
+			.bind("subject", subject)
+			.bind("message", message)
+			.execute();
+		//@on
+	}
+
+	/** @return the number of emails that have not been sent yet, as of the last poll. */
+	public long getPending () {
+		return pending;
+	}
+
+	/** Stops polling and waits for the emails being sent. Emails still being sent after {@link #CLOSE_TIMEOUT} are sent again once
+	 * their lease expired. */
+	public void close () {
+		poller.shutdown();
+		try {
+			// A running poll may still hand emails to the senders.
+			poller.awaitTermination(CLOSE_TIMEOUT, TimeUnit.MILLISECONDS);
+			senders.shutdown();
+			senders.awaitTermination(CLOSE_TIMEOUT, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void poll () {
+		try {
+			renewLeases();
+
+			int capacity = threads * MAX_BATCH_SIZE - inFlight.get();
+			if (capacity <= 0) return;
+
+			// Claim due emails by pushing their next attempt past a lease, so they aren't picked up
+			// again while being sent. Should the server die mid-send, they are retried once the lease expires.
+			List<OutboxEmail> due = jdbi.inTransaction(handle -> {
+				List<OutboxEmail> emails = handle
+					.createQuery(
+						"select id, recipient, subject, message, attempts from emailOutbox where failed=0 and nextAttempt <= NOW() order by nextAttempt limit :limit for update")
+					.bind("limit", capacity).map( (rs, ctx) -> new OutboxEmail(rs.getInt("id"), rs.getInt("attempts"),
+						new Email(rs.getString("recipient"), rs.getString("subject"), rs.getString("message"))))
+					.list();
+				if (!emails.isEmpty()) {
+					handle.createUpdate("update emailOutbox set nextAttempt=DATE_ADD(NOW(), INTERVAL :lease SECOND) where id in (<ids>)")
+						.bind("lease", LEASE_SECONDS).bindList("ids", emails.stream().map(e -> e.id).collect(Collectors.toList())).execute();
+				}
+				pending = handle.createQuery("select count(*) from emailOutbox where failed=0").mapTo(Long.class).findOnly();
+				return emails;
+			});
+			for (OutboxEmail email : due)
+				leased.add(email.id);
+
+			// Spread the emails evenly across the sender threads.
+			int batchSize = Math.max(1, (due.size() + threads - 1) / threads);
+			for (int i = 0; i < due.size(); i += batchSize) {
+				List<OutboxEmail> batch = due.subList(i, Math.min(due.size(), i + batchSize));
+				inFlight.addAndGet(batch.size());
+				senders.execute( () -> send(batch));
+			}
+		} catch (Throwable t) {
+			Log.error("Couldn't poll email outbox", t);
+		}
+	}
+
+	/** Pushes the next attempt of the emails waiting for or going through a send past another lease. A batch can take longer than
+	 * a lease, e.g. if the SMTP server is slow to respond, and its emails must not be picked up again by the next poll while
+	 * being sent. */
+	private void renewLeases () {
+		long now = System.currentTimeMillis();
+		if (now - lastLeaseRenewal < LEASE_RENEWAL_INTERVAL) return;
+		lastLeaseRenewal = now;
+		List<Integer> ids = leased.stream().collect(Collectors.toList());
+		if (ids.isEmpty()) return;
+		jdbi.useHandle(handle -> handle.createUpdate("update emailOutbox set nextAttempt=DATE_ADD(NOW(), INTERVAL :lease SECOND) where id in (<ids>)")
+			.bind("lease", LEASE_SECONDS).bindList("ids", ids).execute());
+	}
+
+	private void send (List<OutboxEmail> batch) {
+		try {
+			List<Email> failedEmails;
+			try {
+				failedEmails = emails.send(batch.stream().map(e -> e.email).collect(Collectors.toList()));
+			} catch (Throwable t) {
+				Log.error("Couldn't send email batch", t);
+				failedEmails = batch.stream().map(e -> e.email).collect(Collectors.toList());
+			}
+
+			Set<Email> failedSet = Collections.newSetFromMap(new IdentityHashMap<>());
+			failedSet.addAll(failedEmails);
+			for (OutboxEmail email : batch) {
+				if (failedSet.contains(email.email))
+					reschedule(email);
+				else
+					delete(email);
+			}
+		} finally {
+			inFlight.addAndGet(-batch.size());
+		}
+	}
+
+	private void delete (OutboxEmail email) {
+		leased.remove(email.id);
+		try {
+			jdbi.useHandle(handle -> handle.createUpdate("delete from emailOutbox where id=:id").bind("id", email.id).execute());
+			sent.incrementAndGet();
+		} catch (Throwable t) {
+			// The email will be sent again once its lease expires.
+			Log.error("Couldn't remove sent email " + email.id + " from outbox", t);
+		}
+	}
+
+	private void reschedule (OutboxEmail email) {
+		leased.remove(email.id);
+		int attempts = email.attempts + 1;
+		boolean giveUp = attempts >= MAX_ATTEMPTS;
+		long backoff = Math.min(MAX_BACKOFF_SECONDS, (long)BASE_BACKOFF_SECONDS << (attempts - 1));
+		if (giveUp) {
+			Log.error("Giving up sending email " + email.id + " after " + attempts + " attempts");
+			failed.incrementAndGet();
+		} else {
+			Log.warn("Couldn't send email " + email.id + ", retrying in " + backoff + " seconds");
+			retried.incrementAndGet();
+		}
+		try {
+			//@off
+			jdbi.useHandle(handle -> handle.createUpdate("update emailOutbox set attempts=:attempts, failed=:failed, nextAttempt=DATE_ADD(NOW(), INTERVAL :backoff SECOND) where id=:id")
+				.bind("attempts", attempts)
+				.bind("failed", giveUp)
+				.bind("backoff", backoff)
+				.bind("id", email.id)
+				.execute());
+			//@on
+		} catch (Throwable t) {
+			Log.error("Couldn't update email " + email.id + " in outbox", t);
+		}
+	}
+
+	private static ThreadFactory daemonThreads (String name) {
+		AtomicInteger count = new AtomicInteger();
+		return runnable -> {
+			Thread thread = new Thread(runnable, name + " " + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		};
+	}
+
+	private static class OutboxEmail {
+		final int id;
+		final int attempts;
+		final Email email;
+
+		OutboxEmail (int id, int attempts, Email email) {
+			this.id = id;
+			this.attempts = attempts;
+			this.email = email;
+		}
+	}
+}
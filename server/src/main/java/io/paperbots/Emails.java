@@ -1,12 +1,15 @@
 
 package io.paperbots;
 
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 import java.util.Properties;
 
 import javax.mail.Message;
 import javax.mail.MessagingException;
 import javax.mail.PasswordAuthentication;
+import javax.mail.SendFailedException;
 import javax.mail.Session;
 import javax.mail.Transport;
 import javax.mail.internet.InternetAddress;
@@ -19,6 +22,48 @@ import io.paperbots.PaperbotsException.PaperbotsError;
 public interface Emails {
 	void send (String to, String subject, String message);
 
+	/** Sends all emails, reusing a single connection to the mail server if possible.
+	 * @return the emails that could not be sent. */
+	default List<Email> send (List<Email> emails) {
+		List<Email> failed = new ArrayList<>();
+		for (Email email : emails) {
+			try {
+				send(email.getTo(), email.getSubject(), email.getMessage());
+			} catch (Throwable t) {
+				Log.error("Could not send email", t);
+				failed.add(email);
+			}
+		}
+		return failed;
+	}
+
+	public static class Email {
+		private final String to;
+		private final String subject;
+		private final String message;
+
+		public Email (String to, String subject, String message) {
+			this.to = to;
+			this.subject = subject;
+			this.message = message;
+		}
+
+		public String getTo () {
+			return to;
+		}
+
+		public String getSubject () {
+			return subject;
+		}
+
+		public String getMessage () {
+			return message;
+		}
+	}
+
+	/** Sends emails via SMTP. A batch of emails goes out over a single connection to the SMTP server, so consecutive emails don't
+	 * pay for connecting, STARTTLS and authentication again. The connection is closed once the batch has been sent, so no idle
+	 * connections are left behind. Broken connections are re-established once per email. */
 	public static class JavaxEmails implements Emails {
 		private final Session session;
 		private final EmailConfig config;
@@ -32,7 +77,10 @@ public interface Emails {
 			props.put("mail.smtp.host", config.getHost()); // "smtp.gmail.com");
 			props.put("mail.smtp.port", config.getPort()); // "587");
 			props.put("mail.smtp.ssl.enable", config.getSslEnabled()); // off by default
+			// Bound every socket operation, so a send can't hang and hold its outbox lease forever.
+			props.put("mail.smtp.connectiontimeout", 10000);
 			props.put("mail.smtp.timeout", 10000);
+			props.put("mail.smtp.writetimeout", 10000);
 			this.session = Session.getInstance(props, new javax.mail.Authenticator() {
 				@Override
 				protected PasswordAuthentication getPasswordAuthentication () {
@@ -43,20 +91,78 @@ public interface Emails {
 
 		@Override
 		public void send (String to, String subject, String message) {
-			try {
-				MimeMessage msg = new MimeMessage(session);
-				InternetAddress[] address = InternetAddress.parse(to, true);
-				msg.setFrom(InternetAddress.parse(config.getEmail())[0]);
-				msg.setRecipients(Message.RecipientType.TO, address);
-				msg.setSubject(subject);
-				msg.setSentDate(new Date());
-				msg.setText(message);
-				msg.setHeader("XPriority", "1");
-				Transport.send(msg);
+			try (Connection connection = new Connection()) {
+				connection.send(createMessage(to, subject, message));
 			} catch (MessagingException e) {
 				Log.error("Could not send email", e);
 				throw new PaperbotsException(PaperbotsError.CouldNotSendEmail, e);
 			}
 		}
+
+		@Override
+		public List<Email> send (List<Email> emails) {
+			List<Email> failed = new ArrayList<>();
+			try (Connection connection = new Connection()) {
+				for (Email email : emails) {
+					try {
+						connection.send(createMessage(email.getTo(), email.getSubject(), email.getMessage()));
+					} catch (MessagingException e) {
+						Log.error("Could not send email", e);
+						failed.add(email);
+					}
+				}
+			}
+			return failed;
+		}
+
+		private MimeMessage createMessage (String to, String subject, String message) throws MessagingException {
+			MimeMessage msg = new MimeMessage(session);
+			InternetAddress[] address = InternetAddress.parse(to, true);
+			msg.setFrom(InternetAddress.parse(config.getEmail())[0]);
+			msg.setRecipients(Message.RecipientType.TO, address);
+			msg.setSubject(subject);
+			msg.setSentDate(new Date());
+			msg.setText(message);
+			msg.setHeader("XPriority", "1");
+			msg.saveChanges();
+			return msg;
+		}
+
+		/** A lazily opened connection to the SMTP server. */
+		private class Connection implements AutoCloseable {
+			private Transport transport;
+
+			void send (MimeMessage msg) throws MessagingException {
+				try {
+					getTransport().sendMessage(msg, msg.getAllRecipients());
+				} catch (SendFailedException e) {
+					// The server rejected the message itself, retrying won't help.
+					throw e;
+				} catch (MessagingException e) {
+					// The server may have closed the connection, reconnect once.
+					close();
+					getTransport().sendMessage(msg, msg.getAllRecipients());
+				}
+			}
+
+			private Transport getTransport () throws MessagingException {
+				if (transport != null && transport.isConnected()) return transport;
+				close();
+				transport = session.getTransport("smtp");
+				transport.connect(config.getHost(), config.getPort(), config.getEmail(), config.getPassword());
+				return transport;
+			}
+
+			@Override
+			public void close () {
+				if (transport == null) return;
+				try {
+					transport.close();
+				} catch (MessagingException e) {
+					// Connection is gone anyways.
+				}
+				transport = null;
+			}
+		}
 	}
 }
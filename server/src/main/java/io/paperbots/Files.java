@@ -1,17 +1,65 @@
-
 package io.paperbots;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+import com.esotericsoftware.minlog.Log;
 
 import io.paperbots.Config.FilesConfig;
 import io.paperbots.PaperbotsException.PaperbotsError;
 
-/** Handles user uploads of screenshots/thumbnails and any other types of files. */
+/** Handles user uploads of screenshots/thumbnails and any other types of files.
+ *
+ * Thumbnails are stored content-addressed: the PNG lives in <code>thumbnails/&lt;aa&gt;/&lt;hash&gt;.png</code>, where hash is
+ * the hex SHA-256 of the image and aa its first two characters. Projects with identical thumbnails share one file. A project refers
+ * to its thumbnail through the file <code>thumbnails/refs/&lt;bb&gt;/&lt;code&gt;</code>, which holds the hash. bb are the first two
+ * characters of the SHA-256 of the code, so both kinds of directories stay small. Files are written to a temporary file first and
+ * then atomically moved in place, so readers never see a partial file.
+ *
+ * Thumbnails written by older versions as <code>thumbnails/&lt;code&gt;.png</code> are moved into the store in the background, and
+ * served from their old location until then. Images no project refers to anymore are deleted periodically, together with the
+ * smaller sizes {@link ThumbnailPipeline} derived from them. */
 public class Files {
+	private static final Pattern PROJECT_CODE = Pattern.compile("[0-9A-Za-z]{1,32}");
+	private static final Pattern HASH = Pattern.compile("[0-9a-f]{64}");
+	/** Unreferenced images younger than this aren't deleted, their reference may be about to be written. */
+	private static final long ORPHAN_MIN_AGE = 1000 * 60 * 60;
+	private static final long ORPHAN_SWEEP_INTERVAL = 1000 * 60 * 60 * 24;
+	private static final int THUMBNAIL_HASHES_CACHE_SIZE = 100000;
+	private static final int COPY_BUFFER_SIZE = 8192;
+
 	private final FilesConfig config;
 	private final File filesDir;
 	private final File thumbnailsDir;
+	private final File refsDir;
+	private final File tmpDir;
+	private final Map<String, String> thumbnailHashes = new ConcurrentHashMap<>();
+	private final ScheduledExecutorService maintenance;
+	private final ThumbnailPipeline thumbnailPipeline;
+	private final AtomicLong deduplicated = Metrics.counter("thumbnails.deduplicated");
+	private final AtomicLong orphansDeleted = Metrics.counter("thumbnails.orphansDeleted");
 
 	public Files (FilesConfig config) {
 		this.config = config;
@@ -20,8 +68,23 @@ public class Files {
 			throw new IllegalArgumentException("Files directory " + config.getFilesDir() + " must be a directory, not a file.");
 		if (!this.filesDir.exists() && !this.filesDir.mkdirs()) throw new IllegalArgumentException("Couldn't create directory " + config.getFilesDir());
 		thumbnailsDir = new File(this.filesDir, "thumbnails");
-		if (!this.thumbnailsDir.exists() && !this.thumbnailsDir.mkdirs())
-			throw new IllegalArgumentException("Couldn't create directory " + this.thumbnailsDir.getParent());
+		refsDir = new File(thumbnailsDir, "refs");
+		tmpDir = new File(thumbnailsDir, "tmp");
+		for (File dir : new File[] {thumbnailsDir, refsDir, tmpDir}) {
+			if (!dir.exists() && !dir.mkdirs()) throw new IllegalArgumentException("Couldn't create directory " + dir.getPath());
+		}
+		// Left over by writes interrupted by a crash.
+		for (File tmp : tmpDir.listFiles())
+			tmp.delete();
+
+		thumbnailPipeline = new ThumbnailPipeline(this);
+		maintenance = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "Thumbnail maintenance");
+			thread.setDaemon(true);
+			return thread;
+		});
+		maintenance.execute(this::migrateLegacyThumbnails);
+		maintenance.scheduleWithFixedDelay(this::deleteOrphans, ORPHAN_SWEEP_INTERVAL, ORPHAN_SWEEP_INTERVAL, TimeUnit.MILLISECONDS);
 	}
 
 	public FilesConfig getConfig () {
@@ -32,16 +95,265 @@ public class Files {
 		return filesDir;
 	}
 
-	public void saveThumbnail (String projectId, byte[] content) {
-		if (projectId.contains("..")) throw new PaperbotsException(PaperbotsError.ServerError, "Couldn't write file");
-		saveFile(new File(this.thumbnailsDir, projectId + ".png"), content);
+	public ThumbnailPipeline getThumbnailPipeline () {
+		return thumbnailPipeline;
+	}
+
+	/** Stores the thumbnail of the project, replacing its previous thumbnail.
+	 * @return the hash of the thumbnail */
+	public String saveThumbnail (String projectId, byte[] content) {
+		return saveThumbnail(projectId, new ByteArrayInputStream(content));
 	}
 
-	private void saveFile (File file, byte[] content) {
+	/** Stores the thumbnail read from the stream as the project's thumbnail, replacing its previous thumbnail. The stream is copied
+	 * to a temporary file through a fixed size buffer and hashed along the way, so the thumbnail is never held in memory as a whole.
+	 * @return the hash of the thumbnail
+	 * @throws PaperbotsException InvalidArgument if the stream can't be read, e.g. because it decodes malformed base64, or if it
+	 *            holds more than {@link FilesConfig#getMaxThumbnailSize()} bytes. */
+	public String saveThumbnail (String projectId, InputStream content) {
+		checkProjectCode(projectId);
+		Path tmp = null;
 		try {
-			java.nio.file.Files.write(file.toPath(), content);
+			tmp = java.nio.file.Files.createTempFile(tmpDir.toPath(), projectId, ".tmp");
+			MessageDigest digest = sha256();
+			long size = 0;
+			byte[] buffer = new byte[COPY_BUFFER_SIZE];
+			try (OutputStream out = java.nio.file.Files.newOutputStream(tmp)) {
+				while (true) {
+					int read;
+					try {
+						read = content.read(buffer);
+					} catch (IOException e) {
+						throw new PaperbotsException(PaperbotsError.InvalidArgument, "Couldn't read thumbnail.", e);
+					}
+					if (read == -1) break;
+					size += read;
+					if (size > config.getMaxThumbnailSize())
+						throw new PaperbotsException(PaperbotsError.InvalidArgument, "Thumbnail is larger than " + config.getMaxThumbnailSize() + " bytes.");
+					digest.update(buffer, 0, read);
+					out.write(buffer, 0, read);
+				}
+			}
+			if (size == 0) throw new PaperbotsException(PaperbotsError.InvalidArgument, "Thumbnail is empty.");
+
+			String hash = toHex(digest.digest());
+			storeImage(hash, tmp);
+			writeAtomically(getRefFile(projectId), hash.getBytes(StandardCharsets.UTF_8));
+			cacheThumbnailHash(projectId, hash);
+			thumbnailPipeline.derive(hash);
+			return hash;
 		} catch (IOException e) {
 			throw new PaperbotsException(PaperbotsError.ServerError, "Couldn't write file", e);
+		} finally {
+			if (tmp != null) {
+				try {
+					java.nio.file.Files.deleteIfExists(tmp);
+				} catch (IOException e) {
+					Log.error("Couldn't delete " + tmp, e);
+				}
+			}
+		}
+	}
+
+	/** Removes the project's reference to its thumbnail. The image itself is deleted once no project refers to it. */
+	public void deleteThumbnail (String projectId) {
+		checkProjectCode(projectId);
+		thumbnailHashes.remove(projectId);
+		try {
+			java.nio.file.Files.deleteIfExists(getRefFile(projectId).toPath());
+			java.nio.file.Files.deleteIfExists(new File(thumbnailsDir, projectId + ".png").toPath());
+		} catch (IOException e) {
+			throw new PaperbotsException(PaperbotsError.ServerError, "Couldn't delete file", e);
+		}
+	}
+
+	/** @return the hash of the project's thumbnail, or null if the project has no thumbnail in the store. */
+	public String getThumbnailHash (String projectId) {
+		if (!PROJECT_CODE.matcher(projectId).matches()) return null;
+		String hash = thumbnailHashes.get(projectId);
+		if (hash != null) return hash;
+		try {
+			hash = new String(java.nio.file.Files.readAllBytes(getRefFile(projectId).toPath()), StandardCharsets.UTF_8).trim();
+		} catch (NoSuchFileException e) {
+			return null;
+		} catch (IOException e) {
+			throw new PaperbotsException(PaperbotsError.ServerError, "Couldn't read file", e);
+		}
+		if (!HASH.matcher(hash).matches()) return null;
+		cacheThumbnailHash(projectId, hash);
+		return hash;
+	}
+
+	/** @return the thumbnail file of the project, or null if the project has no thumbnail. */
+	public File getThumbnailFile (String projectId) {
+		String hash = getThumbnailHash(projectId);
+		if (hash != null) return getImageFile(hash);
+		if (!PROJECT_CODE.matcher(projectId).matches()) return null;
+		// Not migrated yet.
+		File legacy = new File(thumbnailsDir, projectId + ".png");
+		return legacy.exists() ? legacy : null;
+	}
+
+	/** @return the image derived from the image with the hash for the width, see {@link ThumbnailPipeline#getWidth(int)}, or null
+	 *         if it hasn't been derived yet. In that case, the derivation is enqueued. */
+	public File getDerivedThumbnailFile (String hash, int width) {
+		File file = getImageFile(hash, ThumbnailPipeline.getWidth(width));
+		if (file.exists()) return file;
+		thumbnailPipeline.derive(hash);
+		return null;
+	}
+
+	public void close () {
+		thumbnailPipeline.close();
+		maintenance.shutdownNow();
+	}
+
+	private void cacheThumbnailHash (String projectId, String hash) {
+		if (thumbnailHashes.size() >= THUMBNAIL_HASHES_CACHE_SIZE) thumbnailHashes.clear();
+		thumbnailHashes.put(projectId, hash);
+	}
+
+	/** Writes the image unless an image with the same hash is already stored. */
+	private void storeImage (String hash, byte[] content) throws IOException {
+		if (!touchImage(hash)) writeAtomically(getImageFile(hash), content);
+	}
+
+	/** Moves the temporary file in place as the image unless an image with the same hash is already stored. */
+	private void storeImage (String hash, Path tmp) throws IOException {
+		if (touchImage(hash)) return;
+		File file = getImageFile(hash);
+		File dir = file.getParentFile();
+		if (!dir.exists() && !dir.mkdirs() && !dir.exists()) throw new IOException("Couldn't create directory " + dir.getPath());
+		java.nio.file.Files.move(tmp, file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	/** Protects an existing image from the orphan sweep until the new reference to it is written.
+	 * @return whether the image exists */
+	private boolean touchImage (String hash) throws IOException {
+		File file = getImageFile(hash);
+		if (!file.exists()) return false;
+		try {
+			java.nio.file.Files.setLastModifiedTime(file.toPath(), FileTime.fromMillis(System.currentTimeMillis()));
+			deduplicated.incrementAndGet();
+			return true;
+		} catch (NoSuchFileException e) {
+			// Deleted by the sweep in the meantime, write it again.
+			return false;
+		}
+	}
+
+	void writeAtomically (File file, byte[] content) throws IOException {
+		File dir = file.getParentFile();
+		if (!dir.exists() && !dir.mkdirs() && !dir.exists()) throw new IOException("Couldn't create directory " + dir.getPath());
+		Path tmp = java.nio.file.Files.createTempFile(tmpDir.toPath(), file.getName(), ".tmp");
+		try {
+			java.nio.file.Files.write(tmp, content);
+			java.nio.file.Files.move(tmp, file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} finally {
+			java.nio.file.Files.deleteIfExists(tmp);
+		}
+	}
+
+	File getImageFile (String hash) {
+		return new File(new File(thumbnailsDir, hash.substring(0, 2)), hash + ".png");
+	}
+
+	File getImageFile (String hash, int width) {
+		return new File(new File(thumbnailsDir, hash.substring(0, 2)), hash + "-" + width + ".png");
+	}
+
+	private File getRefFile (String projectId) {
+		return new File(new File(refsDir, hash(projectId.getBytes(StandardCharsets.UTF_8)).substring(0, 2)), projectId);
+	}
+
+	/** Moves thumbnails written by older versions into the store. A thumbnail saved since then takes precedence. */
+	private void migrateLegacyThumbnails () {
+		int migrated = 0;
+		try (DirectoryStream<Path> legacyFiles = java.nio.file.Files.newDirectoryStream(thumbnailsDir.toPath(), "*.png")) {
+			for (Path legacyFile : legacyFiles) {
+				String name = legacyFile.getFileName().toString();
+				String projectId = name.substring(0, name.length() - ".png".length());
+				if (!PROJECT_CODE.matcher(projectId).matches()) continue;
+				try {
+					if (getThumbnailHash(projectId) == null) {
+						byte[] content = java.nio.file.Files.readAllBytes(legacyFile);
+						String hash = hash(content);
+						storeImage(hash, content);
+						// Don't overwrite a thumbnail saved concurrently.
+						try {
+							File ref = getRefFile(projectId);
+							ref.getParentFile().mkdirs();
+							java.nio.file.Files.write(ref.toPath(), hash.getBytes(StandardCharsets.UTF_8), StandardOpenOption.CREATE_NEW);
+						} catch (FileAlreadyExistsException e) {
+							// Keep the newer thumbnail.
+						}
+					}
+					java.nio.file.Files.deleteIfExists(legacyFile);
+					migrated++;
+				} catch (Throwable t) {
+					Log.error("Couldn't migrate thumbnail " + legacyFile, t);
+				}
+			}
+		} catch (Throwable t) {
+			Log.error("Couldn't migrate thumbnails", t);
 		}
+		if (migrated > 0) Log.info("Migrated " + migrated + " thumbnails");
+	}
+
+	/** Deletes images no project refers to anymore. */
+	void deleteOrphans () {
+		try {
+			Set<String> referenced = new HashSet<>();
+			try (DirectoryStream<Path> shards = java.nio.file.Files.newDirectoryStream(refsDir.toPath())) {
+				for (Path shard : shards) {
+					try (DirectoryStream<Path> refs = java.nio.file.Files.newDirectoryStream(shard)) {
+						for (Path ref : refs)
+							referenced.add(new String(java.nio.file.Files.readAllBytes(ref), StandardCharsets.UTF_8).trim());
+					}
+				}
+			}
+
+			long now = System.currentTimeMillis();
+			try (DirectoryStream<Path> shards = java.nio.file.Files.newDirectoryStream(thumbnailsDir.toPath(), "[0-9a-f][0-9a-f]")) {
+				for (Path shard : shards) {
+					try (DirectoryStream<Path> images = java.nio.file.Files.newDirectoryStream(shard, "*.png")) {
+						for (Path image : images) {
+							// Derived images are named after their original.
+							String name = image.getFileName().toString();
+							String hash = name.length() > 64 ? name.substring(0, 64) : name;
+							if (referenced.contains(hash)) continue;
+							if (now - java.nio.file.Files.getLastModifiedTime(image).toMillis() < ORPHAN_MIN_AGE) continue;
+							if (java.nio.file.Files.deleteIfExists(image)) orphansDeleted.incrementAndGet();
+						}
+					}
+				}
+			}
+		} catch (Throwable t) {
+			Log.error("Couldn't delete orphaned thumbnails", t);
+		}
+	}
+
+	private static void checkProjectCode (String projectId) {
+		if (projectId == null || !PROJECT_CODE.matcher(projectId).matches())
+			throw new PaperbotsException(PaperbotsError.InvalidArgument, "Invalid project code.");
+	}
+
+	static String hash (byte[] content) {
+		return toHex(sha256().digest(content));
+	}
+
+	static MessageDigest sha256 () {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new PaperbotsException(PaperbotsError.ServerError, "SHA-256 not available", e);
+		}
+	}
+
+	static String toHex (byte[] digest) {
+		StringBuilder hex = new StringBuilder(digest.length * 2);
+		for (byte b : digest)
+			hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+		return hex.toString();
 	}
 }
@@ -0,0 +1,79 @@
+package io.paperbots;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+
+import javax.servlet.ServletOutputStream;
+
+import org.eclipse.jetty.server.HttpOutput;
+
+import io.javalin.Context;
+
+/** Helpers for conditional requests, content negotiation and sending buffered content. */
+public class HttpCaching {
+	/** @return the time formatted as an HTTP date, e.g. for the <code>Last-Modified</code> header. */
+	public static String formatDate (long millis) {
+		return DateTimeFormatter.RFC_1123_DATE_TIME.format(Instant.ofEpochMilli(millis).atOffset(ZoneOffset.UTC));
+	}
+
+	/** Sets the <code>ETag</code> and, if lastModified is positive, the <code>Last-Modified</code> header, then checks the
+	 * request's <code>If-None-Match</code> and <code>If-Modified-Since</code> headers. If the client's copy is current, the
+	 * status is set to 304 Not Modified and true is returned. The caller must not send a body in that case. */
+	public static boolean checkNotModified (Context ctx, String etag, long lastModified) {
+		ctx.header("ETag", etag);
+		if (lastModified > 0) ctx.header("Last-Modified", formatDate(lastModified));
+
+		boolean notModified = false;
+		String ifNoneMatch = ctx.header("If-None-Match");
+		if (ifNoneMatch != null) {
+			for (String candidate : ifNoneMatch.split(",")) {
+				candidate = candidate.trim();
+				if (candidate.startsWith("W/")) candidate = candidate.substring(2);
+				if (candidate.equals(etag) || candidate.equals("*")) {
+					notModified = true;
+					break;
+				}
+			}
+		} else if (lastModified > 0) {
+			try {
+				long ifModifiedSince = ctx.req.getDateHeader("If-Modified-Since");
+				// HTTP dates have a resolution of one second.
+				notModified = ifModifiedSince != -1 && lastModified / 1000 <= ifModifiedSince / 1000;
+			} catch (IllegalArgumentException e) {
+				// Malformed date, send the full response.
+			}
+		}
+
+		if (notModified) ctx.status(304);
+		return notModified;
+	}
+
+	/** @return whether the client accepts gzip encoded responses. */
+	public static boolean acceptsGzip (Context ctx) {
+		String acceptEncoding = ctx.header("Accept-Encoding");
+		return acceptEncoding != null && acceptEncoding.toLowerCase().contains("gzip");
+	}
+
+	/** @return the ETag of the gzipped representation if gzip is true, else the ETag itself. The gzipped and identity bodies are
+	 * different representations and need their own strong ETags, otherwise a cache could answer a conditional request for one with
+	 * the other. */
+	public static String etag (String etag, boolean gzip) {
+		if (!gzip) return etag;
+		return etag.endsWith("\"") ? etag.substring(0, etag.length() - 1) + "-gz\"" : etag + "-gz";
+	}
+
+	/** Sends the remaining bytes of the buffer as the response body. Jetty writes direct and memory-mapped buffers to the socket
+	 * without copying them through the heap. */
+	public static void send (Context ctx, ByteBuffer content) throws IOException {
+		ServletOutputStream out = ctx.res.getOutputStream();
+		if (out instanceof HttpOutput) {
+			((HttpOutput)out).sendContent(content);
+		} else {
+			Channels.newChannel(out).write(content);
+		}
+	}
+}
@@ -0,0 +1,501 @@
+package io.paperbots;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.esotericsoftware.minlog.Log;
+
+import io.javalin.Context;
+import io.javalin.Handler;
+import io.paperbots.PaperbotsException.PaperbotsError;
+
+/** Serves <code>/api/proxyimage?url=&lt;url&gt;</code>, which lets canvas programs draw external images without tainting the
+ * canvas they are thumbnailed from. Fetched images are cached in two tiers: small images in memory, all images on disk in
+ * <code>proxy/&lt;aa&gt;/&lt;hash&gt;</code> of the files directory, where hash is the SHA-256 of the URL. Both tiers evict the
+ * least recently used images once they exceed their size limit. Fetched images are streamed to a temporary file, which becomes
+ * the image's disk file, so images are never buffered in the heap as a whole. Images larger than
+ * {@link #MAX_MEMORY_IMAGE_SIZE} are served from the memory-mapped file.
+ *
+ * An image is fresh for as long as the upstream server's <code>Cache-Control</code> or <code>Expires</code> header says, at most
+ * {@link #MAX_TTL}, and {@link #DEFAULT_TTL} if it says nothing. Images the upstream server marks <code>no-store</code> or
+ * <code>private</code> are passed through without being cached. Stale images are revalidated with <code>If-None-Match</code> or
+ * <code>If-Modified-Since</code> if the upstream server sent an ETag or modification date.
+ *
+ * Concurrent requests for an image that isn't cached are collapsed into a single upstream fetch, which all of them wait for. The
+ * fetch has connect and read timeouts, an overall deadline, and aborts once the image exceeds {@link #MAX_IMAGE_SIZE}. If it
+ * fails, a stale image is served if there is one. */
+public class ImageProxy implements Handler {
+	static final int MAX_IMAGE_SIZE = 5 * 1024 * 1024;
+	private static final int MAX_MEMORY_IMAGE_SIZE = 256 * 1024;
+	private static final long MEMORY_BYTES = 32 * 1024 * 1024;
+	private static final long DISK_BYTES = 512 * 1024 * 1024;
+	private static final long DEFAULT_TTL = 1000 * 60 * 60;
+	private static final long MAX_TTL = 1000 * 60 * 60 * 24 * 7;
+	private static final int CONNECT_TIMEOUT = 5 * 1000;
+	private static final int READ_TIMEOUT = 10 * 1000;
+	private static final long FETCH_DEADLINE = 20 * 1000;
+	private static final int DISK_FORMAT = 2;
+
+	private final File cacheDir;
+	private final File tmpDir;
+	private final long fetchDeadline;
+	private final int connectTimeout;
+	private final int readTimeout;
+	private final Map<String, CompletableFuture<CachedImage>> fetches = new ConcurrentHashMap<>();
+	private final LinkedHashMap<String, CachedImage> memory = new LinkedHashMap<>(256, 0.75f, true);
+	private long memoryBytes;
+	private final LinkedHashMap<String, Long> disk = new LinkedHashMap<>(1024, 0.75f, true);
+	private long diskBytes;
+
+	private final AtomicLong memoryHits = Metrics.counter("proxy.memoryHits");
+	private final AtomicLong diskHits = Metrics.counter("proxy.diskHits");
+	private final AtomicLong upstreamFetches = Metrics.counter("proxy.fetches");
+	private final AtomicLong revalidated = Metrics.counter("proxy.revalidated");
+	private final AtomicLong collapsed = Metrics.counter("proxy.collapsed");
+	private final AtomicLong failures = Metrics.counter("proxy.failures");
+
+	public ImageProxy (File filesDir) {
+		this(filesDir, CONNECT_TIMEOUT, READ_TIMEOUT, FETCH_DEADLINE);
+	}
+
+	ImageProxy (File filesDir, int connectTimeout, int readTimeout, long fetchDeadline) {
+		this.cacheDir = new File(filesDir, "proxy");
+		this.tmpDir = new File(cacheDir, "tmp");
+		this.connectTimeout = connectTimeout;
+		this.readTimeout = readTimeout;
+		this.fetchDeadline = fetchDeadline;
+		if (!tmpDir.exists() && !tmpDir.mkdirs()) throw new IllegalArgumentException("Couldn't create directory " + tmpDir.getPath());
+		// Left over by writes interrupted by a crash.
+		for (File tmp : tmpDir.listFiles())
+			tmp.delete();
+		loadDiskIndex();
+		Metrics.gauge("proxy.memoryBytes", this::getMemoryBytes);
+		Metrics.gauge("proxy.diskBytes", this::getDiskBytes);
+	}
+
+	@Override
+	public void handle (Context ctx) throws Exception {
+		CachedImage image;
+		try {
+			image = get(ctx.queryParam("url"));
+		} catch (PaperbotsException e) {
+			Log.info("Couldn't proxy " + ctx.queryParam("url") + ": " + e.getMessage());
+			ctx.status(e.getError() == PaperbotsError.InvalidArgument ? 404 : 502);
+			return;
+		}
+
+		long maxAge = image.cacheable ? Math.max(0, (image.expires - System.currentTimeMillis()) / 1000) : 0;
+		ctx.header("Cache-Control", image.cacheable ? "public, max-age=" + maxAge : "no-cache");
+		if (HttpCaching.checkNotModified(ctx, image.etag, 0)) return;
+		ctx.contentType(image.contentType);
+		ctx.res.setContentLength(image.content.remaining());
+		HttpCaching.send(ctx, image.content.duplicate());
+	}
+
+	/** @return the image at the URL, from the cache if it's fresh, otherwise from upstream.
+	 * @throws PaperbotsException InvalidArgument if the URL is invalid, or doesn't point to an image of at most
+	 *            {@link #MAX_IMAGE_SIZE} bytes, ServerError if it can't be fetched in time. */
+	CachedImage get (String url) {
+		URL parsedUrl = parseUrl(url);
+		String key = Files.hash(url.getBytes(StandardCharsets.UTF_8));
+		CachedImage cached = getCached(key);
+		if (cached != null && cached.isFresh()) return cached;
+
+		CompletableFuture<CachedImage> fetch = new CompletableFuture<>();
+		CompletableFuture<CachedImage> running = fetches.putIfAbsent(key, fetch);
+		if (running != null) {
+			collapsed.incrementAndGet();
+			return await(running);
+		}
+		try {
+			// A fetch that finished since the lookup above stored a fresh image.
+			cached = getCached(key);
+			CachedImage image;
+			if (cached != null && cached.isFresh()) {
+				image = cached;
+			} else {
+				try {
+					image = fetch(key, parsedUrl, cached);
+				} catch (PaperbotsException e) {
+					// Serve the stale image rather than none while upstream is unavailable.
+					if (cached == null || e.getError() != PaperbotsError.ServerError) throw e;
+					Log.info("Serving stale image, couldn't fetch " + url + ": " + e.getMessage());
+					failures.incrementAndGet();
+					image = cached;
+				}
+			}
+			fetch.complete(image);
+			return image;
+		} catch (Throwable t) {
+			failures.incrementAndGet();
+			fetch.completeExceptionally(t);
+			throw t;
+		} finally {
+			fetches.remove(key, fetch);
+		}
+	}
+
+	public synchronized long getMemoryBytes () {
+		return memoryBytes;
+	}
+
+	public long getDiskBytes () {
+		synchronized (disk) {
+			return diskBytes;
+		}
+	}
+
+	private CachedImage await (CompletableFuture<CachedImage> fetch) {
+		try {
+			return fetch.get(fetchDeadline, TimeUnit.MILLISECONDS);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof PaperbotsException) throw (PaperbotsException)e.getCause();
+			throw new PaperbotsException(PaperbotsError.ServerError, "Couldn't fetch image", e.getCause());
+		} catch (TimeoutException e) {
+			throw new PaperbotsException(PaperbotsError.ServerError, "Timed out waiting for image", e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new PaperbotsException(PaperbotsError.ServerError, "Interrupted waiting for image", e);
+		}
+	}
+
+	private static URL parseUrl (String url) {
+		if (url == null) throw new PaperbotsException(PaperbotsError.InvalidArgument, "URL must not be null.");
+		try {
+			URL parsed = new URL(url);
+			if (!parsed.getProtocol().equals("http") && !parsed.getProtocol().equals("https"))
+				throw new PaperbotsException(PaperbotsError.InvalidArgument, "Only http and https URLs can be proxied.");
+			return parsed;
+		} catch (MalformedURLException e) {
+			throw new PaperbotsException(PaperbotsError.InvalidArgument, "Invalid URL " + url, e);
+		}
+	}
+
+	/** Fetches the image, or revalidates the stale image if given, and caches it if upstream allows. */
+	private CachedImage fetch (String key, URL url, CachedImage stale) {
+		long deadline = System.currentTimeMillis() + fetchDeadline;
+		HttpURLConnection connection = null;
+		Path tmp = null;
+		try {
+			upstreamFetches.incrementAndGet();
+			connection = (HttpURLConnection)url.openConnection();
+			connection.setConnectTimeout(connectTimeout);
+			connection.setReadTimeout(readTimeout);
+			connection.setUseCaches(false);
+			if (stale != null) {
+				if (stale.upstreamEtag != null) connection.setRequestProperty("If-None-Match", stale.upstreamEtag);
+				if (stale.upstreamLastModified != null) connection.setRequestProperty("If-Modified-Since", stale.upstreamLastModified);
+			}
+
+			int status = connection.getResponseCode();
+			long now = System.currentTimeMillis();
+			if (status == 304 && stale != null) {
+				revalidated.incrementAndGet();
+				CachedImage image = new CachedImage(stale.contentType, stale.content, stale.etag, stale.upstreamEtag, stale.upstreamLastModified,
+					now + getTtl(connection), isCacheable(connection));
+				if (image.cacheable) store(key, image);
+				return image;
+			}
+			if (status == 404 || status == 410) throw new PaperbotsException(PaperbotsError.InvalidArgument, "Image not found: " + status);
+			if (status != 200) throw new PaperbotsException(PaperbotsError.ServerError, "Upstream responded with " + status);
+
+			String contentType = connection.getContentType();
+			if (contentType == null || !contentType.startsWith("image/")) throw new PaperbotsException(PaperbotsError.InvalidArgument, "Not an image: " + contentType);
+			if (connection.getContentLengthLong() > MAX_IMAGE_SIZE) throw new PaperbotsException(PaperbotsError.InvalidArgument, "Image too large");
+
+			// Stream the image into a file in the disk tier's format. The ETag and size are only known at the end, placeholders
+			// are written and overwritten once the image has been read.
+			String upstreamEtag = connection.getHeaderField("ETag");
+			String upstreamLastModified = connection.getHeaderField("Last-Modified");
+			long expires = now + getTtl(connection);
+			boolean cacheable = isCacheable(connection);
+			tmp = java.nio.file.Files.createTempFile(tmpDir.toPath(), key, ".tmp");
+			MessageDigest digest = Files.sha256();
+			int size = 0;
+			long trailerOffset;
+			try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+				DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+				writeHeader(out, contentType, upstreamEtag, upstreamLastModified, expires);
+				trailerOffset = out.size();
+				writeTrailer(out, "\"" + Files.toHex(new byte[16]) + "\"", 0);
+				try (InputStream in = connection.getInputStream()) {
+					byte[] buffer = new byte[8192];
+					int read;
+					while ((read = in.read(buffer)) != -1) {
+						if (size + read > MAX_IMAGE_SIZE) throw new PaperbotsException(PaperbotsError.InvalidArgument, "Image too large");
+						if (System.currentTimeMillis() > deadline) throw new PaperbotsException(PaperbotsError.ServerError, "Fetch took too long");
+						digest.update(buffer, 0, read);
+						out.write(buffer, 0, read);
+						size += read;
+					}
+				}
+				out.flush();
+
+				String etag = "\"" + Files.toHex(digest.digest()).substring(0, 32) + "\"";
+				ByteArrayOutputStream trailer = new ByteArrayOutputStream();
+				writeTrailer(new DataOutputStream(trailer), etag, size);
+				channel.write(ByteBuffer.wrap(trailer.toByteArray()), trailerOffset);
+
+				long contentOffset = trailerOffset + trailer.size();
+				CachedImage image = new CachedImage(contentType, read(channel, contentOffset, size), etag, upstreamEtag, upstreamLastModified,
+					expires, cacheable);
+				if (cacheable) {
+					storeInMemory(key, image);
+					try {
+						storeOnDisk(key, tmp);
+					} catch (IOException e) {
+						Log.error("Couldn't cache image " + getDiskFile(key), e);
+					}
+				}
+				return image;
+			}
+		} catch (IOException e) {
+			throw new PaperbotsException(PaperbotsError.ServerError, "Couldn't fetch " + url, e);
+		} finally {
+			if (connection != null) connection.disconnect();
+			// An image that isn't cached stays readable through its mapping once the file is deleted.
+			if (tmp != null) tmp.toFile().delete();
+		}
+	}
+
+	private static boolean isCacheable (HttpURLConnection connection) {
+		String cacheControl = connection.getHeaderField("Cache-Control");
+		if (cacheControl == null) return true;
+		cacheControl = cacheControl.toLowerCase();
+		return !cacheControl.contains("no-store") && !cacheControl.contains("private");
+	}
+
+	/** @return how long the upstream server allows the response to be cached. <code>s-maxage</code> takes precedence over
+	 *         <code>max-age</code>, which takes precedence over <code>Expires</code>. */
+	private static long getTtl (HttpURLConnection connection) {
+		String cacheControl = connection.getHeaderField("Cache-Control");
+		if (cacheControl != null) {
+			long maxAge = -1;
+			for (String directive : cacheControl.toLowerCase().split(",")) {
+				directive = directive.trim();
+				if (directive.equals("no-cache")) return 0;
+				try {
+					if (directive.startsWith("s-maxage=")) {
+						maxAge = Long.parseLong(directive.substring("s-maxage=".length()).trim());
+						break;
+					}
+					if (directive.startsWith("max-age=")) maxAge = Long.parseLong(directive.substring("max-age=".length()).trim());
+				} catch (NumberFormatException e) {
+					// Ignore malformed directives.
+				}
+			}
+			if (maxAge >= 0) return Math.min(MAX_TTL, maxAge * 1000);
+		}
+		long expires = connection.getHeaderFieldDate("Expires", -1);
+		if (expires != -1) {
+			long date = connection.getHeaderFieldDate("Date", System.currentTimeMillis());
+			return Math.max(0, Math.min(MAX_TTL, expires - date));
+		}
+		return DEFAULT_TTL;
+	}
+
+	private CachedImage getCached (String key) {
+		synchronized (this) {
+			CachedImage image = memory.get(key);
+			if (image != null) {
+				memoryHits.incrementAndGet();
+				return image;
+			}
+		}
+
+		synchronized (disk) {
+			// get, unlike containsKey, moves the entry to the end of the access order, so images in use aren't evicted.
+			if (disk.get(key) == null) return null;
+		}
+		File file = getDiskFile(key);
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			// Unbuffered, so the channel's position is at the content once the header has been read.
+			DataInputStream in = new DataInputStream(Channels.newInputStream(channel));
+			if (in.readInt() != DISK_FORMAT) {
+				// Written by a previous version.
+				removeFromDisk(key);
+				file.delete();
+				return null;
+			}
+			String contentType = in.readUTF();
+			String upstreamEtag = in.readUTF();
+			String upstreamLastModified = in.readUTF();
+			long expires = in.readLong();
+			String etag = in.readUTF();
+			int size = in.readInt();
+			CachedImage image = new CachedImage(contentType, read(channel, channel.position(), size), etag, upstreamEtag.isEmpty() ? null : upstreamEtag,
+				upstreamLastModified.isEmpty() ? null : upstreamLastModified, expires, true);
+			diskHits.incrementAndGet();
+			storeInMemory(key, image);
+			return image;
+		} catch (NoSuchFileException e) {
+			removeFromDisk(key);
+			return null;
+		} catch (IOException e) {
+			Log.error("Couldn't read cached image " + file, e);
+			removeFromDisk(key);
+			return null;
+		}
+	}
+
+	/** Caches a revalidated image, whose content is already in memory or mapped. */
+	private void store (String key, CachedImage image) {
+		storeInMemory(key, image);
+		Path tmp = null;
+		try {
+			tmp = java.nio.file.Files.createTempFile(tmpDir.toPath(), key, ".tmp");
+			try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+				ByteArrayOutputStream header = new ByteArrayOutputStream();
+				DataOutputStream out = new DataOutputStream(header);
+				writeHeader(out, image.contentType, image.upstreamEtag, image.upstreamLastModified, image.expires);
+				writeTrailer(out, image.etag, image.content.remaining());
+				ByteBuffer[] buffers = {ByteBuffer.wrap(header.toByteArray()), image.content.duplicate()};
+				while (buffers[1].hasRemaining())
+					channel.write(buffers);
+			}
+			storeOnDisk(key, tmp);
+		} catch (IOException e) {
+			Log.error("Couldn't cache image " + getDiskFile(key), e);
+		} finally {
+			if (tmp != null) tmp.toFile().delete();
+		}
+	}
+
+	/** Moves the image file written to the temporary file into the disk tier, evicting the least recently used images if the disk
+	 * tier is full. */
+	private void storeOnDisk (String key, Path tmp) throws IOException {
+		File file = getDiskFile(key);
+		File dir = file.getParentFile();
+		if (!dir.exists() && !dir.mkdirs() && !dir.exists()) throw new IOException("Couldn't create directory " + dir.getPath());
+		long size = java.nio.file.Files.size(tmp);
+		java.nio.file.Files.move(tmp, file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		synchronized (disk) {
+			Long previous = disk.put(key, size);
+			diskBytes += size - (previous != null ? previous : 0);
+			Iterator<Map.Entry<String, Long>> eldest = disk.entrySet().iterator();
+			while (diskBytes > DISK_BYTES && eldest.hasNext()) {
+				Map.Entry<String, Long> entry = eldest.next();
+				diskBytes -= entry.getValue();
+				eldest.remove();
+				// Images being served stay readable through their mappings.
+				getDiskFile(entry.getKey()).delete();
+			}
+		}
+	}
+
+	private static void writeHeader (DataOutputStream out, String contentType, String upstreamEtag, String upstreamLastModified, long expires)
+		throws IOException {
+		out.writeInt(DISK_FORMAT);
+		out.writeUTF(contentType);
+		out.writeUTF(upstreamEtag != null ? upstreamEtag : "");
+		out.writeUTF(upstreamLastModified != null ? upstreamLastModified : "");
+		out.writeLong(expires);
+	}
+
+	private static void writeTrailer (DataOutputStream out, String etag, int size) throws IOException {
+		out.writeUTF(etag);
+		out.writeInt(size);
+	}
+
+	/** @return the content of the image file, copied to the heap if it's small enough for the memory tier, memory-mapped
+	 *         otherwise. */
+	private static ByteBuffer read (FileChannel channel, long offset, int size) throws IOException {
+		if (size > MAX_MEMORY_IMAGE_SIZE) return channel.map(FileChannel.MapMode.READ_ONLY, offset, size);
+		ByteBuffer content = ByteBuffer.allocate(size);
+		while (content.hasRemaining() && channel.read(content, offset + content.position()) != -1)
+			;
+		if (content.hasRemaining()) throw new IOException("Truncated image");
+		content.flip();
+		return content.asReadOnlyBuffer();
+	}
+
+	private synchronized void storeInMemory (String key, CachedImage image) {
+		if (image.content.remaining() > MAX_MEMORY_IMAGE_SIZE) return;
+		CachedImage previous = memory.put(key, image);
+		memoryBytes += image.content.remaining() - (previous != null ? previous.content.remaining() : 0);
+		Iterator<CachedImage> eldest = memory.values().iterator();
+		while (memoryBytes > MEMORY_BYTES && eldest.hasNext()) {
+			memoryBytes -= eldest.next().content.remaining();
+			eldest.remove();
+		}
+	}
+
+	private void removeFromDisk (String key) {
+		synchronized (disk) {
+			Long size = disk.remove(key);
+			if (size != null) diskBytes -= size;
+		}
+	}
+
+	/** Indexes the images cached on disk by a previous run, least recently modified first. */
+	private void loadDiskIndex () {
+		File[] shards = cacheDir.listFiles( (dir, name) -> name.matches("[0-9a-f]{2}"));
+		File[] files = Arrays.stream(shards).flatMap(shard -> Arrays.stream(shard.listFiles())).sorted(Comparator.comparingLong(File::lastModified))
+			.toArray(File[]::new);
+		synchronized (disk) {
+			for (File file : files) {
+				disk.put(file.getName(), file.length());
+				diskBytes += file.length();
+			}
+		}
+	}
+
+	private File getDiskFile (String key) {
+		return new File(new File(cacheDir, key.substring(0, 2)), key);
+	}
+
+	static class CachedImage {
+		final String contentType;
+		/** Read-only, in the heap for images of at most {@link ImageProxy#MAX_MEMORY_IMAGE_SIZE} bytes, memory-mapped otherwise. Use
+		 * a duplicate to read it. */
+		final ByteBuffer content;
+		final String etag;
+		final String upstreamEtag;
+		final String upstreamLastModified;
+		final long expires;
+		final boolean cacheable;
+
+		CachedImage (String contentType, ByteBuffer content, String etag, String upstreamEtag, String upstreamLastModified, long expires,
+			boolean cacheable) {
+			this.contentType = contentType;
+			this.content = content;
+			this.etag = etag;
+			this.upstreamEtag = upstreamEtag;
+			this.upstreamLastModified = upstreamLastModified;
+			this.expires = expires;
+			this.cacheable = cacheable;
+		}
+
+		boolean isFresh () {
+			return System.currentTimeMillis() < expires;
+		}
+	}
+}
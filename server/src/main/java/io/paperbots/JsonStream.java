@@ -0,0 +1,89 @@
+package io.paperbots;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.zip.GZIPOutputStream;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import io.javalin.Context;
+
+/** Writes a JSON response incrementally to the servlet output stream, so large lists can be sent as they are read from the
+ * database, without holding them in memory. Nothing is written until the first value, so errors raised before that, e.g.
+ * by authentication, are still reported as regular error responses. Clients that accept gzip get a compressed response. */
+public class JsonStream {
+	private static final ObjectMapper json = new ObjectMapper();
+	private static final String STARTED_ATTRIBUTE = JsonStream.class.getName() + ".started";
+
+	/** Writes a part of the response that isn't a streamed value, e.g. the start of an array. */
+	public static interface Section {
+		void write (JsonGenerator generator) throws IOException;
+	}
+
+	private final Context ctx;
+	private final Section start;
+	private JsonGenerator generator;
+
+	/** @param start writes everything before the first value */
+	public JsonStream (Context ctx, Section start) {
+		this.ctx = ctx;
+		this.start = start;
+	}
+
+	/** Streams an array. Pass {@link #write(Object)} as the consumer of the elements, then call {@link #finishArray()}. */
+	public static JsonStream array (Context ctx) {
+		return new JsonStream(ctx, JsonGenerator::writeStartArray);
+	}
+
+	/** Sends a single value. Unlike {@link Context#json(Object)}, whether the response is compressed only depends on the request's
+	 * <code>Accept-Encoding</code> header, not on the size of the body, so the ETag can be chosen up front, see
+	 * {@link HttpCaching#etag(String, boolean)}. */
+	public static void send (Context ctx, Object value) throws IOException {
+		JsonStream stream = new JsonStream(ctx, generator -> {
+		});
+		stream.write(value);
+		stream.finish(generator -> {
+		});
+	}
+
+	/** @return whether a stream has started writing the response of the request. */
+	public static boolean isStarted (Context ctx) {
+		return ctx.req.getAttribute(STARTED_ATTRIBUTE) != null;
+	}
+
+	public void write (Object value) {
+		try {
+			if (generator == null) open();
+			generator.writeObject(value);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/** Writes everything after the last value and completes the response. */
+	public void finish (Section end) throws IOException {
+		if (generator == null) open();
+		end.write(generator);
+		generator.close();
+	}
+
+	public void finishArray () throws IOException {
+		finish(JsonGenerator::writeEndArray);
+	}
+
+	private void open () throws IOException {
+		ctx.req.setAttribute(STARTED_ATTRIBUTE, Boolean.TRUE);
+		ctx.header("Vary", "Accept-Encoding");
+		ctx.contentType("application/json");
+		OutputStream out = ctx.res.getOutputStream();
+		if (HttpCaching.acceptsGzip(ctx)) {
+			ctx.header("Content-Encoding", "gzip");
+			out = new GZIPOutputStream(out, 8192);
+		}
+		generator = json.getFactory().createGenerator(out, JsonEncoding.UTF8);
+		start.write(generator);
+	}
+}
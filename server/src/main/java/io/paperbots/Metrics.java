@@ -0,0 +1,35 @@
+package io.paperbots;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/** Registry of named counters and gauges. Components register their metrics on construction, admins can retrieve a snapshot of
+ * all metrics via the <code>api/getmetricsadmin</code> endpoint, see {@link Server}. Registering a metric under an existing name
+ * replaces the previous metric. */
+public class Metrics {
+	private static final Map<String, Supplier<Number>> metrics = new ConcurrentSkipListMap<>();
+
+	/** Registers a gauge that is evaluated each time a snapshot is taken. */
+	public static void gauge (String name, Supplier<Number> gauge) {
+		metrics.put(name, gauge);
+	}
+
+	/** Creates and registers a new counter. */
+	public static AtomicLong counter (String name) {
+		AtomicLong counter = new AtomicLong();
+		metrics.put(name, counter::get);
+		return counter;
+	}
+
+	/** @return the current value of every registered metric, sorted by name. */
+	public static Map<String, Number> snapshot () {
+		Map<String, Number> snapshot = new LinkedHashMap<>();
+		for (Map.Entry<String, Supplier<Number>> entry : metrics.entrySet()) {
+			snapshot.put(entry.getKey(), entry.getValue().get());
+		}
+		return snapshot;
+	}
+}
@@ -2,16 +2,36 @@
 package io.paperbots;
 
 import java.io.File;
-import java.io.UnsupportedEncodingException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
 import java.security.SecureRandom;
-import java.text.SimpleDateFormat;
+import java.sql.SQLIntegrityConstraintViolationException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Base64;
-import java.util.Date;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 
 import org.apache.commons.validator.routines.EmailValidator;
+import org.jdbi.v3.core.ConnectionException;
 import org.jdbi.v3.core.Handle;
+import org.jdbi.v3.core.HandleCallback;
 import org.jdbi.v3.core.Jdbi;
+import org.jdbi.v3.core.mapper.RowMapper;
+import org.jdbi.v3.core.mapper.reflect.BeanMapper;
+import org.jdbi.v3.core.result.ResultIterable;
+import org.jdbi.v3.core.result.ResultIterator;
+import org.jdbi.v3.core.statement.Query;
+import org.jdbi.v3.core.statement.UnableToExecuteStatementException;
 import org.owasp.encoder.Encode;
 
 import com.esotericsoftware.minlog.Log;
@@ -22,7 +42,11 @@ import io.marioslab.basis.arguments.Arguments;
 import io.marioslab.basis.arguments.Arguments.ParsedArguments;
 import io.marioslab.basis.template.TemplateContext;
 import io.paperbots.PaperbotsException.PaperbotsError;
+import io.paperbots.ReadReplicas.Replica;
+import io.paperbots.SaveCoalescer.PendingSave;
+import io.paperbots.SearchIndex.SearchResult;
 import io.paperbots.data.Project;
+import io.paperbots.data.ProjectRevision;
 import io.paperbots.data.ProjectType;
 import io.paperbots.data.User;
 import io.paperbots.data.UserType;
@@ -61,10 +85,13 @@ public class Paperbots {
 			}
 
 			Jdbi jdbi = Database.setupDatabase(config.getDatabaseConfig(), false);
+			ReadReplicas replicas = Database.setupReplicas(config.getDatabaseConfig());
 			Emails emails = new Emails.JavaxEmails(config.getEmailConfig());
 			Files files = new Files(config.getFilesConfig());
-			Paperbots paperbots = new Paperbots(jdbi, emails, files);
-			new Server(paperbots, parsed.has(reloadArg), staticFiles);
+			Paperbots paperbots = new Paperbots(jdbi, replicas, emails, files);
+			Server server = new Server(paperbots, parsed.has(reloadArg), staticFiles, config.getServerConfig());
+			// Drain requests and write pending saves when the process is terminated, e.g. by docker stop.
+			Runtime.getRuntime().addShutdownHook(new Thread(server::shutdown, "Shutdown hook"));
 		} catch (Throwable e) {
 			Log.error(e.getMessage(), e);
 			args.printHelp(System.out);
@@ -73,20 +100,105 @@ public class Paperbots {
 		}
 	}
 
-	private final Emails emails;
+	private static final int TOKEN_CACHE_SIZE = 10000;
+	private static final long TOKEN_CACHE_TTL = 1000 * 60 * 10;
+
+	private static final int EMAIL_THREADS = 2;
+	private static final int MAX_PAGE_SIZE = 100;
+	private static final int DEFAULT_PAGE_SIZE = 50;
+	/** Length of the <code>projects.title</code> column, HTML encoded. */
+	private static final int MAX_TITLE_LENGTH = 255;
+	/** Limits of the UTF-8 encoded description and content, so a save, including its preview, fits MySQL's default
+	 * <code>max_allowed_packet</code> of 4 MB. */
+	private static final int MAX_DESCRIPTION_BYTES = 64 * 1024;
+	private static final int MAX_CONTENT_BYTES = 1024 * 1024;
+	private static final int PROJECT_OWNERS_CACHE_SIZE = 100000;
+	private static final String FEATURED_KEY = "featured";
+	private static final byte[] THUMBNAIL_PREFIX = "data:image/png;base64,".getBytes(StandardCharsets.US_ASCII);
+
+	/** Maps a project row whose content was selected as <code>storedContent</code>, decoding the content via {@link ContentCodec}. */
+	private static final RowMapper<Project> PROJECT_BEAN = BeanMapper.of(Project.class);
+	private static final RowMapper<Project> PROJECT_WITH_CONTENT = (rs, ctx) -> {
+		Project project = PROJECT_BEAN.map(rs, ctx);
+		project.setContent(ContentCodec.decode(rs.getBytes("storedContent")));
+		return project;
+	};
+
+	private final EmailOutbox outbox;
+	private final ProjectRevisions revisions;
+	private final SaveCoalescer saves;
+	private final SearchIndex searchIndex = new SearchIndex();
+	private final Map<String, User> projectOwners = new ConcurrentHashMap<>();
 	private final Jdbi jdbi;
+	private final ReadReplicas replicas;
 	private final Files files;
+	private final TokenCache tokenCache = new TokenCache(TOKEN_CACHE_SIZE, TOKEN_CACHE_TTL);
+	private final ThreadLocal<UnitOfWork> currentUnitOfWork = new ThreadLocal<>();
+	private final AtomicLong droppedSaves = Metrics.counter("saves.dropped");
+
+	private static final long FEATURED_PROJECTS_MAX_AGE = 1000 * 60 * 5;
+	private final Object featuredProjectsLock = new Object();
+	private final AtomicLong featuredProjectsGeneration = new AtomicLong();
+	private volatile CachedResponse featuredProjects;
+	private volatile long featuredProjectsBuilt;
+	private volatile boolean featuredProjectsStale = true;
+	private volatile Set<String> featuredProjectCodes = Collections.emptySet();
 
 	public Paperbots (Jdbi jdbi, Emails emails, Files files) {
+		this(jdbi, ReadReplicas.none(), emails, files);
+	}
+
+	/** @param replicas the read replicas the read-only queries of project pages and lists are sent to, see
+	 *           {@link #withReadHandle(String, HandleCallback)} */
+	public Paperbots (Jdbi jdbi, ReadReplicas replicas, Emails emails, Files files) {
 		this.jdbi = jdbi;
-		this.emails = emails;
+		this.replicas = replicas;
+		this.outbox = new EmailOutbox(jdbi, emails, EMAIL_THREADS);
+		this.revisions = new ProjectRevisions(jdbi);
+		this.saves = new SaveCoalescer(new File(files.getFilesDir(), "saves.journal"), this::writeSave);
 		this.files = files;
+		Metrics.gauge("tokenCache.size", tokenCache::size);
+		Metrics.gauge("tokenCache.hits", tokenCache::getHits);
+		Metrics.gauge("tokenCache.misses", tokenCache::getMisses);
+		ProjectPreviews.startBackfill(jdbi);
+		ContentCodec.startReencode(jdbi);
+		buildSearchIndex();
 	}
 
 	public Files getFiles () {
 		return files;
 	}
 
+	public TokenCache getTokenCache () {
+		return tokenCache;
+	}
+
+	public ReadReplicas getReplicas () {
+		return replicas;
+	}
+
+	public ProjectRevisions getRevisions () {
+		return revisions;
+	}
+
+	public SaveCoalescer getSaves () {
+		return saves;
+	}
+
+	public SearchIndex getSearchIndex () {
+		return searchIndex;
+	}
+
+	/** Writes all pending saves and stops the background work. Call once no requests are served anymore, see
+	 * {@link Server#shutdown()}. */
+	public void close () {
+		saves.close();
+		outbox.close();
+		revisions.close();
+		replicas.close();
+		files.close();
+	}
+
 	public void signup (String name, String email, UserType type) {
 		if (name == null) throw new PaperbotsException(PaperbotsError.InvalidArgument, "User name must not be null.");
 		if (name.trim().length() == 0) throw new PaperbotsException(PaperbotsError.InvalidArgument, "User name must not be empty.");
@@ -112,39 +224,32 @@ public class Paperbots {
 			}
 		}
 
-		jdbi.withHandle(handle -> {
-			// TODO this should be done in a transaction
-
-			// Check if that name exists
+		inTransaction(handle -> {
+			// Insert the user unless the email is already taken. The unique key on the name
+			// column guards against duplicate names, even for concurrent signups.
+			Optional<Integer> id;
 			try {
-				handle.createQuery("SELECT name FROM users WHERE name=:name").bind("name", verifiedName).mapTo(String.class).findOnly();
-				throw new PaperbotsException(PaperbotsError.UserExists);
-			} catch (IllegalStateException t) {
-				// Fall through, name does not yet exist.
+				//@off
+				id = handle.createUpdate("insert into users (name, email, type) select :name, :email, :type from dual where not exists (select id from users where email=:email)")
+					.bind("name", verifiedName)
+					.bind("email", verifiedEmail)
+					.bind("type", type)
+					.executeAndReturnGeneratedKeys("id").mapTo(Integer.class).findFirst();
+				//@on
+			} catch (UnableToExecuteStatementException e) {
+				if (e.getCause() instanceof SQLIntegrityConstraintViolationException) throw new PaperbotsException(PaperbotsError.UserExists);
+				throw new PaperbotsException(PaperbotsError.ServerError, e);
 			}
 
-			// Check if user exists
-			try {
-				User user = handle.createQuery("SELECT id, name FROM users WHERE email=:email").bind("email", verifiedEmail).mapToBean(User.class).findOnly();
-				if (!verifiedName.equals(user.getName())) {
-					throw new PaperbotsException(PaperbotsError.EmailExists);
-				}
-				sendCode(handle, user.getId(), user.getName(), verifiedEmail);
-				return null;
-			} catch (IllegalStateException t) {
-				// Fall through, user does not yet exist.
+			if (!id.isPresent()) {
+				String existingName = handle.createQuery("select name from users where email=:email limit 1").bind("email", verifiedEmail).mapTo(String.class)
+					.findOnly();
+				throw new PaperbotsException(existingName.equalsIgnoreCase(verifiedName) ? PaperbotsError.UserExists : PaperbotsError.EmailExists);
 			}
 
-			// Insert user and send verification email
-			try {
-				handle.createUpdate("SET NAMES 'utf8mb4' COLLATE 'utf8mb4_unicode_ci'").execute();
-				int id = handle.createUpdate("insert into users (name, email, type) value (:name, :email, :type)").bind("name", verifiedName)
-					.bind("email", verifiedEmail).bind("type", type).executeAndReturnGeneratedKeys("id").mapTo(Integer.class).findOnly();
-				Log.info("Created user " + verifiedName);
-				sendCode(handle, id, verifiedName, verifiedEmail);
-			} catch (IllegalStateException t) {
-				throw new PaperbotsException(PaperbotsError.ServerError, t);
-			}
+			replicas.markWritten(userKey(verifiedName));
+			Log.info("Created user " + verifiedName);
+			sendCode(handle, id.get(), verifiedName, verifiedEmail);
 			return null;
 		});
 	}
@@ -154,7 +259,7 @@ public class Paperbots {
 		if (code.trim().length() == 0) throw new PaperbotsException(PaperbotsError.InvalidArgument, "Code must not be empty.");
 
 		final String verifiedCode = code.trim();
-		return jdbi.withHandle(handle -> {
+		return inTransaction(handle -> {
 			int userId = 0;
 			try {
 				userId = handle.createQuery("select userId from userCodes where code=:code").bind("code", verifiedCode).mapTo(Integer.class).findOnly();
@@ -181,8 +286,7 @@ public class Paperbots {
 
 		final String verifiedEmail = email.trim();
 
-		jdbi.withHandle(handle -> {
-			// TODO this should be done in a transaction
+		inTransaction(handle -> {
 			try {
 				User user = handle.createQuery("SELECT id, name, email FROM users WHERE email=:email or name=:name").bind("email", verifiedEmail)
 					.bind("name", verifiedEmail).mapToBean(User.class).findOnly();
@@ -196,10 +300,11 @@ public class Paperbots {
 	}
 
 	public void logout (String token) {
-		jdbi.withHandle(handle -> {
+		withHandle(handle -> {
 			handle.createUpdate("delete from userTokens where token=:token").bind("token", token).execute();
 			return null;
 		});
+		if (token != null) afterCommit( () -> tokenCache.invalidate(token.trim()));
 	}
 
 	private void sendCode (Handle handle, int userId, String name, String email) {
@@ -218,12 +323,8 @@ public class Paperbots {
 		}
 		String message = Templates.SIGNUP.render(new TemplateContext().set("name", name).set("code", code));
 
-		try {
-			emails.send(email, "Paperbots magic code", message);
-		} catch (Throwable t) {
-			handle.createUpdate("delete from userCodes where userId=:userId").bind("code", code).bind("userId", userId).execute();
-			throw t;
-		}
+		// The email is sent in the background once the code has been committed.
+		outbox.enqueue(handle, email, "Paperbots magic code", message);
 	}
 
 	public User getUserForToken (String token) {
@@ -232,10 +333,17 @@ public class Paperbots {
 
 		final String verifiedToken = token.trim();
 
-		return jdbi.withHandle(handle -> {
+		User cachedUser = tokenCache.get(verifiedToken);
+		if (cachedUser != null) return cachedUser;
+
+		// A unit of work may read the database as of when its transaction began, so a logout since then must prevent caching too.
+		UnitOfWork unitOfWork = currentUnitOfWork.get();
+		long invalidations = unitOfWork != null && unitOfWork.handle != null ? unitOfWork.tokenCacheInvalidations : tokenCache.getInvalidations();
+		return withHandle(handle -> {
 			try {
 				int userId = handle.createQuery("SELECT userId FROM userTokens WHERE token=:token").bind("token", verifiedToken).mapTo(Integer.class).findOnly();
 				User user = handle.createQuery("SELECT * FROM users WHERE id=:id").bind("id", userId).mapToBean(User.class).findOnly();
+				tokenCache.put(verifiedToken, user, invalidations);
 				return user;
 			} catch (IllegalStateException t) {
 				throw new PaperbotsException(PaperbotsError.UserDoesNotExist);
@@ -249,7 +357,7 @@ public class Paperbots {
 
 		final String verifiedName = name.trim();
 
-		return jdbi.withHandle(handle -> {
+		return withReadHandle(userKey(verifiedName), handle -> {
 			try {
 				User user = handle.createQuery("SELECT id, name FROM users WHERE name=:name").bind("name", name).mapToBean(User.class).findOnly();
 				return user;
@@ -259,91 +367,228 @@ public class Paperbots {
 		});
 	}
 
+	/** Saves the project. New projects are written right away. Saves of existing projects are acknowledged once journaled, and
+	 * coalesced by the {@link SaveCoalescer}. Reads of a project see the latest save. */
 	public String saveProject (String token, String code, String projectUserName, String title, String description, String content, boolean isPublic,
 		ProjectType type) {
 		// Fetch the user based on the token
 		User user = getUserForToken(token);
 
-		return jdbi.withHandle(handle -> {
+		if (content == null) throw new PaperbotsException(PaperbotsError.InvalidArgument, "Content must not be null.");
+		String encodedTitle = Encode.forHtml(title);
+		String encodedDescription = Encode.forHtml(description);
+		validateProject(encodedTitle, encodedDescription, content);
+		if (code != null) {
+			User owner = getProjectOwner(code);
+			if (owner.getId() != user.getId() && user.getType() != UserType.admin) throw new PaperbotsException(PaperbotsError.ProjectDoesNotExist);
+			saves.save(new PendingSave(code, owner.getName(), encodedTitle, encodedDescription, content, isPublic, type));
+			// Featured projects are shown to everyone, don't keep them stale.
+			if (featuredProjectCodes.contains(code)) saves.flush(code);
+			return code;
+		}
+
+		String projectCode = generateId(6);
+		inTransaction(handle -> {
+			//@off
+			handle.createUpdate("insert into projects (userId, userName, code, title, description, content, preview, public, type) value (:userId, :userName, :code, :title, :description, :content, :preview, :isPublic, :type)")
+				.bind("userId", user.getId())
+				.bind("userName", user.getName())
+				.bind("code", projectCode)
+				.bind("title", encodedTitle)
+				.bind("description", encodedDescription)
+				.bind("content", ContentCodec.encode(content))
+				.bind("preview", ProjectPreviews.fromContent(content, type))
+				.bind("isPublic", isPublic)
+				.bind("type", type)
+				.execute();
+			//@on
+			revisions.add(handle, projectCode, content);
+			replicas.markWritten(projectKey(projectCode));
+			replicas.markWritten(userKey(user.getName()));
+			Project project = queryIndexedFields(handle, projectCode);
+			afterCommit( () -> searchIndex.update(project, content));
+			return null;
+		});
+		Log.info("Created project " + projectCode + " of user " + user.getName());
+		return projectCode;
+	}
+
+	/** Rejects projects that don't fit their columns or a MySQL packet. Saves are checked before they are acknowledged, as the
+	 * {@link SaveCoalescer} writes them later. */
+	private static void validateProject (String title, String description, String content) {
+		if (title.codePointCount(0, title.length()) > MAX_TITLE_LENGTH)
+			throw new PaperbotsException(PaperbotsError.InvalidArgument, "Title must be at most " + MAX_TITLE_LENGTH + " characters.");
+		if (description.getBytes(StandardCharsets.UTF_8).length > MAX_DESCRIPTION_BYTES)
+			throw new PaperbotsException(PaperbotsError.InvalidArgument, "Description must be at most " + MAX_DESCRIPTION_BYTES + " bytes.");
+		if (content.getBytes(StandardCharsets.UTF_8).length > MAX_CONTENT_BYTES)
+			throw new PaperbotsException(PaperbotsError.InvalidArgument, "Content must be at most " + MAX_CONTENT_BYTES + " bytes.");
+	}
+
+	/** Writes a coalesced save to the database. Reads flush pending saves from within their unit of work, so the save is written
+	 * with its handle instead of holding a second connection. The save stays pending until the unit of work has been committed.
+	 * Flushes by the {@link SaveCoalescer} itself run in their own transaction.
+	 * @return whether the write has been committed, see {@link SaveCoalescer.Writer} */
+	private boolean writeSave (PendingSave save) {
+		replicas.markWritten(projectKey(save.code));
+		replicas.markWritten(userKey(save.userName));
+		UnitOfWork unitOfWork = currentUnitOfWork.get();
+		if (unitOfWork != null) {
+			unitOfWork.afterCommit.add( () -> saves.committed(save));
+			unitOfWork.afterRollback.add( () -> saves.rolledBack(save));
+		}
+		inTransaction(handle -> {
+			//@off
+			int rows = handle.createUpdate("update projects set title=:title, description=:description, content=:content, preview=:preview, public=:isPublic, version=version+1 where code=:code")
+				.bind("title", save.title)
+				.bind("description", save.description)
+				.bind("content", ContentCodec.encode(save.content))
+				.bind("preview", ProjectPreviews.fromContent(save.content, save.type))
+				.bind("isPublic", save.isPublic)
+				.bind("code", save.code)
+				.execute();
+			//@on
+			if (rows == 0) {
+				// The project was deleted after the save was acknowledged.
+				droppedSaves.incrementAndGet();
+				Log.warn("Dropped save of deleted project " + save.code + " of user " + save.userName);
+				return null;
+			}
+			revisions.add(handle, save.code, save.content);
+			Project project = queryIndexedFields(handle, save.code);
+			afterCommit( () -> {
+				searchIndex.update(project, save.content);
+				if (featuredProjectCodes.contains(save.code)) invalidateFeaturedProjects();
+			});
+			return null;
+		});
+		return unitOfWork == null;
+	}
+
+	/** Returns the id and name of the owner of the project. Projects never change owners, so owners are cached. */
+	private User getProjectOwner (String code) {
+		User owner = projectOwners.get(code);
+		if (owner != null) return owner;
+		owner = withHandle(handle -> {
 			try {
-				if (code == null) {
-					String projectCode = generateId(6);
-					//@off
-					handle.createUpdate("SET NAMES 'utf8mb4' COLLATE 'utf8mb4_unicode_ci'").execute();
-					handle.createUpdate("insert into projects (userId, userName, code, title, description, content, public, type) value (:userId, :userName, :code, :title, :description, :content, :isPublic, :type)")
-						.bind("userId", user.getId())
-						.bind("userName", user.getName())
-						.bind("code", projectCode)
-						.bind("title", Encode.forHtml(title))
-						.bind("description", Encode.forHtml(description))
-						.bind("content", content)
-						.bind("isPublic", isPublic)
-						.bind("type", type)
-						.execute();
-					//@on
-					Log.info("Created project " + projectCode + " of user " + user.getName());
-					return projectCode;
-				} else {
-					//@off
-					User projectUser = getUserForName(projectUserName);
-					if (projectUser.getId() != user.getId()) {
-						if (user.getType() != UserType.admin) throw new PaperbotsException(PaperbotsError.ProjectDoesNotExist);
-					}
-					handle.createUpdate("SET NAMES 'utf8mb4' COLLATE 'utf8mb4_unicode_ci'").execute();
-					int rows = handle.createUpdate("update projects set title=:title, description=:description, content=:content, public=:isPublic where code=:code and userId=:userId")
-						.bind("title", Encode.forHtml(title))
-						.bind("description", Encode.forHtml(description))
-						.bind("content", content)
-						.bind("isPublic", isPublic)
-						.bind("code", code)
-						.bind("userId", projectUser.getId())
-						.execute();
-					//@on
-					if (rows == 0) throw new PaperbotsException(PaperbotsError.ProjectDoesNotExist);
-					return code;
-				}
+				return handle.createQuery("SELECT userId AS id, userName AS name FROM projects WHERE code=:code").bind("code", code).mapToBean(User.class)
+					.findOnly();
 			} catch (IllegalStateException t) {
-				throw new PaperbotsException(PaperbotsError.ServerError, t);
+				throw new PaperbotsException(PaperbotsError.ProjectDoesNotExist);
 			}
 		});
+		if (projectOwners.size() >= PROJECT_OWNERS_CACHE_SIZE) projectOwners.clear();
+		projectOwners.put(code, owner);
+		return owner;
 	}
 
-	public void saveThumbnail (String token, String code, String thumbnail) {
-		if (!thumbnail.startsWith("data:image/png;base64,")) throw new PaperbotsException(PaperbotsError.ProjectDoesNotExist);
-		thumbnail = thumbnail.substring("data:image/png;base64,".length());
-		byte[] decodedThumbnail;
-		try {
-			decodedThumbnail = Base64.getDecoder().decode(thumbnail.getBytes("UTF-8"));
-		} catch (UnsupportedEncodingException e) {
-			throw new PaperbotsException(PaperbotsError.ServerError, "Couldn't decode thumbnail", e);
-		}
+	/** Stores the thumbnail of the project. The caller must own the project or be an admin. The thumbnail is read from the stream as
+	 * a PNG data URL, and decoded while it is written to disk, see {@link Files#saveThumbnail(String, InputStream)}. Nothing is read
+	 * from the stream before the caller is authenticated. The project's version is incremented, so cached copies of the project
+	 * and its owner's project list pick up the new thumbnail hash. */
+	public void saveThumbnail (String token, String code, InputStream dataUrl) {
 		User user = getUserForToken(token);
-		jdbi.withHandle(handle -> {
+		String userName = withHandle(handle -> {
 			try {
 				Project project = handle.createQuery("SELECT userName FROM projects WHERE code=:code").bind("code", code).mapToBean(Project.class).findOnly();
 				if (user.getType() != UserType.admin && !project.getUserName().equals(user.getName())) {
 					throw new PaperbotsException(PaperbotsError.ProjectDoesNotExist);
 				}
-				files.saveThumbnail(code, decodedThumbnail);
-				return null;
+				return project.getUserName();
 			} catch (Throwable t) {
 				throw new PaperbotsException(PaperbotsError.ProjectDoesNotExist);
 			}
 		});
+
+		try {
+			byte[] prefix = new byte[THUMBNAIL_PREFIX.length];
+			int read = 0;
+			while (read < prefix.length) {
+				int n = dataUrl.read(prefix, read, prefix.length - read);
+				if (n == -1) break;
+				read += n;
+			}
+			if (!Arrays.equals(prefix, THUMBNAIL_PREFIX)) throw new PaperbotsException(PaperbotsError.InvalidArgument, "Thumbnail must be a PNG data URL.");
+		} catch (IOException e) {
+			throw new PaperbotsException(PaperbotsError.InvalidArgument, "Couldn't read thumbnail.", e);
+		}
+		files.saveThumbnail(code, Base64.getDecoder().wrap(dataUrl));
+
+		replicas.markWritten(projectKey(code));
+		replicas.markWritten(userKey(userName));
+		withHandle(handle -> handle.createUpdate("update projects set lastModified=lastModified, version=version+1 where code=:code").bind("code", code)
+			.execute());
+		if (featuredProjectCodes.contains(code)) invalidateFeaturedProjects();
 	}
 
 	public Project getProject (String token, String projectId) {
+		return getProject(token, projectId, true);
+	}
+
+	/** @param includeContent whether to return the project's content. Clients can fetch the content separately via
+	 *           {@link #getProjectContent(String, String)}, which avoids decompressing it. */
+	public Project getProject (String token, String projectId, boolean includeContent) {
+		saves.flush(projectId);
 		User user = token != null && token.length() > 0 ? getUserForToken(token) : null;
 
-		return jdbi.withHandle(handle -> {
+		return withReadHandle(projectKey(projectId), handle -> {
 			try {
-				Project project = handle
-					.createQuery("SELECT code, userName, title, description, content, public, type, lastModified, created FROM projects WHERE code=:code")
-					.bind("code", projectId).mapToBean(Project.class).findOnly();
+				Query query = handle.createQuery("SELECT code, userName, title, description, public, type, lastModified, created"
+					+ (includeContent ? ", content AS storedContent" : "") + " FROM projects WHERE code=:code").bind("code", projectId);
+				Project project = (includeContent ? query.map(PROJECT_WITH_CONTENT) : query.mapToBean(Project.class)).findOnly();
 				if (!project.isPublic() && (user == null || !project.getUserName().equals(user.getName()))) {
 					throw new PaperbotsException(PaperbotsError.ProjectDoesNotExist);
 				}
-				return project;
+				return withThumbnail(project);
+			} catch (IllegalStateException t) {
+				throw new PaperbotsException(PaperbotsError.ProjectDoesNotExist);
+			}
+		});
+	}
+
+	/** Returns the content of a project as stored in the database, see {@link ContentCodec}. Performs the same visibility check as
+	 * {@link #getProject(String, String)}. */
+	public byte[] getProjectContent (String token, String projectId) {
+		saves.flush(projectId);
+		User user = token != null && token.length() > 0 ? getUserForToken(token) : null;
+
+		return withReadHandle(projectKey(projectId), handle -> {
+			try {
+				//@off
+				return handle.createQuery("SELECT userName, public, content FROM projects WHERE code=:code")
+					.bind("code", projectId)
+					.map( (rs, ctx) -> {
+						if (!rs.getBoolean("public") && (user == null || !rs.getString("userName").equals(user.getName()))) {
+							throw new PaperbotsException(PaperbotsError.ProjectDoesNotExist);
+						}
+						return rs.getBytes("content");
+					}).findOnly();
+				//@on
+			} catch (IllegalStateException t) {
+				throw new PaperbotsException(PaperbotsError.ProjectDoesNotExist);
+			}
+		});
+	}
+
+	/** Returns the version of a project, used to answer conditional requests without loading the project. The ETag derives from
+	 * the project's version column, which every modification increments. Performs the same visibility check as
+	 * {@link #getProject(String, String)}. */
+	public ResourceVersion getProjectVersion (String token, String projectId) {
+		saves.flush(projectId);
+		User user = token != null && token.length() > 0 ? getUserForToken(token) : null;
+
+		return withReadHandle(projectKey(projectId), handle -> {
+			try {
+				//@off
+				return handle.createQuery("SELECT userName, public, lastModified, version FROM projects WHERE code=:code")
+					.bind("code", projectId)
+					.map( (rs, ctx) -> {
+						if (!rs.getBoolean("public") && (user == null || !rs.getString("userName").equals(user.getName()))) {
+							throw new PaperbotsException(PaperbotsError.ProjectDoesNotExist);
+						}
+						long lastModified = rs.getTimestamp("lastModified").getTime();
+						return new ResourceVersion("\"" + projectId + "-" + rs.getInt("version") + "\"", lastModified, rs.getBoolean("public"));
+					}).findOnly();
+				//@on
 			} catch (IllegalStateException t) {
 				throw new PaperbotsException(PaperbotsError.ProjectDoesNotExist);
 			}
@@ -353,47 +598,256 @@ public class Paperbots {
 	public void deleteProject (String token, String projectId) {
 		User user = getUserForToken(token);
 
-		jdbi.withHandle(handle -> {
+		inTransaction(handle -> {
 			try {
 				Project project = handle.createQuery("SELECT userName FROM projects WHERE code=:code").bind("code", projectId).mapToBean(Project.class).findOnly();
 				if (!project.getUserName().equals(user.getName())) {
 					throw new PaperbotsException(PaperbotsError.ProjectDoesNotExist);
 				}
+				replicas.markWritten(projectKey(projectId));
+				replicas.markWritten(userKey(project.getUserName()));
 				handle.createUpdate("delete from projects where code=:code").bind("code", projectId).execute();
+				revisions.delete(handle, projectId);
+				afterCommit( () -> {
+					// Saves acknowledged from now on fail, as the owner is looked up again.
+					projectOwners.remove(projectId);
+					saves.discard(projectId);
+					searchIndex.remove(projectId);
+					files.deleteThumbnail(projectId);
+				});
 				return null;
 			} catch (IllegalStateException t) {
 				throw new PaperbotsException(PaperbotsError.ProjectDoesNotExist);
 			}
 		});
+		if (featuredProjectCodes.contains(projectId)) invalidateFeaturedProjects();
+	}
+
+	/** Returns the revisions of a project, newest first. Only the owner of the project and admins can see its revisions. */
+	public List<ProjectRevision> getProjectRevisions (String token, String projectId) {
+		saves.flush(projectId);
+		User user = getUserForToken(token);
+
+		return withHandle(handle -> {
+			getOwnedProject(handle, user, projectId);
+			return revisions.list(handle, projectId);
+		});
+	}
+
+	/** Returns the content of a revision of a project. Only the owner of the project and admins can see its revisions. */
+	public String getProjectRevisionContent (String token, String projectId, int revision) {
+		saves.flush(projectId);
+		User user = getUserForToken(token);
+
+		return withHandle(handle -> {
+			getOwnedProject(handle, user, projectId);
+			String content = revisions.get(handle, projectId, revision);
+			if (content == null) throw new PaperbotsException(PaperbotsError.InvalidArgument, "Revision " + revision + " does not exist.");
+			return content;
+		});
+	}
+
+	/** Sets the content of a project to the content of one of its revisions. The restored content becomes the newest revision,
+	 * so the restore itself can be undone. */
+	public void restoreProjectRevision (String token, String projectId, int revision) {
+		saves.flush(projectId);
+		User user = getUserForToken(token);
+
+		inTransaction(handle -> {
+			Project project = getOwnedProject(handle, user, projectId);
+			String content = revisions.get(handle, projectId, revision);
+			if (content == null) throw new PaperbotsException(PaperbotsError.InvalidArgument, "Revision " + revision + " does not exist.");
+			replicas.markWritten(projectKey(projectId));
+			replicas.markWritten(userKey(project.getUserName()));
+			//@off
+			handle.createUpdate("update projects set content=:content, preview=:preview, version=version+1 where code=:code")
+				.bind("content", ContentCodec.encode(content))
+				.bind("preview", ProjectPreviews.fromContent(content, project.getType()))
+				.bind("code", projectId)
+				.execute();
+			//@on
+			revisions.add(handle, projectId, content);
+			Project indexed = queryIndexedFields(handle, projectId);
+			afterCommit( () -> searchIndex.update(indexed, content));
+			return null;
+		});
+		if (featuredProjectCodes.contains(projectId)) invalidateFeaturedProjects();
+	}
+
+	/** Searches the public projects by title, description, user name and the identifiers in their code, see {@link SearchIndex}.
+	 * Saves of existing projects show up in the results once the {@link SaveCoalescer} has written them. */
+	public SearchResult searchProjects (String query, int offset, int limit) {
+		if (query == null) throw new PaperbotsException(PaperbotsError.InvalidArgument, "Query must not be null.");
+		if (offset < 0) throw new PaperbotsException(PaperbotsError.InvalidArgument, "Offset must be >= 0.");
+		if (limit <= 0 || limit > SearchIndex.MAX_RESULTS)
+			throw new PaperbotsException(PaperbotsError.InvalidArgument, "Limit must be between 1 and " + SearchIndex.MAX_RESULTS + ".");
+		return searchIndex.search(query, offset, limit);
+	}
+
+	/** Loads all public projects into the search index. Rows are streamed, so only one project's content is held at a time. */
+	private void buildSearchIndex () {
+		long start = System.currentTimeMillis();
+		jdbi.useHandle(handle -> {
+			//@off
+			Query query = streamRows(handle.createQuery("SELECT code, userName, title, description, public, type, lastModified, created, content AS storedContent FROM projects WHERE public=1"));
+			//@on
+			try (ResultIterator<Project> projects = query.map(PROJECT_WITH_CONTENT).iterator()) {
+				while (projects.hasNext()) {
+					Project project = projects.next();
+					searchIndex.update(project, project.getContent());
+				}
+			}
+		});
+		Log.info("Indexed " + searchIndex.getDocumentCount() + " projects for search in " + (System.currentTimeMillis() - start) + " ms");
+	}
+
+	/** Returns the fields of the project stored in the {@link SearchIndex}. */
+	private Project queryIndexedFields (Handle handle, String code) {
+		return handle.createQuery("SELECT code, userName, title, description, public, type, lastModified, created FROM projects WHERE code=:code")
+			.bind("code", code).mapToBean(Project.class).findOnly();
+	}
+
+	/** Returns the user name and type of the project, if the user owns the project or is an admin. */
+	private Project getOwnedProject (Handle handle, User user, String projectId) {
+		try {
+			Project project = handle.createQuery("SELECT userName, type FROM projects WHERE code=:code").bind("code", projectId).mapToBean(Project.class)
+				.findOnly();
+			if (!project.getUserName().equals(user.getName()) && user.getType() != UserType.admin) {
+				throw new PaperbotsException(PaperbotsError.ProjectDoesNotExist);
+			}
+			return project;
+		} catch (IllegalStateException t) {
+			throw new PaperbotsException(PaperbotsError.ProjectDoesNotExist);
+		}
+	}
+
+	/** Returns the version of a user's project list as returned by {@link #getUserProjects(String, String, boolean)}. The ETag
+	 * derives from the number of visible projects and a hash over their codes and versions, so it changes whenever a project is
+	 * added, removed, hidden or modified. */
+	public ResourceVersion getUserProjectsVersion (String token, String userName, boolean worldData) {
+		if (userName == null) throw new PaperbotsException(PaperbotsError.InvalidArgument, "User name must not be null.");
+		saves.flushUser(userName);
+		User user = token != null && token.length() > 0 ? getUserForToken(token) : null;
+		boolean isOwner = user != null && userName.equals(user.getName());
+
+		return withReadHandle(userKey(userName), handle -> {
+			//@off
+			return handle.createQuery("SELECT COUNT(*) AS count, BIT_XOR(CRC32(CONCAT(code, '-', version))) AS hash, MAX(lastModified) AS lastModified FROM projects WHERE userName=:userName AND (public=1 OR :isOwner)")
+				.bind("userName", userName)
+				.bind("isOwner", isOwner)
+				.map( (rs, ctx) -> {
+					Timestamp lastModified = rs.getTimestamp("lastModified");
+					long time = lastModified != null ? lastModified.getTime() : 0;
+					String etag = "\"" + userName + "-" + rs.getInt("count") + "-" + Long.toHexString(rs.getLong("hash")) + (worldData ? "-p" : "") + (isOwner ? "-o" : "") + "\"";
+					return new ResourceVersion(etag, time, !isOwner);
+				}).findOnly();
+			//@on
+		});
 	}
 
+	/** Returns the first page of the user's projects, see {@link #getUserProjects(String, String, boolean, String, String, Integer)}. */
 	public Project[] getUserProjects (String token, String userName, boolean worldData) {
+		return getUserProjects(token, userName, worldData, null, null, null);
+	}
+
+	/** Returns a page of the user's projects, sorted by last modification time, newest first. Other users only see public
+	 * projects. If worldData is true, the projects' previews are returned, see {@link ProjectPreviews}.
+	 * @param cursorLastModified the lastModified value of the last project of the previous page, or null for the first page
+	 * @param cursorCode the code of the last project of the previous page, or null for the first page
+	 * @param pageSize the maximum number of projects to return, capped at {@link #MAX_PAGE_SIZE}, or null for
+	 *           {@link #DEFAULT_PAGE_SIZE} */
+	public Project[] getUserProjects (String token, String userName, boolean worldData, String cursorLastModified, String cursorCode,
+		Integer pageSize) {
+		List<Project> projects = new ArrayList<>();
+		getUserProjects(token, userName, worldData, cursorLastModified, cursorCode, pageSize, projects::add);
+		return projects.toArray(new Project[projects.size()]);
+	}
+
+	/** Like {@link #getUserProjects(String, String, boolean, String, String, Integer)}, but passes each project to the consumer
+	 * as it is read from the database, without holding the result in memory. The consumer must not access the database. */
+	public void getUserProjects (String token, String userName, boolean worldData, String cursorLastModified, String cursorCode,
+		Integer pageSize, Consumer<Project> consumer) {
+		if (userName == null) throw new PaperbotsException(PaperbotsError.InvalidArgument, "User name must not be null.");
+		if ((cursorLastModified == null) != (cursorCode == null))
+			throw new PaperbotsException(PaperbotsError.InvalidArgument, "Cursor requires both lastModified and code.");
+		if (pageSize != null && pageSize < 1) throw new PaperbotsException(PaperbotsError.InvalidArgument, "Page size must be positive.");
+		saves.flushUser(userName);
+
 		User user = token != null && token.length() > 0 ? getUserForToken(token) : null;
-		return jdbi.withHandle(handle -> {
-			List<Project> projects = worldData
-				? handle.createQuery(
-					"SELECT code, userName, title, public, type, lastModified, created, content FROM projects WHERE userName=:userName ORDER BY lastModified DESC")
-					.bind("userName", userName).mapToBean(Project.class).list()
-				: handle
-					.createQuery(
-						"SELECT code, userName, title, public, type, lastModified, created FROM projects WHERE userName=:userName ORDER BY lastModified DESC")
-					.bind("userName", userName).mapToBean(Project.class).list();
-
-			if (user == null || !userName.equals(user.getName())) {
-				return projects.stream().filter(p -> p.isPublic()).toArray(size -> new Project[size]);
-			} else {
-				return projects.toArray(new Project[projects.size()]);
+		boolean isOwner = user != null && userName.equals(user.getName());
+
+		StringBuilder sql = new StringBuilder("SELECT code, userName, title, public, type, lastModified, created");
+		if (worldData) sql.append(", preview");
+		sql.append(" FROM projects WHERE userName=:userName AND (public=1 OR :isOwner)");
+		if (cursorLastModified != null) sql.append(" AND (lastModified < :cursorLastModified OR (lastModified = :cursorLastModified AND code < :cursorCode))");
+		sql.append(" ORDER BY lastModified DESC, code DESC");
+		sql.append(" LIMIT :limit");
+
+		withReadHandle(userKey(userName), handle -> {
+			Query query = handle.createQuery(sql.toString()).bind("userName", userName).bind("isOwner", isOwner);
+			if (cursorLastModified != null) query.bind("cursorLastModified", cursorLastModified).bind("cursorCode", cursorCode);
+			query.bind("limit", pageSize != null ? Math.min(pageSize, MAX_PAGE_SIZE) : DEFAULT_PAGE_SIZE);
+			try (ResultIterator<Project> projects = streamRows(query).mapToBean(Project.class).iterator()) {
+				while (projects.hasNext())
+					consumer.accept(withThumbnail(projects.next()));
 			}
+			return null;
 		});
 	}
 
 	public Project[] getFeaturedProjects () {
-		return jdbi.withHandle(handle -> {
-			List<Project> projects = handle
-				.createQuery(
-					"SELECT code, userName, title, type, lastModified, created, content FROM projects WHERE featured=1 AND public=1 ORDER BY lastModified DESC")
-				.mapToBean(Project.class).list();
-			return projects.toArray(new Project[projects.size()]);
+		return withReadHandle(FEATURED_KEY, this::queryFeaturedProjects);
+	}
+
+	private Project[] queryFeaturedProjects (Handle handle) {
+		List<Project> projects = handle
+			.createQuery(
+				"SELECT code, userName, title, type, lastModified, created, preview FROM projects WHERE featured=1 AND public=1 ORDER BY lastModified DESC")
+			.mapToBean(Project.class).list();
+		projects.forEach(this::withThumbnail);
+		return projects.toArray(new Project[projects.size()]);
+	}
+
+	/** Returns the featured projects as a pre-serialized, pre-compressed JSON response. The response is rebuilt after a featured
+	 * project has been saved, deleted, or had its featured flag changed via {@link #setProjectFeaturedAdmin(String, String, boolean)}.
+	 * To pick up changes made directly in the database, it is also rebuilt after {@link #FEATURED_PROJECTS_MAX_AGE}. */
+	public CachedResponse getFeaturedProjectsResponse () {
+		if (!isFeaturedProjectsOutdated()) return featuredProjects;
+
+		synchronized (featuredProjectsLock) {
+			if (!isFeaturedProjectsOutdated()) return featuredProjects;
+
+			// Query outside of any unit of work, so the result reflects everything committed up to now.
+			long generation = featuredProjectsGeneration.get();
+			Project[] projects = jdbi.withHandle(this::queryFeaturedProjects);
+			long now = System.currentTimeMillis();
+			CachedResponse response = CachedResponse.json(projects, now);
+
+			// Keep the previous response if nothing changed, so its Last-Modified date stays valid.
+			CachedResponse previous = featuredProjects;
+			if (previous != null && previous.getETag().equals(response.getETag())) response = previous;
+
+			Set<String> codes = new HashSet<>();
+			for (Project project : projects)
+				codes.add(project.getCode());
+			featuredProjectCodes = codes;
+			featuredProjects = response;
+			featuredProjectsBuilt = now;
+
+			// Another invalidation may have happened while we were querying, in which case the response stays stale.
+			if (generation == featuredProjectsGeneration.get()) featuredProjectsStale = false;
+			return response;
+		}
+	}
+
+	private boolean isFeaturedProjectsOutdated () {
+		return featuredProjects == null || featuredProjectsStale || System.currentTimeMillis() - featuredProjectsBuilt > FEATURED_PROJECTS_MAX_AGE;
+	}
+
+	private void invalidateFeaturedProjects () {
+		afterCommit( () -> {
+			featuredProjectsGeneration.incrementAndGet();
+			featuredProjectsStale = true;
 		});
 	}
 
@@ -404,30 +858,284 @@ public class Paperbots {
 		Newest, Oldest, LastModified
 	}
 
-	public Project[] getProjectsAdmin (String token, Sorting sorting, String dateOffset) {
+	/** Returns a page of projects matching the filter. Pages are addressed via opaque cursors: pass null for the first page, and
+	 * the {@link ProjectsPage#nextCursor} of the previous page for subsequent pages. A cursor is only valid for the sort order it
+	 * was created with.
+	 * @param pageSize the maximum number of projects to return, capped at {@link #MAX_PAGE_SIZE}
+	 * @param includeContent whether to return the projects' content */
+	public ProjectsPage getProjectsAdmin (String token, Sorting sorting, ProjectFilter filter, String cursor, int pageSize, boolean includeContent) {
+		List<Project> projects = new ArrayList<>();
+		String nextCursor = getProjectsAdmin(token, sorting, filter, cursor, pageSize, includeContent, projects::add);
+		return new ProjectsPage(projects.toArray(new Project[projects.size()]), nextCursor);
+	}
+
+	/** Like {@link #getProjectsAdmin(String, Sorting, ProjectFilter, String, int, boolean)}, but passes each project to the
+	 * consumer as it is read from the database, without holding the page in memory. The consumer must not access the database.
+	 * @return the cursor of the next page, or null if this is the last page */
+	public String getProjectsAdmin (String token, Sorting sorting, ProjectFilter filter, String cursor, int pageSize, boolean includeContent,
+		Consumer<Project> consumer) {
 		User user = getUserForToken(token);
 		if (user.getType() != UserType.admin) throw new PaperbotsException(PaperbotsError.InvalidUserName);
-		return jdbi.withHandle(handle -> {
-			String sqlSorting = "created DESC";
-			if (sorting == Sorting.Newest) {
-				sqlSorting = "created DESC";
-			} else if (sorting == Sorting.Oldest) {
-				sqlSorting = "created ASC";
-			} else if (sorting == Sorting.LastModified) {
-				sqlSorting = "lastModified DESC";
+		if (pageSize < 1) throw new PaperbotsException(PaperbotsError.InvalidArgument, "Page size must be positive.");
+
+		final Sorting verifiedSorting = sorting != null ? sorting : Sorting.Newest;
+		final ProjectFilter verifiedFilter = filter != null ? filter : new ProjectFilter();
+		final int limit = Math.min(pageSize, MAX_PAGE_SIZE);
+		String sortColumn = verifiedSorting == Sorting.LastModified ? "lastModified" : "created";
+		String direction = verifiedSorting == Sorting.Oldest ? "ASC" : "DESC";
+		String comparison = verifiedSorting == Sorting.Oldest ? ">" : "<";
+
+		String[] cursorValues = null;
+		if (cursor != null) {
+			try {
+				cursorValues = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8).split("\\|", 3);
+			} catch (IllegalArgumentException e) {
+				throw new PaperbotsException(PaperbotsError.InvalidArgument, "Invalid cursor.");
 			}
-			String offset = dateOffset;
-			if (offset == null) {
-				offset = new SimpleDateFormat("yyyy-MM-dd hh:mm:ss").format(new Date());
+			if (cursorValues.length != 3 || !cursorValues[0].equals(verifiedSorting.name()))
+				throw new PaperbotsException(PaperbotsError.InvalidArgument, "Invalid cursor.");
+		}
+
+		StringBuilder sql = new StringBuilder("SELECT code, userName, title, public, featured, type, lastModified, created, preview");
+		if (includeContent) sql.append(", content AS storedContent");
+		sql.append(" FROM projects WHERE 1=1");
+		if (verifiedFilter.type != null) sql.append(" AND type=:type");
+		if (verifiedFilter.featured != null) sql.append(" AND featured=:featured");
+		if (verifiedFilter.isPublic != null) sql.append(" AND public=:isPublic");
+		if (verifiedFilter.userName != null) sql.append(" AND userName=:userName");
+		if (cursorValues != null) sql.append(" AND (" + sortColumn + " " + comparison + " :cursorValue OR (" + sortColumn + " = :cursorValue AND code "
+			+ comparison + " :cursorCode))");
+		sql.append(" ORDER BY " + sortColumn + " " + direction + ", code " + direction + " LIMIT :limit");
+
+		final String[] verifiedCursor = cursorValues;
+		return withHandle(handle -> {
+			Query query = handle.createQuery(sql.toString());
+			if (verifiedFilter.type != null) query.bind("type", verifiedFilter.type);
+			if (verifiedFilter.featured != null) query.bind("featured", verifiedFilter.featured);
+			if (verifiedFilter.isPublic != null) query.bind("isPublic", verifiedFilter.isPublic);
+			if (verifiedFilter.userName != null) query.bind("userName", verifiedFilter.userName);
+			if (verifiedCursor != null) query.bind("cursorValue", verifiedCursor[1]).bind("cursorCode", verifiedCursor[2]);
+
+			// Fetch one extra project to find out whether there's a next page.
+			query.bind("limit", limit + 1);
+			Project last = null;
+			int count = 0;
+			ResultIterable<Project> rows = includeContent ? streamRows(query).map(PROJECT_WITH_CONTENT) : streamRows(query).mapToBean(Project.class);
+			try (ResultIterator<Project> projects = rows.iterator()) {
+				while (projects.hasNext()) {
+					Project project = projects.next();
+					if (++count > limit) break;
+					consumer.accept(withThumbnail(project));
+					last = project;
+				}
 			}
-			List<Project> projects = handle
-				.createQuery("SELECT code, userName, title, public, type, lastModified, created, content FROM projects WHERE created < :dateOffset ORDER BY "
-					+ sqlSorting + " LIMIT 10")
-				.bind("dateOffset", offset).mapToBean(Project.class).list();
-			return projects.toArray(new Project[projects.size()]);
+			if (count <= limit) return null;
+			String value = verifiedSorting == Sorting.LastModified ? last.getLastModified() : last.getCreated();
+			return Base64.getUrlEncoder().withoutPadding()
+				.encodeToString((verifiedSorting.name() + "|" + value + "|" + last.getCode()).getBytes(StandardCharsets.UTF_8));
 		});
 	}
 
+	/** Filters for {@link Paperbots#getProjectsAdmin(String, Sorting, ProjectFilter, String, int, boolean)}. Null fields match
+	 * any project. */
+	public static class ProjectFilter {
+		public ProjectType type;
+		public Boolean featured;
+		public Boolean isPublic;
+		public String userName;
+
+		public ProjectFilter () {
+		}
+
+		public ProjectFilter (ProjectType type, Boolean featured, Boolean isPublic, String userName) {
+			this.type = type;
+			this.featured = featured;
+			this.isPublic = isPublic;
+			this.userName = userName;
+		}
+	}
+
+	public static class ProjectsPage {
+		public Project[] projects;
+		/** The cursor of the next page, or null if this is the last page. */
+		public String nextCursor;
+
+		public ProjectsPage () {
+		}
+
+		public ProjectsPage (Project[] projects, String nextCursor) {
+			this.projects = projects;
+			this.nextCursor = nextCursor;
+		}
+	}
+
+	public void setProjectFeaturedAdmin (String token, String projectId, boolean featured) {
+		User user = getUserForToken(token);
+		if (user.getType() != UserType.admin) throw new PaperbotsException(PaperbotsError.InvalidUserName);
+		saves.flush(projectId);
+		replicas.markWritten(FEATURED_KEY);
+		withHandle(handle -> {
+			int rows = handle.createUpdate("update projects set featured=:featured where code=:code").bind("featured", featured).bind("code", projectId)
+				.execute();
+			if (rows == 0) throw new PaperbotsException(PaperbotsError.ProjectDoesNotExist);
+			return null;
+		});
+		invalidateFeaturedProjects();
+	}
+
+	public Map<String, Number> getMetricsAdmin (String token) {
+		User user = getUserForToken(token);
+		if (user.getType() != UserType.admin) throw new PaperbotsException(PaperbotsError.InvalidUserName);
+		return Metrics.snapshot();
+	}
+
+	/** Executes the work as a single unit of work: all database access of the Paperbots methods called by the work shares one
+	 * handle and transaction. The transaction is started on the first database access, committed if the work completes
+	 * normally, and rolled back if it throws. Nested invocations join the outer unit of work. {@link Server} wraps each API
+	 * request in a unit of work. */
+	public void unitOfWork (Work work) throws Exception {
+		if (currentUnitOfWork.get() != null) {
+			work.run();
+			return;
+		}
+
+		UnitOfWork unitOfWork = new UnitOfWork();
+		currentUnitOfWork.set(unitOfWork);
+		try {
+			work.run();
+			unitOfWork.commit();
+		} catch (Throwable t) {
+			unitOfWork.rollback();
+			throw t;
+		} finally {
+			currentUnitOfWork.remove();
+			unitOfWork.close();
+		}
+	}
+
+	/** Runs the callback with the handle of the current unit of work, or a new handle if there is no unit of work. */
+	private <R> R withHandle (HandleCallback<R, RuntimeException> callback) {
+		UnitOfWork unitOfWork = currentUnitOfWork.get();
+		if (unitOfWork != null) return callback.withHandle(unitOfWork.getHandle());
+		return jdbi.withHandle(callback);
+	}
+
+	/** Runs a read-only callback on a read replica, outside of the current unit of work. Reads go to the primary instead if the
+	 * key was written recently, see {@link ReadReplicas#markWritten(String)}, or no replica is healthy. A replica that can't be
+	 * connected to is taken out of rotation and the read is retried on the primary. A replica whose query fails is taken out of
+	 * rotation too, but the failure is passed on, as a streaming callback may already have passed on rows. */
+	private <R> R withReadHandle (String key, HandleCallback<R, RuntimeException> callback) {
+		Replica replica = replicas.forRead(key);
+		if (replica == null) return withHandle(callback);
+
+		Handle handle;
+		try {
+			handle = replica.getJdbi().open();
+		} catch (ConnectionException e) {
+			replicas.markFailed(replica, e);
+			return withHandle(callback);
+		}
+		try {
+			return callback.withHandle(handle);
+		} catch (UnableToExecuteStatementException e) {
+			replicas.markFailed(replica, e);
+			throw e;
+		} finally {
+			handle.close();
+		}
+	}
+
+	/** Sets the hash of the project's thumbnail, so clients can request it by a versioned URL, see {@link ThumbnailHandler}. */
+	private Project withThumbnail (Project project) {
+		project.setThumbnail(files.getThumbnailHash(project.getCode()));
+		return project;
+	}
+
+	private static String projectKey (String code) {
+		return "project:" + code;
+	}
+
+	/** The key of a user and their project list. */
+	private static String userKey (String userName) {
+		return "user:" + userName;
+	}
+
+	/** Makes the MySQL driver stream the rows of the query one by one, instead of reading the whole result into memory. No other
+	 * statement can be run on the handle until all rows have been read or the result has been closed. */
+	private static Query streamRows (Query query) {
+		return query.setFetchSize(Integer.MIN_VALUE);
+	}
+
+	/** Runs the callback with the handle of the current unit of work, or in a new transaction if there is no unit of work. */
+	private <R> R inTransaction (HandleCallback<R, RuntimeException> callback) {
+		UnitOfWork unitOfWork = currentUnitOfWork.get();
+		if (unitOfWork != null) return callback.withHandle(unitOfWork.getHandle());
+		return jdbi.inTransaction(callback);
+	}
+
+	/** Runs the runnable once the current unit of work has been committed, or right away if there is no unit of work. Used to
+	 * invalidate caches, so concurrent requests can't repopulate them with data that is about to change. */
+	private void afterCommit (Runnable runnable) {
+		UnitOfWork unitOfWork = currentUnitOfWork.get();
+		if (unitOfWork != null)
+			unitOfWork.afterCommit.add(runnable);
+		else
+			runnable.run();
+	}
+
+	public static interface Work {
+		void run () throws Exception;
+	}
+
+	private class UnitOfWork {
+		private final List<Runnable> afterCommit = new ArrayList<>();
+		private final List<Runnable> afterRollback = new ArrayList<>();
+		private Handle handle;
+		/** The token cache's invalidations when the transaction began, see {@link #getUserForToken(String)}. */
+		private long tokenCacheInvalidations;
+
+		Handle getHandle () {
+			if (handle == null) {
+				tokenCacheInvalidations = tokenCache.getInvalidations();
+				handle = jdbi.open();
+				handle.begin();
+			}
+			return handle;
+		}
+
+		void commit () {
+			if (handle != null) handle.commit();
+			for (Runnable runnable : afterCommit) {
+				try {
+					runnable.run();
+				} catch (Throwable t) {
+					Log.error("Error in after commit callback", t);
+				}
+			}
+		}
+
+		void rollback () {
+			if (handle != null && handle.isInTransaction()) {
+				try {
+					handle.rollback();
+				} catch (Throwable t) {
+					Log.error("Couldn't roll back transaction", t);
+				}
+			}
+			for (Runnable runnable : afterRollback) {
+				try {
+					runnable.run();
+				} catch (Throwable t) {
+					Log.error("Error in after rollback callback", t);
+				}
+			}
+		}
+
+		void close () {
+			if (handle != null) handle.close();
+		}
+	}
+
 	private static char[] _base62chars = "0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz".toCharArray();
 	private static SecureRandom random = new SecureRandom();
 
@@ -438,6 +1146,22 @@ public class Paperbots {
 		return sb.toString();
 	}
 
+	/** Identifies a version of a resource for conditional requests. */
+	public static class ResourceVersion {
+		/** Strong ETag, including quotes. */
+		public final String etag;
+		/** Time of the last modification in milliseconds since the epoch, or 0 if unknown. */
+		public final long lastModified;
+		/** Whether the resource looks the same to every user, and may thus be stored in shared caches. */
+		public final boolean isPublic;
+
+		public ResourceVersion (String etag, long lastModified, boolean isPublic) {
+			this.etag = etag;
+			this.lastModified = lastModified;
+			this.isPublic = isPublic;
+		}
+	}
+
 	public static class TokenAndName {
 		public String token;
 		public String name;
@@ -3,7 +3,7 @@ package io.paperbots;
 
 public class PaperbotsException extends RuntimeException {
 	public static enum PaperbotsError {
-		InvalidArgument, InvalidEmailAddress, InvalidUserName, ServerError, UserDoesNotExist, UserExists, EmailExists, ProjectDoesNotExist, CouldNotCreateUser, CouldNotSendEmail, CouldNotCreateCode, CouldNotVerifyCode
+		InvalidArgument, InvalidEmailAddress, InvalidUserName, ServerError, UserDoesNotExist, UserExists, EmailExists, ProjectDoesNotExist, CouldNotCreateUser, CouldNotSendEmail, CouldNotCreateCode, CouldNotVerifyCode, CouldNotSaveProject
 	}
 
 	private static final long serialVersionUID = -8984556916130982262L;
@@ -0,0 +1,88 @@
+package io.paperbots;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jdbi.v3.core.Jdbi;
+
+import com.esotericsoftware.minlog.Log;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import io.paperbots.data.ProjectType;
+
+/** Derives the compact preview of a project that project lists ship instead of the full content. The content of a robot project
+ * is <code>{code, world: {tiles, robot}}</code>, where tiles is an array of 16x16 tiles, most of them null. The preview drops the
+ * code and stores the world sparsely as <code>{robot, tiles: [[index, tile], ...]}</code>. Canvas projects are previewed via their
+ * thumbnail, so their preview is empty.
+ *
+ * Projects saved before the <code>preview</code> column existed are filled in by {@link #startBackfill(Jdbi)}. */
+public class ProjectPreviews {
+	private static final String EMPTY_PREVIEW = "{}";
+	private static final int BACKFILL_BATCH_SIZE = 200;
+	private static final long BACKFILL_PAUSE = 100;
+
+	private static final ObjectMapper json = new ObjectMapper();
+
+	/** @return the preview for the content, or an empty preview if the content isn't valid project content. */
+	public static String fromContent (String content, ProjectType type) {
+		if (type != ProjectType.robot || content == null) return EMPTY_PREVIEW;
+		try {
+			JsonNode world = json.readTree(content).path("world");
+			ObjectNode preview = json.createObjectNode();
+			if (world.has("robot")) preview.set("robot", world.get("robot"));
+			ArrayNode tiles = preview.putArray("tiles");
+			JsonNode allTiles = world.path("tiles");
+			for (int i = 0; i < allTiles.size(); i++) {
+				JsonNode tile = allTiles.get(i);
+				if (tile == null || tile.isNull()) continue;
+				tiles.addArray().add(i).add(tile);
+			}
+			return json.writeValueAsString(preview);
+		} catch (IOException e) {
+			return EMPTY_PREVIEW;
+		}
+	}
+
+	/** Fills in the previews of projects that don't have one yet, in batches on a background thread. Saving a project always sets
+	 * its preview, so the backfill only ever has to deal with projects saved by an older version of the server. */
+	public static void startBackfill (Jdbi jdbi) {
+		Thread thread = new Thread( () -> backfill(jdbi), "Preview backfill");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	private static void backfill (Jdbi jdbi) {
+		AtomicLong backfilled = Metrics.counter("previews.backfilled");
+		// Walk the primary key, so each batch continues where the previous one ended instead of scanning the filled in rows again.
+		int[] lastId = {0};
+		try {
+			while (true) {
+				int selected = jdbi.withHandle(handle -> {
+					List<Object[]> previews = handle.createQuery("SELECT id, type, content FROM projects WHERE id > :lastId AND preview IS NULL ORDER BY id LIMIT :limit")
+						.bind("lastId", lastId[0])
+						.bind("limit", BACKFILL_BATCH_SIZE)
+						.map( (rs, ctx) -> new Object[] {rs.getInt("id"),
+							fromContent(ContentCodec.decode(rs.getBytes("content")), ProjectType.valueOf(rs.getString("type")))})
+						.list();
+					for (Object[] preview : previews) {
+						lastId[0] = (int)preview[0];
+						// Keep lastModified as is, and don't overwrite a preview written by a concurrent save. Bump the version, so
+						// cached project lists including previews are revalidated.
+						backfilled.addAndGet(handle.createUpdate("UPDATE projects SET preview=:preview, lastModified=lastModified, version=version+1 WHERE id=:id AND preview IS NULL")
+							.bind("preview", (String)preview[1]).bind("id", (int)preview[0]).execute());
+					}
+					return previews.size();
+				});
+				if (selected == 0) break;
+				Thread.sleep(BACKFILL_PAUSE);
+			}
+			if (backfilled.get() > 0) Log.info("Backfilled " + backfilled.get() + " project previews");
+		} catch (Throwable t) {
+			Log.error("Couldn't backfill project previews", t);
+		}
+	}
+}
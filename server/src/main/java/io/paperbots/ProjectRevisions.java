@@ -0,0 +1,228 @@
+package io.paperbots;
+
+import java.sql.Timestamp;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jdbi.v3.core.Handle;
+import org.jdbi.v3.core.Jdbi;
+
+import com.esotericsoftware.minlog.Log;
+
+import io.paperbots.data.ProjectRevision;
+
+/** Revision history of project content, stored in the <code>projectRevisions</code> table. Every
+ * {@link #SNAPSHOT_INTERVAL}th revision stores the full content. The revisions in between store a delta to their predecessor,
+ * which is the changed middle part of the content, see {@link #diff(String, String)}. Reading a revision thus reads at most
+ * {@link #SNAPSHOT_INTERVAL} rows. Snapshots and deltas are encoded via {@link ContentCodec}.
+ *
+ * To keep storage bounded, a background job thins the history of projects with many revisions. It keeps the
+ * {@link #KEEP_RECENT} most recent revisions and the last revision of each day before them. */
+public class ProjectRevisions {
+	static final int SNAPSHOT_INTERVAL = 20;
+	static final int KEEP_RECENT = 50;
+	private static final long COMPACTION_INTERVAL = 1000 * 60 * 60;
+	private static final long CLOSE_TIMEOUT = 1000 * 10;
+
+	private final Jdbi jdbi;
+	private final ScheduledExecutorService compactor;
+	private final AtomicLong compacted = Metrics.counter("revisions.compacted");
+
+	public ProjectRevisions (Jdbi jdbi) {
+		this.jdbi = jdbi;
+		this.compactor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "Revision compactor");
+			thread.setDaemon(true);
+			return thread;
+		});
+		compactor.scheduleWithFixedDelay(this::compactAll, COMPACTION_INTERVAL, COMPACTION_INTERVAL, TimeUnit.MILLISECONDS);
+	}
+
+	/** Stops scheduling compactions and waits for a running compaction to complete. */
+	public void close () {
+		compactor.shutdown();
+		try {
+			compactor.awaitTermination(CLOSE_TIMEOUT, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/** Records the content as the newest revision of the project, unless it is equal to the newest revision. Must be called in
+	 * the transaction that saves the content. */
+	public void add (Handle handle, String code, String content) {
+		// Lock the chain, so concurrent saves of the same project are serialized.
+		List<StoredRevision> chain = loadChain(handle, code, Integer.MAX_VALUE, true);
+		int revision = 0;
+		boolean snapshot = true;
+		String data = content;
+		if (!chain.isEmpty()) {
+			String previous = reconstruct(chain);
+			if (previous.equals(content)) return;
+			revision = chain.get(chain.size() - 1).revision + 1;
+			snapshot = chain.size() >= SNAPSHOT_INTERVAL;
+			if (!snapshot) data = diff(previous, content);
+		}
+		//@off
+		handle.createUpdate("insert into projectRevisions (code, revision, snapshot, data) value (:code, :revision, :snapshot, :data)")
+			.bind("code", code)
+			.bind("revision", revision)
+			.bind("snapshot", snapshot)
+			.bind("data", ContentCodec.encode(data))
+			.execute();
+		//@on
+	}
+
+	/** @return the revisions of the project, newest first. */
+	public List<ProjectRevision> list (Handle handle, String code) {
+		return handle.createQuery("SELECT revision, created, snapshot FROM projectRevisions WHERE code=:code ORDER BY revision DESC").bind("code", code)
+			.mapToBean(ProjectRevision.class).list();
+	}
+
+	/** @return the content of the revision, or null if the project has no such revision. */
+	public String get (Handle handle, String code, int revision) {
+		List<StoredRevision> chain = loadChain(handle, code, revision, false);
+		if (chain.isEmpty() || chain.get(chain.size() - 1).revision != revision) return null;
+		return reconstruct(chain);
+	}
+
+	public void delete (Handle handle, String code) {
+		handle.createUpdate("delete from projectRevisions where code=:code").bind("code", code).execute();
+	}
+
+	/** Thins the history of the project. Removing a revision breaks the delta chain of its successor, so the kept revisions are
+	 * re-encoded as a new chain. */
+	public void compact (String code) {
+		jdbi.useTransaction(handle -> {
+			//@off
+			List<StoredRevision> revisions = handle.createQuery("SELECT id, revision, created, snapshot, data FROM projectRevisions WHERE code=:code ORDER BY revision FOR UPDATE")
+				.bind("code", code)
+				.map( (rs, ctx) -> new StoredRevision(rs.getInt("id"), rs.getInt("revision"), rs.getTimestamp("created"), rs.getBoolean("snapshot"), rs.getBytes("data")))
+				.list();
+			//@on
+			if (revisions.size() <= KEEP_RECENT) return;
+
+			// Keep the most recent revisions, and the last revision of each day before them.
+			List<StoredRevision> kept = new ArrayList<>();
+			Set<LocalDate> days = new HashSet<>();
+			for (int i = revisions.size() - 1; i >= 0; i--) {
+				StoredRevision revision = revisions.get(i);
+				if (revisions.size() - i <= KEEP_RECENT || days.add(revision.created.toLocalDateTime().toLocalDate())) kept.add(0, revision);
+			}
+			if (kept.size() == revisions.size()) return;
+
+			Set<StoredRevision> keptSet = new HashSet<>(kept);
+			String content = null;
+			List<String> contents = new ArrayList<>();
+			List<Integer> removed = new ArrayList<>();
+			for (StoredRevision revision : revisions) {
+				content = revision.snapshot ? ContentCodec.decode(revision.data) : patch(content, ContentCodec.decode(revision.data));
+				if (keptSet.contains(revision))
+					contents.add(content);
+				else
+					removed.add(revision.id);
+			}
+			handle.createUpdate("delete from projectRevisions where id in (<ids>)").bindList("ids", removed).execute();
+
+			for (int i = 0; i < kept.size(); i++) {
+				boolean snapshot = i % SNAPSHOT_INTERVAL == 0;
+				String data = snapshot ? contents.get(i) : diff(contents.get(i - 1), contents.get(i));
+				//@off
+				handle.createUpdate("update projectRevisions set snapshot=:snapshot, data=:data where id=:id")
+					.bind("snapshot", snapshot)
+					.bind("data", ContentCodec.encode(data))
+					.bind("id", kept.get(i).id)
+					.execute();
+				//@on
+			}
+			compacted.addAndGet(removed.size());
+		});
+	}
+
+	void compactAll () {
+		try {
+			// Projects that can't be thinned have at most one revision per day before the recent ones.
+			List<String> codes = jdbi.withHandle(handle -> handle
+				.createQuery("SELECT code FROM projectRevisions GROUP BY code HAVING COUNT(*) > :keep + COUNT(DISTINCT DATE(created))")
+				.bind("keep", KEEP_RECENT).mapTo(String.class).list());
+			for (String code : codes) {
+				try {
+					compact(code);
+				} catch (Throwable t) {
+					Log.error("Couldn't compact revisions of project " + code, t);
+				}
+			}
+		} catch (Throwable t) {
+			Log.error("Couldn't compact project revisions", t);
+		}
+	}
+
+	/** Loads the revisions needed to reconstruct the given revision: the closest snapshot at or before it, and the deltas up
+	 * to it. */
+	private List<StoredRevision> loadChain (Handle handle, String code, int revision, boolean forUpdate) {
+		//@off
+		return handle.createQuery("SELECT id, revision, created, snapshot, data FROM projectRevisions WHERE code=:code AND revision <= :revision"
+				+ " AND revision >= (SELECT MAX(revision) FROM projectRevisions WHERE code=:code AND snapshot=1 AND revision <= :revision) ORDER BY revision"
+				+ (forUpdate ? " FOR UPDATE" : ""))
+			.bind("code", code)
+			.bind("revision", revision)
+			.map( (rs, ctx) -> new StoredRevision(rs.getInt("id"), rs.getInt("revision"), rs.getTimestamp("created"), rs.getBoolean("snapshot"), rs.getBytes("data")))
+			.list();
+		//@on
+	}
+
+	private static String reconstruct (List<StoredRevision> chain) {
+		String content = ContentCodec.decode(chain.get(0).data);
+		for (int i = 1; i < chain.size(); i++)
+			content = patch(content, ContentCodec.decode(chain.get(i).data));
+		return content;
+	}
+
+	/** @return a delta that turns from into to: the length of the common prefix, the length of the common suffix and the
+	 *         characters in between, e.g. <code>12,40,forward()</code>. */
+	static String diff (String from, String to) {
+		int maxLength = Math.min(from.length(), to.length());
+		int prefix = 0;
+		while (prefix < maxLength && from.charAt(prefix) == to.charAt(prefix))
+			prefix++;
+		int suffix = 0;
+		while (suffix < maxLength - prefix && from.charAt(from.length() - 1 - suffix) == to.charAt(to.length() - 1 - suffix))
+			suffix++;
+		// Don't split surrogate pairs, the middle part is stored as UTF-8.
+		if (prefix > 0 && Character.isHighSurrogate(to.charAt(prefix - 1))) prefix--;
+		if (suffix > 0 && Character.isLowSurrogate(to.charAt(to.length() - suffix))) suffix--;
+		return prefix + "," + suffix + "," + to.substring(prefix, to.length() - suffix);
+	}
+
+	/** Applies a delta created by {@link #diff(String, String)}. */
+	static String patch (String from, String delta) {
+		int prefixEnd = delta.indexOf(',');
+		int suffixEnd = delta.indexOf(',', prefixEnd + 1);
+		int prefix = Integer.parseInt(delta.substring(0, prefixEnd));
+		int suffix = Integer.parseInt(delta.substring(prefixEnd + 1, suffixEnd));
+		return from.substring(0, prefix) + delta.substring(suffixEnd + 1) + from.substring(from.length() - suffix);
+	}
+
+	private static class StoredRevision {
+		final int id;
+		final int revision;
+		final Timestamp created;
+		final boolean snapshot;
+		final byte[] data;
+
+		StoredRevision (int id, int revision, Timestamp created, boolean snapshot, byte[] data) {
+			this.id = id;
+			this.revision = revision;
+			this.created = created;
+			this.snapshot = snapshot;
+			this.data = data;
+		}
+	}
+}
@@ -0,0 +1,152 @@
+package io.paperbots;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jdbi.v3.core.Jdbi;
+
+import com.esotericsoftware.minlog.Log;
+
+/** Picks the read replica a read-only query goes to. Healthy replicas are used in round-robin order. A background job checks
+ * every {@link #HEALTH_CHECK_INTERVAL} milliseconds that each replica answers queries and lags behind the primary by at most
+ * the configured maximum lag. Replicas are only used once they passed their first check. A replica that fails a query is taken out
+ * of rotation until its next successful check.
+ *
+ * Writers record what they wrote via {@link #markWritten(String)}, e.g. a project or a user's project list. Reads of such a key
+ * go to the primary until every healthy replica is guaranteed to have caught up, so clients always read their own writes. */
+public class ReadReplicas {
+	static final long HEALTH_CHECK_INTERVAL = 5000;
+
+	private final List<Replica> replicas = new ArrayList<>();
+	private final long maxLag;
+	private final long recentWriteWindow;
+	private final AtomicInteger next = new AtomicInteger();
+	private final Map<String, Long> recentWrites = new ConcurrentHashMap<>();
+	private final ScheduledExecutorService healthChecker;
+	private final AtomicLong replicaReads = Metrics.counter("db.replicaReads");
+	private final AtomicLong primaryReads = Metrics.counter("db.primaryReads");
+	private final AtomicLong failures = Metrics.counter("db.replicaFailures");
+
+	/** @param maxLag the replication lag in milliseconds above which a replica isn't read from */
+	public ReadReplicas (List<Jdbi> replicas, long maxLag) {
+		this(replicas, maxLag, HEALTH_CHECK_INTERVAL);
+	}
+
+	ReadReplicas (List<Jdbi> replicas, long maxLag, long healthCheckInterval) {
+		for (int i = 0; i < replicas.size(); i++)
+			this.replicas.add(new Replica("replica" + i, replicas.get(i)));
+		this.maxLag = maxLag;
+		// A replica's lag is only known as of its last health check.
+		this.recentWriteWindow = maxLag + healthCheckInterval;
+		Metrics.gauge("db.replicasHealthy", () -> this.replicas.stream().filter(replica -> replica.healthy).count());
+
+		if (replicas.isEmpty()) {
+			healthChecker = null;
+			return;
+		}
+		healthChecker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "Replica health checker");
+			thread.setDaemon(true);
+			return thread;
+		});
+		healthChecker.scheduleWithFixedDelay(this::checkHealth, 0, healthCheckInterval, TimeUnit.MILLISECONDS);
+	}
+
+	/** @return replicas for a setup without replicas, all reads go to the primary. */
+	public static ReadReplicas none () {
+		return new ReadReplicas(Collections.emptyList(), 0);
+	}
+
+	/** @return the replica to read the key from, or null if the key must be read from the primary, because it was written
+	 *         recently or no replica is healthy. */
+	public Replica forRead (String key) {
+		if (replicas.isEmpty()) return null;
+		if (key != null && isRecentlyWritten(key)) {
+			primaryReads.incrementAndGet();
+			return null;
+		}
+		for (int i = 0; i < replicas.size(); i++) {
+			Replica replica = replicas.get(Math.floorMod(next.getAndIncrement(), replicas.size()));
+			if (replica.healthy) {
+				replicaReads.incrementAndGet();
+				return replica;
+			}
+		}
+		primaryReads.incrementAndGet();
+		return null;
+	}
+
+	/** Records that the key was written on the primary. Called before the write is committed, so concurrent reads can't see the
+	 * replicas' old state once the write is visible on the primary. */
+	public void markWritten (String key) {
+		if (replicas.isEmpty()) return;
+		recentWrites.put(key, System.currentTimeMillis());
+	}
+
+	/** Takes the replica out of rotation after a failed query, until its next successful health check. */
+	public void markFailed (Replica replica, Throwable cause) {
+		failures.incrementAndGet();
+		if (replica.healthy) Log.warn("Read replica " + replica.name + " failed, reading from the primary", cause);
+		replica.healthy = false;
+	}
+
+	public int getHealthyCount () {
+		return (int)replicas.stream().filter(replica -> replica.healthy).count();
+	}
+
+	public void close () {
+		if (healthChecker != null) healthChecker.shutdownNow();
+	}
+
+	private boolean isRecentlyWritten (String key) {
+		Long written = recentWrites.get(key);
+		return written != null && System.currentTimeMillis() - written < recentWriteWindow;
+	}
+
+	private void checkHealth () {
+		for (Replica replica : replicas) {
+			boolean healthy;
+			try {
+				// Replicating servers report their lag in seconds, NULL if replication is stopped. Servers that aren't replicating
+				// return no row, e.g. a replica promoted to primary.
+				Optional<Long> lag = replica.jdbi.withHandle(handle -> handle.createQuery("SHOW SLAVE STATUS")
+					.map( (rs, ctx) -> rs.getObject("Seconds_Behind_Master") != null ? rs.getLong("Seconds_Behind_Master") * 1000 : Long.MAX_VALUE)
+					.findFirst());
+				healthy = lag.orElse(0l) <= maxLag;
+				if (!healthy && replica.healthy) Log.warn("Read replica " + replica.name + " lags behind, reading from the primary");
+			} catch (Throwable t) {
+				if (replica.healthy) Log.warn("Read replica " + replica.name + " failed its health check, reading from the primary", t);
+				healthy = false;
+			}
+			if (healthy && !replica.healthy) Log.info("Read replica " + replica.name + " is healthy");
+			replica.healthy = healthy;
+		}
+
+		long now = System.currentTimeMillis();
+		recentWrites.values().removeIf(written -> now - written >= recentWriteWindow);
+	}
+
+	public static class Replica {
+		final String name;
+		final Jdbi jdbi;
+		volatile boolean healthy;
+
+		Replica (String name, Jdbi jdbi) {
+			this.name = name;
+			this.jdbi = jdbi;
+		}
+
+		public Jdbi getJdbi () {
+			return jdbi;
+		}
+	}
+}
@@ -0,0 +1,469 @@
+package io.paperbots;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.SQLException;
+import java.sql.SQLRecoverableException;
+import java.sql.SQLTransientException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import com.esotericsoftware.minlog.Log;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import io.paperbots.PaperbotsException.PaperbotsError;
+import io.paperbots.data.ProjectType;
+
+/** Coalesces rapid successive saves of a project. A save is appended to a journal file and fsynced, then acknowledged right away.
+ * Only the latest save of a project is written to the database, once the project hasn't been saved for {@link #QUIET_PERIOD}
+ * milliseconds, or at the latest {@link #MAX_DELAY} milliseconds after its first pending save. If more than
+ * {@link #MAX_PENDING_BYTES} of content are pending, all projects are written right away.
+ *
+ * Concurrent saves share fsyncs of the journal. A save stays pending until its write has been committed, and once no saves are
+ * pending, the journal is truncated. Should the server crash, the journal is replayed on the next start, so no acknowledged save
+ * is lost.
+ *
+ * Saves the database rejects, e.g. because a value exceeds its column, are moved to a dead letter file next to the journal
+ * instead of being retried forever. Saves that failed for reasons that may go away, e.g. a lost connection, are retried.
+ *
+ * Reads of a project must call {@link #flush(String)} before reading, so they see the latest save. */
+public class SaveCoalescer {
+	static final long QUIET_PERIOD = 2000;
+	static final long MAX_DELAY = 10000;
+	private static final long MAX_PENDING_BYTES = 8 * 1024 * 1024;
+	private static final long MAX_JOURNAL_BYTES = 32 * 1024 * 1024;
+	private static final long FLUSH_INTERVAL = 250;
+	private static final int LOCK_STRIPES = 64;
+
+	/** Writes a save to the database. */
+	public static interface Writer {
+		/** @return true if the write has been committed, false if it joined a transaction that commits later. The outcome of that
+		 *         transaction must then be reported via {@link SaveCoalescer#committed(PendingSave)} or
+		 *         {@link SaveCoalescer#rolledBack(PendingSave)}. */
+		boolean write (PendingSave save);
+	}
+
+	private static final ObjectMapper json = new ObjectMapper();
+
+	private final File journalFile;
+	private final File deadLetterFile;
+	private final Writer writer;
+	private final Map<String, PendingSave> pending = new ConcurrentHashMap<>();
+	/** Saves written in a transaction that hasn't ended yet, by project code. */
+	private final Map<String, Write> uncommitted = new ConcurrentHashMap<>();
+	private final Object[] flushLocks = new Object[LOCK_STRIPES];
+	private final AtomicLong pendingBytes = new AtomicLong();
+	private final ScheduledExecutorService flusher;
+	private final AtomicLong saved = Metrics.counter("saves.saved");
+	private final AtomicLong written = Metrics.counter("saves.written");
+	private final AtomicLong deadLettered = Metrics.counter("saves.deadLettered");
+
+	private final Object journalLock = new Object();
+	private final Object syncLock = new Object();
+	private FileChannel journal;
+	private long journalSize;
+	private volatile long appendedBytes;
+	private long syncedBytes;
+
+	public SaveCoalescer (File journalFile, Writer writer) {
+		this.journalFile = journalFile;
+		this.deadLetterFile = new File(journalFile.getPath() + ".failed");
+		this.writer = writer;
+		for (int i = 0; i < LOCK_STRIPES; i++)
+			flushLocks[i] = new Object();
+
+		List<PendingSave> failed = replay();
+		try {
+			journal = openJournal(journalFile.toPath());
+		} catch (IOException e) {
+			throw new PaperbotsException(PaperbotsError.ServerError, "Couldn't open save journal " + journalFile, e);
+		}
+
+		Metrics.gauge("saves.pending", pending::size);
+		flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "Save coalescer");
+			thread.setDaemon(true);
+			return thread;
+		});
+		flusher.scheduleWithFixedDelay(this::flushDue, FLUSH_INTERVAL, FLUSH_INTERVAL, TimeUnit.MILLISECONDS);
+
+		// Saves of the previous run that couldn't be written yet, e.g. because the database is unavailable, are queued again.
+		for (PendingSave save : failed)
+			save(save);
+	}
+
+	/** Queues the save. Returns once the save is durable in the journal. */
+	public void save (PendingSave save) {
+		byte[] record = encode(save);
+		long target;
+		synchronized (journalLock) {
+			target = append(record);
+
+			long now = System.currentTimeMillis();
+			PendingSave previous = pending.get(save.code);
+			save.firstQueued = previous != null ? previous.firstQueued : now;
+			save.lastQueued = now;
+			previous = pending.put(save.code, save);
+			pendingBytes.addAndGet(save.content.length() - (previous != null ? previous.content.length() : 0));
+		}
+		sync(target);
+		saved.incrementAndGet();
+
+		if (pendingBytes.get() > MAX_PENDING_BYTES) flusher.execute(this::flushAll);
+	}
+
+	/** Writes the pending save of the project to the database, if any. The save stays pending until the write has been committed.
+	 * While another thread's transaction holds an uncommitted write of the project, nothing is written, as the write would wait
+	 * for that transaction's row lock. The save is written by a later flush instead.
+	 * @throws RuntimeException if the write failed and will be retried by a later flush */
+	public void flush (String code) {
+		PendingSave save;
+		boolean committed;
+		synchronized (flushLocks[(code.hashCode() & 0x7fffffff) % LOCK_STRIPES]) {
+			save = pending.get(code);
+			if (save == null) return;
+			Write previous = uncommitted.get(code);
+			if (previous != null && (previous.thread != Thread.currentThread() || previous.save == save)) return;
+			uncommitted.put(code, new Write(save));
+			try {
+				committed = writer.write(save);
+			} catch (RuntimeException e) {
+				if (previous != null)
+					uncommitted.put(code, previous);
+				else
+					uncommitted.remove(code);
+				failed(save, e);
+				return;
+			}
+		}
+		if (committed) committed(save);
+	}
+
+	/** Called once the transaction a save has been written in was committed, see {@link Writer#write(PendingSave)}. */
+	public void committed (PendingSave save) {
+		uncommitted.computeIfPresent(save.code, (code, write) -> write.save == save ? null : write);
+		// A newer save might have come in while writing, it is written by the next flush.
+		if (pending.remove(save.code, save)) pendingBytes.addAndGet(-save.content.length());
+		written.incrementAndGet();
+		truncateIfIdle();
+	}
+
+	/** Called once the transaction a save has been written in was rolled back, see {@link Writer#write(PendingSave)}. The save is
+	 * still pending and written by the next flush. */
+	public void rolledBack (PendingSave save) {
+		uncommitted.computeIfPresent(save.code, (code, write) -> write.save == save ? null : write);
+	}
+
+	/** Writes the pending saves of the user's projects to the database. */
+	public void flushUser (String userName) {
+		if (pending.isEmpty()) return;
+		for (PendingSave save : new ArrayList<>(pending.values()))
+			if (save.userName.equals(userName)) flush(save.code);
+	}
+
+	/** Drops the pending save of the project, e.g. because the project was deleted. */
+	public void discard (String code) {
+		uncommitted.remove(code);
+		PendingSave save = pending.remove(code);
+		if (save != null) pendingBytes.addAndGet(-save.content.length());
+		truncateIfIdle();
+	}
+
+	/** Writes all pending saves to the database. */
+	public void flushAll () {
+		for (String code : new ArrayList<>(pending.keySet())) {
+			try {
+				flush(code);
+			} catch (Throwable t) {
+				Log.error("Couldn't write save of project " + code, t);
+			}
+		}
+	}
+
+	public int getPending () {
+		return pending.size();
+	}
+
+	/** Stops the background flushing, writes all pending saves and closes the journal. */
+	public void close () {
+		flusher.shutdown();
+		try {
+			flusher.awaitTermination(10, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			// Fall through, flush on this thread.
+		}
+		flushAll();
+		synchronized (journalLock) {
+			try {
+				journal.close();
+			} catch (IOException e) {
+				Log.error("Couldn't close save journal", e);
+			}
+		}
+	}
+
+	private void flushDue () {
+		try {
+			long now = System.currentTimeMillis();
+			for (PendingSave save : new ArrayList<>(pending.values())) {
+				if (now - save.lastQueued >= QUIET_PERIOD || now - save.firstQueued >= MAX_DELAY) {
+					try {
+						flush(save.code);
+					} catch (Throwable t) {
+						Log.error("Couldn't write save of project " + save.code, t);
+					}
+				}
+			}
+			rewriteJournal();
+		} catch (Throwable t) {
+			Log.error("Couldn't flush saves", t);
+		}
+	}
+
+	/** Passes on failures that may go away when retried, the save is retried by the next flush. Saves that failed for other
+	 * reasons are moved to the dead letter file. Must be called while holding the project's flush lock. */
+	private void failed (PendingSave save, RuntimeException e) {
+		if (isTransient(e)) throw e;
+		Log.error("Couldn't write save of project " + save.code + ", moving it to " + deadLetterFile, e);
+		// Should the dead letter file not be writable, the save stays pending, so it isn't lost.
+		if (!deadLetter(encode(save))) throw e;
+		if (pending.remove(save.code, save)) pendingBytes.addAndGet(-save.content.length());
+		truncateIfIdle();
+	}
+
+	/** @return whether the write may succeed when retried, e.g. after a lost connection, a deadlock or a lock wait timeout. */
+	static boolean isTransient (Throwable t) {
+		for (Throwable cause = t; cause != null; cause = cause.getCause()) {
+			if (cause instanceof SQLTransientException || cause instanceof SQLRecoverableException) return true;
+			if (cause instanceof SQLException) {
+				SQLException e = (SQLException)cause;
+				String state = e.getSQLState() != null ? e.getSQLState() : "";
+				// Connection exceptions, transaction rollbacks and MySQL's lock wait timeout.
+				return state.startsWith("08") || state.startsWith("40") || e.getErrorCode() == 1205;
+			}
+		}
+		return false;
+	}
+
+	/** Appends the record to the dead letter file, which has the format of the journal.
+	 * @return whether the record was written */
+	private synchronized boolean deadLetter (byte[] record) {
+		try (FileOutputStream out = new FileOutputStream(deadLetterFile, true)) {
+			out.write(record);
+			out.getFD().sync();
+			deadLettered.incrementAndGet();
+			return true;
+		} catch (IOException e) {
+			Log.error("Couldn't write dead letter file " + deadLetterFile, e);
+			return false;
+		}
+	}
+
+	/** Appends the encoded save to the journal, must be called while holding the journal lock.
+	 * @return the number of appended bytes to {@link #sync(long)} through */
+	private long append (byte[] record) {
+		try {
+			ByteBuffer buffer = ByteBuffer.wrap(record);
+			while (buffer.hasRemaining())
+				journal.write(buffer, journalSize + buffer.position());
+		} catch (IOException e) {
+			throw new PaperbotsException(PaperbotsError.CouldNotSaveProject, "Couldn't write save journal", e);
+		}
+		journalSize += record.length;
+		appendedBytes += record.length;
+		return appendedBytes;
+	}
+
+	/** Waits until the journal is synced through the given number of appended bytes. Appenders that arrive while another one
+	 * syncs are covered by the next sync, so a burst of saves needs only a few fsyncs. */
+	private void sync (long target) {
+		synchronized (syncLock) {
+			if (syncedBytes >= target) return;
+			long appended = appendedBytes;
+			try {
+				journal.force(false);
+			} catch (IOException e) {
+				throw new PaperbotsException(PaperbotsError.CouldNotSaveProject, "Couldn't sync save journal", e);
+			}
+			syncedBytes = appended;
+		}
+	}
+
+	private void truncateIfIdle () {
+		synchronized (journalLock) {
+			if (!pending.isEmpty() || journalSize == 0) return;
+			try {
+				journal.truncate(0);
+				journalSize = 0;
+			} catch (IOException e) {
+				Log.error("Couldn't truncate save journal", e);
+			}
+		}
+	}
+
+	/** Replaces the journal with one holding only the pending saves once it exceeds {@link #MAX_JOURNAL_BYTES}, in case it is
+	 * never idle long enough to be truncated. */
+	private void rewriteJournal () throws IOException {
+		synchronized (journalLock) {
+			if (journalSize <= MAX_JOURNAL_BYTES) return;
+			File newFile = new File(journalFile.getPath() + ".new");
+			try (FileChannel newJournal = FileChannel.open(newFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+				for (PendingSave save : pending.values()) {
+					ByteBuffer buffer = ByteBuffer.wrap(encode(save));
+					while (buffer.hasRemaining())
+						newJournal.write(buffer);
+				}
+				newJournal.force(true);
+			}
+			// Appenders sync outside of the journal lock, don't let them sync the channel being replaced.
+			synchronized (syncLock) {
+				java.nio.file.Files.move(newFile.toPath(), journalFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+				journal.close();
+				journal = FileChannel.open(journalFile.toPath(), StandardOpenOption.WRITE);
+				journalSize = journal.size();
+				syncedBytes = appendedBytes;
+			}
+		}
+	}
+
+	/** Writes the saves of a previous run that didn't make it to the database. A record that can't be decoded or a save the
+	 * database rejects is moved to the dead letter file, so it doesn't keep the server from starting.
+	 * @return the saves whose write failed but may succeed when retried */
+	private List<PendingSave> replay () {
+		List<PendingSave> failed = new ArrayList<>();
+		if (!journalFile.exists()) return failed;
+		Map<String, PendingSave> saves = new LinkedHashMap<>();
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(journalFile)))) {
+			while (true) {
+				byte[] data = readRecord(in);
+				if (data == null) break;
+				try {
+					PendingSave save = json.readValue(data, PendingSave.class);
+					saves.put(save.code, save);
+				} catch (IOException e) {
+					Log.error("Couldn't decode save in journal " + journalFile + ", moving it to " + deadLetterFile, e);
+					deadLetter(record(data));
+				}
+			}
+		} catch (IOException e) {
+			// Keep the journal for inspection, it's truncated once opened.
+			File unreadable = new File(journalFile.getPath() + ".unreadable");
+			Log.error("Couldn't read save journal " + journalFile + ", moving it to " + unreadable, e);
+			journalFile.renameTo(unreadable);
+		}
+		if (saves.isEmpty()) return failed;
+
+		// The journal is truncated once replayed. Should the server crash before that, the saves are simply written again.
+		Log.info("Replaying " + saves.size() + " saves from " + journalFile);
+		for (PendingSave save : saves.values()) {
+			try {
+				writer.write(save);
+			} catch (RuntimeException e) {
+				if (isTransient(e)) {
+					Log.warn("Couldn't replay save of project " + save.code + ", retrying", e);
+					failed.add(save);
+				} else {
+					Log.error("Couldn't replay save of project " + save.code + ", moving it to " + deadLetterFile, e);
+					if (!deadLetter(encode(save))) failed.add(save);
+				}
+			}
+		}
+		return failed;
+	}
+
+	private static FileChannel openJournal (java.nio.file.Path path) throws IOException {
+		FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+		channel.truncate(0);
+		return channel;
+	}
+
+	/** A journal record is the length of the JSON encoded save, its CRC32 and the JSON. */
+	private static byte[] encode (PendingSave save) {
+		try {
+			return record(json.writeValueAsBytes(save));
+		} catch (IOException e) {
+			throw new PaperbotsException(PaperbotsError.CouldNotSaveProject, "Couldn't encode save", e);
+		}
+	}
+
+	private static byte[] record (byte[] data) {
+		CRC32 crc = new CRC32();
+		crc.update(data);
+		ByteBuffer record = ByteBuffer.allocate(8 + data.length);
+		record.putInt(data.length);
+		record.putInt((int)crc.getValue());
+		record.put(data);
+		return record.array();
+	}
+
+	/** @return the JSON of the next record, or null at the end of the journal. A record torn by a crash while appending ends the
+	 *         journal. */
+	private static byte[] readRecord (DataInputStream in) throws IOException {
+		try {
+			int length = in.readInt();
+			int checksum = in.readInt();
+			if (length < 0) return null;
+			byte[] data = new byte[length];
+			in.readFully(data);
+			CRC32 crc = new CRC32();
+			crc.update(data);
+			if ((int)crc.getValue() != checksum) return null;
+			return data;
+		} catch (EOFException e) {
+			return null;
+		}
+	}
+
+	/** A save written in a transaction that hasn't ended yet, and the thread the transaction belongs to. */
+	private static class Write {
+		final PendingSave save;
+		final Thread thread = Thread.currentThread();
+
+		Write (PendingSave save) {
+			this.save = save;
+		}
+	}
+
+	public static class PendingSave {
+		public String code;
+		public String userName;
+		public String title;
+		public String description;
+		public String content;
+		public boolean isPublic;
+		public ProjectType type;
+		public long firstQueued;
+		public long lastQueued;
+
+		public PendingSave () {
+		}
+
+		public PendingSave (String code, String userName, String title, String description, String content, boolean isPublic, ProjectType type) {
+			this.code = code;
+			this.userName = userName;
+			this.title = title;
+			this.description = description;
+			this.content = content;
+			this.isPublic = isPublic;
+			this.type = type;
+		}
+	}
+}
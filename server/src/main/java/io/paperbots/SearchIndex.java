@@ -0,0 +1,275 @@
+package io.paperbots;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import io.paperbots.data.Project;
+
+/** In-memory inverted index over the public projects. Indexes the title, description and user name of a project, as well as the
+ * identifiers in its source code. Every term of a query is matched as a prefix, and a project must match all terms of a query.
+ * Projects are ranked by the sum of the weights of the matched terms, scaled by how rare a term is, exact matches weighing more
+ * than prefix matches. Ties are broken by last modification time, newest first.
+ *
+ * The index is built by {@link Paperbots} at startup and updated whenever a project is saved or deleted. */
+public class SearchIndex {
+	private static final float TITLE_WEIGHT = 4;
+	private static final float USER_NAME_WEIGHT = 3;
+	private static final float DESCRIPTION_WEIGHT = 2;
+	private static final float IDENTIFIER_WEIGHT = 1;
+	private static final float PREFIX_MATCH_WEIGHT = 0.5f;
+	private static final int MIN_TERM_LENGTH = 2;
+	private static final int MAX_TERM_LENGTH = 32;
+	/** The maximum number of terms a prefix is expanded to, e.g. for a single letter query. */
+	private static final int MAX_PREFIX_TERMS = 2000;
+	public static final int MAX_RESULTS = 100;
+
+	private static final Pattern TERM_SEPARATOR = Pattern.compile("[^\\p{L}\\p{N}_]+");
+	private static final Pattern IDENTIFIER = Pattern.compile("[\\p{L}_][\\p{L}\\p{N}_]*");
+	private static final Pattern CAMEL_CASE = Pattern.compile("(?<=\\p{Ll})(?=\\p{Lu})|_");
+	private static final Pattern HTML_ENTITY = Pattern.compile("&#?\\w+;");
+	/** Keywords of the Paperbots language, which appear in nearly every program. */
+	private static final Set<String> KEYWORDS = new HashSet<>(Arrays.asList("var", "fun", "if", "then", "else", "end", "while", "do", "repeat",
+		"times", "return", "and", "or", "not", "true", "false", "number", "boolean", "string", "record", "nothing"));
+
+	private static final ObjectMapper json = new ObjectMapper();
+
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+	private final TreeMap<String, Map<String, Float>> postings = new TreeMap<>();
+	private final Map<String, Document> documents = new HashMap<>();
+	private final AtomicLong queries = Metrics.counter("search.queries");
+	private final AtomicLong queryMicros = Metrics.counter("search.queryMicros");
+	private final AtomicLong maxQueryMicros = Metrics.counter("search.maxQueryMicros");
+
+	public SearchIndex () {
+		Metrics.gauge("search.documents", this::getDocumentCount);
+		Metrics.gauge("search.terms", this::getTermCount);
+		Metrics.gauge("search.memoryBytes", this::estimateMemory);
+	}
+
+	/** Adds or replaces the project. Projects that aren't public are removed from the index.
+	 * @param content the content of the project, whose source code is indexed */
+	public void update (Project project, String content) {
+		if (!project.isPublic()) {
+			remove(project.getCode());
+			return;
+		}
+
+		Map<String, Float> terms = new HashMap<>();
+		addTerms(terms, project.getTitle(), TITLE_WEIGHT);
+		addTerms(terms, project.getUserName(), USER_NAME_WEIGHT);
+		addTerms(terms, project.getDescription(), DESCRIPTION_WEIGHT);
+		for (String identifier : getIdentifiers(content))
+			addTerms(terms, identifier, IDENTIFIER_WEIGHT);
+
+		Project summary = new Project();
+		summary.setCode(project.getCode());
+		summary.setUserName(project.getUserName());
+		summary.setTitle(project.getTitle());
+		summary.setDescription(project.getDescription());
+		summary.setType(project.getType());
+		summary.setLastModified(project.getLastModified());
+		summary.setCreated(project.getCreated());
+		summary.setPublic(true);
+
+		lock.writeLock().lock();
+		try {
+			removeDocument(project.getCode());
+			documents.put(summary.getCode(), new Document(summary, terms.keySet()));
+			for (Map.Entry<String, Float> term : terms.entrySet())
+				postings.computeIfAbsent(term.getKey(), key -> new HashMap<>(4)).put(summary.getCode(), term.getValue());
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	public void remove (String code) {
+		lock.writeLock().lock();
+		try {
+			removeDocument(code);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/** @param offset the number of results to skip
+	 * @param limit the maximum number of results to return, capped at {@link #MAX_RESULTS} */
+	public SearchResult search (String query, int offset, int limit) {
+		long start = System.nanoTime();
+		Set<String> queryTerms = new LinkedHashSet<>(tokenize(query));
+		if (queryTerms.isEmpty()) return new SearchResult(new Project[0], 0);
+
+		List<Project> page = new ArrayList<>();
+		int total;
+		lock.readLock().lock();
+		try {
+			Map<String, Float> scores = null;
+			for (String queryTerm : queryTerms) {
+				Map<String, Float> termScores = new HashMap<>();
+				int expanded = 0;
+				for (Map.Entry<String, Map<String, Float>> term : postings.subMap(queryTerm, true, queryTerm + Character.MAX_VALUE, true).entrySet()) {
+					if (++expanded > MAX_PREFIX_TERMS) break;
+					float weight = (float)Math.log(1 + documents.size() / (double)term.getValue().size());
+					if (!term.getKey().equals(queryTerm)) weight *= PREFIX_MATCH_WEIGHT;
+					for (Map.Entry<String, Float> posting : term.getValue().entrySet())
+						termScores.merge(posting.getKey(), posting.getValue() * weight, Math::max);
+				}
+				if (scores == null) {
+					scores = termScores;
+				} else {
+					// Projects must match all terms.
+					scores.keySet().retainAll(termScores.keySet());
+					for (Map.Entry<String, Float> score : scores.entrySet())
+						score.setValue(score.getValue() + termScores.get(score.getKey()));
+				}
+				if (scores.isEmpty()) break;
+			}
+
+			final Map<String, Float> finalScores = scores;
+			List<String> codes = new ArrayList<>(scores.keySet());
+			codes.sort(Comparator.<String, Float> comparing(finalScores::get).reversed()
+				.thenComparing(code -> documents.get(code).project.getLastModified(), Comparator.nullsLast(Comparator.reverseOrder())));
+			total = codes.size();
+			int end = Math.min(total, Math.max(0, offset) + Math.min(Math.max(0, limit), MAX_RESULTS));
+			for (int i = Math.max(0, offset); i < end; i++)
+				page.add(documents.get(codes.get(i)).project);
+		} finally {
+			lock.readLock().unlock();
+		}
+
+		long micros = (System.nanoTime() - start) / 1000;
+		queries.incrementAndGet();
+		queryMicros.addAndGet(micros);
+		maxQueryMicros.accumulateAndGet(micros, Math::max);
+		return new SearchResult(page.toArray(new Project[page.size()]), total);
+	}
+
+	public int getDocumentCount () {
+		lock.readLock().lock();
+		try {
+			return documents.size();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	public int getTermCount () {
+		lock.readLock().lock();
+		try {
+			return postings.size();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/** @return a rough estimate of the heap used by the index, assuming compressed object pointers. */
+	public long estimateMemory () {
+		lock.readLock().lock();
+		try {
+			long bytes = 0;
+			for (Map.Entry<String, Map<String, Float>> term : postings.entrySet()) {
+				// Tree entry, term string, posting map, and a map entry plus boxed float per posting.
+				bytes += 40 + 40 + term.getKey().length() * 2 + 64 + term.getValue().size() * 48;
+			}
+			for (Document document : documents.values()) {
+				Project project = document.project;
+				bytes += 200 + document.terms.size() * 8 + 2 * (length(project.getTitle()) + length(project.getDescription())
+					+ length(project.getUserName()) + length(project.getLastModified()) + length(project.getCreated()));
+			}
+			return bytes;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	private void removeDocument (String code) {
+		Document document = documents.remove(code);
+		if (document == null) return;
+		for (String term : document.terms) {
+			Map<String, Float> codes = postings.get(term);
+			codes.remove(code);
+			if (codes.isEmpty()) postings.remove(term);
+		}
+	}
+
+	private static void addTerms (Map<String, Float> terms, String text, float weight) {
+		for (String term : tokenize(text))
+			terms.merge(term, weight, Float::sum);
+	}
+
+	static List<String> tokenize (String text) {
+		List<String> terms = new ArrayList<>();
+		if (text == null) return terms;
+		// Descriptions and titles are stored HTML encoded.
+		text = HTML_ENTITY.matcher(text).replaceAll(" ");
+		for (String term : TERM_SEPARATOR.split(text.toLowerCase())) {
+			if (term.length() < MIN_TERM_LENGTH) continue;
+			terms.add(term.length() > MAX_TERM_LENGTH ? term.substring(0, MAX_TERM_LENGTH) : term);
+		}
+		return terms;
+	}
+
+	/** @return the identifiers in the source code of the content, excluding keywords. Camel case and snake case identifiers
+	 *         are also split into their parts, so <code>moveForward</code> is found by <code>forward</code>. */
+	static Set<String> getIdentifiers (String content) {
+		Set<String> identifiers = new HashSet<>();
+		if (content == null) return identifiers;
+		String code;
+		try {
+			code = json.readTree(content).path("code").asText("");
+		} catch (IOException e) {
+			return identifiers;
+		}
+		Matcher matcher = IDENTIFIER.matcher(code);
+		while (matcher.find()) {
+			String identifier = matcher.group();
+			if (KEYWORDS.contains(identifier.toLowerCase())) continue;
+			identifiers.add(identifier);
+			String[] parts = CAMEL_CASE.split(identifier);
+			if (parts.length > 1) identifiers.addAll(Arrays.asList(parts));
+		}
+		return identifiers;
+	}
+
+	private static int length (String value) {
+		return value != null ? value.length() : 0;
+	}
+
+	private static class Document {
+		final Project project;
+		final Set<String> terms;
+
+		Document (Project project, Set<String> terms) {
+			this.project = project;
+			this.terms = terms;
+		}
+	}
+
+	public static class SearchResult {
+		public Project[] projects;
+		/** The total number of projects matching the query. */
+		public int total;
+
+		public SearchResult () {
+		}
+
+		public SearchResult (Project[] projects, int total) {
+			this.projects = projects;
+			this.total = total;
+		}
+	}
+}
@@ -2,39 +2,71 @@
 package io.paperbots;
 
 import java.io.File;
-import java.io.InputStream;
-import java.net.HttpURLConnection;
-import java.net.URL;
-import java.net.URLConnection;
+import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.eclipse.jetty.server.handler.StatisticsHandler;
 
 import com.esotericsoftware.minlog.Log;
 
+import io.javalin.Context;
+import io.javalin.Handler;
 import io.javalin.Javalin;
-import io.javalin.staticfiles.Location;
 import io.javalin.websocket.WsHandler;
 import io.javalin.websocket.WsSession;
 import io.marioslab.basis.site.FileWatcher;
 import io.marioslab.basis.template.TemplateLoader.StreamUtils;
+import io.paperbots.Config.ServerConfig;
+import io.paperbots.Paperbots.ProjectFilter;
+import io.paperbots.Paperbots.ResourceVersion;
 import io.paperbots.Paperbots.Sorting;
 import io.paperbots.Paperbots.TokenAndName;
 import io.paperbots.PaperbotsException.PaperbotsError;
 import io.paperbots.data.Project;
+import io.paperbots.data.ProjectType;
 import io.paperbots.data.UserType;
 
 import javax.servlet.http.Cookie;
 
+/** Serves the API and the static files on port {@link #PORT}.
+ *
+ * {@link #shutdown()} stops the server without failing requests: it stops accepting connections, waits up to the drain timeout of
+ * the {@link ServerConfig} for in-flight requests, then writes pending saves and stops the background work. <code>/api/ready</code>
+ * reports whether the server should get traffic, i.e. it isn't warming up, see {@link Warmup}, or shutting down. */
 public class Server {
+	private static final int PORT = 8001;
+
 	private boolean isRunning = false;
+	private volatile boolean isReady = false;
+	private final AtomicBoolean isShuttingDown = new AtomicBoolean();
+	private final CountDownLatch shutDown = new CountDownLatch(1);
 	private final Javalin app;
+	private final Paperbots paperbots;
+	private final StaticReleases staticReleases;
 
 	public Server (Paperbots paperbots, boolean reload, File staticFiles) {
+		this(paperbots, reload, staticFiles, new ServerConfig(null, null));
+	}
+
+	public Server (Paperbots paperbots, boolean reload, File staticFiles, ServerConfig config) {
 		if (!staticFiles.exists()) throw new RuntimeException("Static file directory '" + staticFiles.getPath() + "' does not exist.");
 
-		app = Javalin.create().enableStaticFiles(staticFiles.getAbsolutePath(), Location.EXTERNAL)
-			.enableStaticFiles(paperbots.getFiles().getFilesDir().getAbsolutePath(), Location.EXTERNAL);
+		this.paperbots = paperbots;
+		// Counts the in-flight requests, so stopping the server can wait for them to complete.
+		StatisticsHandler statistics = new StatisticsHandler();
+		Metrics.gauge("server.activeRequests", statistics::getRequestsActive);
+		app = Javalin.create().server( () -> {
+			org.eclipse.jetty.server.Server server = new org.eclipse.jetty.server.Server();
+			server.setHandler(statistics);
+			server.setStopTimeout(config.getDrainTimeout());
+			return server;
+		});
+		StaticAssets staticAssets = new StaticAssets(staticFiles);
+		staticReleases = new StaticReleases(staticFiles, paperbots.getFiles().getFilesDir(), staticAssets);
 
 		// Websockets for local development
 		if (reload) {
@@ -42,6 +74,7 @@ public class Server {
 			Thread generatorThread = new Thread((Runnable) () -> {
 				try {
 					FileWatcher.watch(staticFiles, () -> {
+						reloadStaticAssets(staticAssets);
 						for (WsSession session : wsClients.values()) {
 							Log.info("Static content changed, telling websocket clients.");
 							session.send("Reload");
@@ -80,7 +113,8 @@ public class Server {
 		app.post("/api/reloadstatic", ctx -> {
 			String pwd = ctx.formParam("password");
 			if (MessageDigest.isEqual(pwd.getBytes(), Paperbots.getConfig().getReloadPassword().getBytes())) {
-				new ProcessBuilder().command("git", "pull").start();
+				// The new files are served once they are completely loaded, see StaticReleases
+				staticReleases.deployLatest();
 				Log.info("Got new static content.");
 				ctx.result("OK");
 			}
@@ -90,24 +124,37 @@ public class Server {
 			String pwd = ctx.formParam("password");
 			if (MessageDigest.isEqual(pwd.getBytes(), Paperbots.getConfig().getReloadPassword().getBytes())) {
 				ctx.result("OK.");
-				ctx.res.flushBuffer();
 				Log.info("Got an update. Shutting down.");
-				System.exit(-1);
+				// Shut down on another thread, as draining waits for this request to complete. The start script pulls the update and
+				// restarts the server once the process exited.
+				new Thread( () -> {
+					shutdown();
+					System.exit(-1);
+				}, "Shutdown").start();
 			}
 		});
 
+		// Readiness for load balancers and health checks
+		app.get("/api/ready", ctx -> {
+			ctx.header("Cache-Control", "no-store");
+			if (isReady)
+				ctx.result("OK");
+			else
+				ctx.status(503).result("Not ready");
+		});
+
 		// User management
-		app.post("/api/signup", ctx -> {
+		app.post("/api/signup", unitOfWork(paperbots, ctx -> {
 			SignupRequest request = ctx.bodyAsClass(SignupRequest.class);
 			paperbots.signup(request.name, request.email, UserType.user);
-		});
+		}));
 
-		app.post("/api/login", ctx -> {
+		app.post("/api/login", unitOfWork(paperbots, ctx -> {
 			LoginRequest request = ctx.bodyAsClass(LoginRequest.class);
 			paperbots.login(request.email);
-		});
+		}));
 
-		app.post("/api/verify", ctx -> {
+		app.post("/api/verify", unitOfWork(paperbots, ctx -> {
 			VerifyRequest request = ctx.bodyAsClass(VerifyRequest.class);
 			TokenAndName tokenAndName = paperbots.verifyCode(request.code);
 			ctx.cookie("name", tokenAndName.name, Integer.MAX_VALUE);
@@ -119,46 +166,127 @@ public class Server {
 				// TODO: no way to set same site restriction for CSRF DiD?
 			}
 			ctx.cookie(token);
-		});
+		}));
 
-		app.post("/api/logout", ctx -> {
+		app.post("/api/logout", unitOfWork(paperbots, ctx -> {
 			String token = ctx.cookie("token");
 			ctx.cookie("name", "", -1);
 			ctx.cookie("token", "", -1);
 			paperbots.logout(token);
-		});
+		}));
 
 		// Project management
-		app.post("/api/getproject", ctx -> {
+		app.post("/api/getproject", unitOfWork(paperbots, ctx -> {
 			ProjectRequest request = ctx.bodyAsClass(ProjectRequest.class);
 			Project project = paperbots.getProject(ctx.cookie("token"), request.projectId);
 			ctx.json(project);
-		});
+		}));
 
-		app.post("/api/getprojects", ctx -> {
+		app.post("/api/getprojects", unitOfWork(paperbots, ctx -> {
 			ProjectsRequest request = ctx.bodyAsClass(ProjectsRequest.class);
-			ctx.json(paperbots.getUserProjects(ctx.cookie("token"), request.userName, request.worldData));
+			JsonStream stream = JsonStream.array(ctx);
+			paperbots.getUserProjects(ctx.cookie("token"), request.userName, request.worldData, request.cursorLastModified, request.cursorCode,
+				request.pageSize, stream::write);
+			stream.finishArray();
+		}));
+
+		// Cacheable variants of the above. Clients revalidate via ETags and only re-download
+		// a project or project list if it changed.
+		app.get("/api/project", unitOfWork(paperbots, ctx -> {
+			String token = ctx.cookie("token");
+			String projectId = ctx.queryParam("projectId");
+			ResourceVersion version = paperbots.getProjectVersion(token, projectId);
+			ctx.header("Cache-Control", version.isPublic ? "public, max-age=0, must-revalidate" : "private, max-age=0, must-revalidate");
+			ctx.header("Vary", "Accept-Encoding");
+			if (HttpCaching.checkNotModified(ctx, HttpCaching.etag(version.etag, HttpCaching.acceptsGzip(ctx)), version.lastModified)) return;
+			JsonStream.send(ctx, paperbots.getProject(token, projectId, !"false".equals(ctx.queryParam("content"))));
+		}));
+
+		app.get("/api/projectcontent", unitOfWork(paperbots, ctx -> {
+			String token = ctx.cookie("token");
+			String projectId = ctx.queryParam("projectId");
+			ResourceVersion version = paperbots.getProjectVersion(token, projectId);
+			ctx.header("Cache-Control", version.isPublic ? "public, max-age=0, must-revalidate" : "private, max-age=0, must-revalidate");
+			ctx.header("Vary", "Accept-Encoding");
+			// Whether a version is stored gzipped doesn't change, so the ETag can be chosen before the content is loaded.
+			boolean gzip = HttpCaching.acceptsGzip(ctx);
+			if (HttpCaching.checkNotModified(ctx, HttpCaching.etag(version.etag, gzip), version.lastModified)) return;
+
+			// Content is stored gzipped, pass it through as is, so it's neither decompressed nor compressed again.
+			byte[] content = paperbots.getProjectContent(token, projectId);
+			if (ContentCodec.isGzipped(content) && gzip) {
+				content = ContentCodec.getGzipped(content);
+				ctx.header("Content-Encoding", "gzip");
+			} else {
+				content = ContentCodec.decode(content).getBytes(StandardCharsets.UTF_8);
+			}
+			ctx.contentType("application/json");
+			ctx.res.setContentLength(content.length);
+			ctx.res.getOutputStream().write(content);
+		}));
+
+		app.get("/api/projects", unitOfWork(paperbots, ctx -> {
+			String token = ctx.cookie("token");
+			String userName = ctx.queryParam("userName");
+			boolean worldData = Boolean.parseBoolean(ctx.queryParam("worldData"));
+			ResourceVersion version = paperbots.getUserProjectsVersion(token, userName, worldData);
+			ctx.header("Cache-Control", version.isPublic ? "public, max-age=0, must-revalidate" : "private, max-age=0, must-revalidate");
+			ctx.header("Vary", "Accept-Encoding");
+			if (HttpCaching.checkNotModified(ctx, HttpCaching.etag(version.etag, HttpCaching.acceptsGzip(ctx)), version.lastModified)) return;
+			String pageSize = ctx.queryParam("pageSize");
+			JsonStream stream = JsonStream.array(ctx);
+			paperbots.getUserProjects(token, userName, worldData, ctx.queryParam("cursorLastModified"), ctx.queryParam("cursorCode"),
+				pageSize != null ? parseInt("pageSize", pageSize) : null, stream::write);
+			stream.finishArray();
+		}));
+
+		app.get("/api/searchprojects", ctx -> {
+			String offset = ctx.queryParam("offset");
+			String limit = ctx.queryParam("limit");
+			ctx.header("Cache-Control", "public, max-age=10");
+			ctx.json(paperbots.searchProjects(ctx.queryParam("query"), offset != null ? parseInt("offset", offset) : 0,
+				limit != null ? parseInt("limit", limit) : 20));
 		});
 
-		app.post("/api/saveproject", ctx -> {
+		app.post("/api/saveproject", unitOfWork(paperbots, ctx -> {
 			Project request = ctx.bodyAsClass(Project.class);
 			String projectId = paperbots.saveProject(ctx.cookie("token"), request.getCode(), request.getUserName(), request.getTitle(), request.getDescription(),
 				request.getContent(), request.isPublic(), request.getType());
 			ctx.json(new ProjectRequest(projectId));
-		});
+		}));
 
+		// The body is the thumbnail's data URL, streamed to disk instead of parsed as JSON. No unit of work, so no database
+		// connection is held while the upload is read.
 		app.post("/api/savethumbnail", ctx -> {
-			SaveThumbnailRequest request = ctx.bodyAsClass(SaveThumbnailRequest.class);
-			paperbots.saveThumbnail(ctx.cookie("token"), request.projectId, request.thumbnail);
+			paperbots.saveThumbnail(ctx.cookie("token"), ctx.queryParam("projectId"), ctx.req.getInputStream());
 		});
 
-		app.post("/api/deleteproject", ctx -> {
+		app.post("/api/deleteproject", unitOfWork(paperbots, ctx -> {
 			ProjectRequest request = ctx.bodyAsClass(ProjectRequest.class);
 			paperbots.deleteProject(ctx.cookie("token"), request.projectId);
+		}));
+
+		app.post("/api/getprojectrevisions", unitOfWork(paperbots, ctx -> {
+			ProjectRequest request = ctx.bodyAsClass(ProjectRequest.class);
+			ctx.json(paperbots.getProjectRevisions(ctx.cookie("token"), request.projectId));
+		}));
+
+		app.post("/api/getprojectrevision", unitOfWork(paperbots, ctx -> {
+			RevisionRequest request = ctx.bodyAsClass(RevisionRequest.class);
+			ctx.json(new RevisionContentResponse(paperbots.getProjectRevisionContent(ctx.cookie("token"), request.projectId, request.revision)));
+		}));
+
+		app.post("/api/restoreprojectrevision", unitOfWork(paperbots, ctx -> {
+			RevisionRequest request = ctx.bodyAsClass(RevisionRequest.class);
+			paperbots.restoreProjectRevision(ctx.cookie("token"), request.projectId, request.revision);
+		}));
+
+		app.get("/api/getfeaturedprojects", ctx -> {
+			paperbots.getFeaturedProjectsResponse().send(ctx, "public, max-age=60");
 		});
 
 		app.post("/api/getfeaturedprojects", ctx -> {
-			ctx.json(paperbots.getFeaturedProjects());
+			paperbots.getFeaturedProjectsResponse().send(ctx, null);
 		});
 
 		// Error handling
@@ -172,37 +300,49 @@ public class Server {
 
 		app.exception(PaperbotsException.class, (e, ctx) -> {
 			Log.info(e.getMessage(), e);
+			resetPartialResponse(ctx);
 			ctx.json(new ErrorResponse(e.getError()));
 			ctx.status(400);
 		});
 
 		app.exception(Exception.class, (e, ctx) -> {
 			Log.info(e.getMessage(), e);
+			resetPartialResponse(ctx);
 			ctx.json(new ErrorResponse(PaperbotsError.ServerError));
 			ctx.status(500);
 		});
 
+		// Thumbnails are looked up by project code, see Files
+		app.get("/thumbnails/:file", new ThumbnailHandler(paperbots.getFiles()));
+
 		// Proxy images to avoid tainted canvases when thumbnailing
-		app.get("/api/proxyimage", ctx -> {
-			String url = ctx.queryParam("url");
-			URLConnection connection = new URL(url).openConnection();
-			connection.connect();
-			String contentType = connection.getHeaderField("Content-Type");
-			if (!contentType.startsWith("image/")) {
-				ctx.status(404);
-				return;
-			}
-			ctx.contentType(contentType);
-			try (InputStream in = connection.getInputStream()) {
-				in.transferTo(ctx.res.getOutputStream());
-			}
-		});
+		app.get("/api/proxyimage", new ImageProxy(paperbots.getFiles().getFilesDir()));
 
 		// Admin endpoints
-		app.post("/api/getprojectsadmin", ctx -> {
-			ProjectsRequest request = ctx.bodyAsClass(ProjectsRequest.class);
-			ctx.json(paperbots.getProjectsAdmin(ctx.cookie("token"), request.sorting, request.dateOffset));
-		});
+		app.post("/api/getprojectsadmin", unitOfWork(paperbots, ctx -> {
+			AdminProjectsRequest request = ctx.bodyAsClass(AdminProjectsRequest.class);
+			ProjectFilter filter = new ProjectFilter(request.type, request.featured, request.isPublic, request.userName);
+			JsonStream stream = new JsonStream(ctx, generator -> {
+				generator.writeStartObject();
+				generator.writeArrayFieldStart("projects");
+			});
+			String nextCursor = paperbots.getProjectsAdmin(ctx.cookie("token"), request.sorting, filter, request.cursor,
+				request.pageSize != null ? request.pageSize : 10, request.includeContent, stream::write);
+			stream.finish(generator -> {
+				generator.writeEndArray();
+				generator.writeStringField("nextCursor", nextCursor);
+				generator.writeEndObject();
+			});
+		}));
+
+		app.post("/api/setprojectfeaturedadmin", unitOfWork(paperbots, ctx -> {
+			FeaturedRequest request = ctx.bodyAsClass(FeaturedRequest.class);
+			paperbots.setProjectFeaturedAdmin(ctx.cookie("token"), request.projectId, request.featured);
+		}));
+
+		app.post("/api/getmetricsadmin", unitOfWork(paperbots, ctx -> {
+			ctx.json(paperbots.getMetricsAdmin(ctx.cookie("token")));
+		}));
 
 		// CSFR headers
 		app.before(ctx -> {
@@ -215,14 +355,94 @@ public class Server {
 				"geolocation 'self'; midi 'self'; sync-xhr 'self'; microphone 'self'; camera 'self'; magnetometer 'self'; gyroscope 'self'; speaker 'self'; fullscreen *; payment 'self';");
 		});
 
-		app.port(8001).start();
+		// Everything else is static content, registered last so it doesn't shadow other routes
+		app.get("/*", staticAssets);
+		app.head("/*", staticAssets);
+
+		app.port(PORT).start();
 		this.isRunning = true;
+
+		if (config.getWarmupRounds() > 0) {
+			Thread warmup = new Thread( () -> {
+				Warmup.run(paperbots, PORT, config.getWarmupRounds());
+				isReady = !isShuttingDown.get();
+			}, "Warm-up");
+			warmup.setDaemon(true);
+			warmup.start();
+		} else {
+			isReady = true;
+		}
+	}
+
+	/** Wraps the handler so all database access of a request shares a single handle and transaction, see
+	 * {@link Paperbots#unitOfWork(io.paperbots.Paperbots.Work)}. */
+	private static Handler unitOfWork (Paperbots paperbots, Handler handler) {
+		return ctx -> paperbots.unitOfWork( () -> handler.handle(ctx));
+	}
+
+	/** Reloads the static files, keeping the previously loaded files if that fails, e.g. because a file is being written.
+	 * @return whether the files were reloaded */
+	private static boolean reloadStaticAssets (StaticAssets staticAssets) {
+		try {
+			staticAssets.reload();
+			return true;
+		} catch (Throwable t) {
+			Log.error("Couldn't reload static files", t);
+			return false;
+		}
+	}
+
+	/** Parses a query parameter, so malformed input is reported as an invalid argument instead of a server error. */
+	private static int parseInt (String name, String value) {
+		try {
+			return Integer.parseInt(value.trim());
+		} catch (NumberFormatException e) {
+			throw new PaperbotsException(PaperbotsError.InvalidArgument, "Parameter " + name + " must be an integer.", e);
+		}
+	}
+
+	/** Discards whatever a streaming handler wrote before failing, see {@link JsonStream}, so the error response isn't appended to
+	 * it. Once parts of the response have been sent, the client gets a truncated response instead. */
+	private static void resetPartialResponse (Context ctx) {
+		if (JsonStream.isStarted(ctx) && !ctx.res.isCommitted()) ctx.res.reset();
 	}
 
 	public boolean isRunning () {
 		return isRunning;
 	}
 
+	public boolean isReady () {
+		return isReady;
+	}
+
+	/** Stops the server after the in-flight requests completed or the drain timeout passed, then writes pending saves and stops the
+	 * background work, see {@link Paperbots#close()}. Further calls wait for the first one to complete, so it's safe to call from
+	 * both <code>/api/reload</code> and a shutdown hook. */
+	public void shutdown () {
+		if (!isShuttingDown.compareAndSet(false, true)) {
+			try {
+				shutDown.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			return;
+		}
+
+		try {
+			isReady = false;
+			long start = System.currentTimeMillis();
+			stop();
+			Log.info("Drained requests in " + (System.currentTimeMillis() - start) + " ms");
+			staticReleases.close();
+			paperbots.close();
+			Log.info("Shut down in " + (System.currentTimeMillis() - start) + " ms");
+		} catch (Throwable t) {
+			Log.error("Couldn't shut down cleanly", t);
+		} finally {
+			shutDown.countDown();
+		}
+	}
+
 	public void stop () {
 		if (isRunning) {
 			app.stop();
@@ -280,25 +500,38 @@ public class Server {
 		}
 	}
 
-	public static class SaveThumbnailRequest {
+	public static class RevisionRequest {
 		public String projectId;
-		public String thumbnail;
+		public int revision;
 
-		public SaveThumbnailRequest () {
+		public RevisionRequest () {
 		}
 
-		public SaveThumbnailRequest (String projectId, String thumbnail) {
-			super();
+		public RevisionRequest (String projectId, int revision) {
 			this.projectId = projectId;
-			this.thumbnail = thumbnail;
+			this.revision = revision;
+		}
+	}
+
+	public static class RevisionContentResponse {
+		public String content;
+
+		public RevisionContentResponse () {
+		}
+
+		public RevisionContentResponse (String content) {
+			this.content = content;
 		}
 	}
 
 	public static class ProjectsRequest {
 		public String userName;
-		public Sorting sorting;
-		public String dateOffset;
 		public boolean worldData;
+		/** Keyset pagination for {@link Paperbots#getUserProjects(String, String, boolean, String, String, Integer)}: the
+		 * lastModified and code of the last project of the previous page, and the maximum number of projects to return. */
+		public String cursorLastModified;
+		public String cursorCode;
+		public Integer pageSize;
 
 		public ProjectsRequest () {
 		}
@@ -309,6 +542,38 @@ public class Server {
 		}
 	}
 
+	public static class AdminProjectsRequest {
+		public Sorting sorting;
+		public String cursor;
+		public Integer pageSize;
+		public ProjectType type;
+		public Boolean featured;
+		public Boolean isPublic;
+		public String userName;
+		public boolean includeContent;
+
+		public AdminProjectsRequest () {
+		}
+
+		public AdminProjectsRequest (Sorting sorting, String cursor) {
+			this.sorting = sorting;
+			this.cursor = cursor;
+		}
+	}
+
+	public static class FeaturedRequest {
+		public String projectId;
+		public boolean featured;
+
+		public FeaturedRequest () {
+		}
+
+		public FeaturedRequest (String projectId, boolean featured) {
+			this.projectId = projectId;
+			this.featured = featured;
+		}
+	}
+
 	public static class ErrorResponse {
 		public PaperbotsError error;
 
@@ -0,0 +1,279 @@
+package io.paperbots;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+import com.esotericsoftware.minlog.Log;
+
+import io.javalin.Context;
+import io.javalin.Handler;
+import io.paperbots.PaperbotsException.PaperbotsError;
+
+/** Serves the static site, e.g. <code>client/site</code>, from memory. All files are loaded when the site is loaded or reloaded,
+ * hashed, and compressed with gzip at the highest level if that makes them smaller. Both variants are kept in direct buffers, so
+ * Jetty sends them without copying them through the heap. HEAD requests get the headers of the variant a GET would get.
+ *
+ * Every file is also available under a fingerprinted path, which includes a hash of its content, e.g.
+ * <code>/js/paperbots.&lt;hash&gt;.js</code>. Fingerprinted paths are in the same directory as the file, so relative references,
+ * e.g. from a stylesheet to its fonts, keep working. References to files in <code>src</code> and <code>href</code> attributes of
+ * HTML files are rewritten to fingerprinted paths when the site is loaded. Responses to fingerprinted paths never change and are
+ * marked immutable. All other responses are revalidated via their ETag.
+ *
+ * A new version of the site, e.g. a release checked out by {@link StaticReleases}, is loaded completely, including its compressed
+ * variants, before it atomically replaces the served version. The fingerprinted paths of the version it replaced remain available,
+ * so pages loaded just before the swap can still load the files they reference. */
+public class StaticAssets implements Handler {
+	private static final int FINGERPRINT_LENGTH = 12;
+	private static final Pattern REFERENCE = Pattern.compile("((?:src|href)=\")([^\"]+)(\")");
+	private static final String IMMUTABLE = "public, max-age=31536000, immutable";
+	private static final String REVALIDATE = "public, max-age=0, must-revalidate";
+	/** Compressed variants are only kept if they're at most this fraction of the original size. */
+	private static final double MIN_COMPRESSION = 0.9;
+
+	private static final Map<String, String> CONTENT_TYPES = new HashMap<>();
+	static {
+		CONTENT_TYPES.put("html", "text/html; charset=utf-8");
+		CONTENT_TYPES.put("js", "application/javascript; charset=utf-8");
+		CONTENT_TYPES.put("css", "text/css; charset=utf-8");
+		CONTENT_TYPES.put("json", "application/json");
+		CONTENT_TYPES.put("map", "application/json");
+		CONTENT_TYPES.put("txt", "text/plain; charset=utf-8");
+		CONTENT_TYPES.put("svg", "image/svg+xml");
+		CONTENT_TYPES.put("png", "image/png");
+		CONTENT_TYPES.put("jpg", "image/jpeg");
+		CONTENT_TYPES.put("jpeg", "image/jpeg");
+		CONTENT_TYPES.put("gif", "image/gif");
+		CONTENT_TYPES.put("ico", "image/x-icon");
+		CONTENT_TYPES.put("woff", "font/woff");
+		CONTENT_TYPES.put("woff2", "font/woff2");
+		CONTENT_TYPES.put("ttf", "font/ttf");
+		CONTENT_TYPES.put("eot", "application/vnd.ms-fontobject");
+	}
+
+	private volatile Version version;
+	private final AtomicLong reloads = Metrics.counter("static.reloads");
+
+	public StaticAssets (File root) {
+		swap(root);
+		Metrics.gauge("static.assets", () -> version.assets.values().stream().distinct().count());
+		Metrics.gauge("static.bytes", () -> version.getAssets().distinct().mapToLong(Asset::getSize).sum());
+	}
+
+	/** Loads the files of the currently served directory again, see {@link #swap(File)}. */
+	public synchronized void reload () {
+		swap(version.root);
+	}
+
+	/** Loads all files of the site in the directory, then serves them instead of the currently served files. Until loading is
+	 * complete, requests are served from the currently served files. */
+	public synchronized void swap (File root) {
+		long start = System.currentTimeMillis();
+		Map<String, Asset> loaded = new HashMap<>();
+		List<Path> files;
+		try (Stream<Path> paths = java.nio.file.Files.walk(root.toPath())) {
+			files = paths.filter(java.nio.file.Files::isRegularFile).collect(Collectors.toList());
+		} catch (IOException e) {
+			throw new PaperbotsException(PaperbotsError.ServerError, "Couldn't list static files in " + root.getPath(), e);
+		}
+
+		// HTML files reference the other files, so they are rewritten once those are loaded.
+		for (boolean html : new boolean[] {false, true}) {
+			for (Path file : files) {
+				String path = "/" + root.toPath().relativize(file).toString().replace(File.separatorChar, '/');
+				// Hidden files, e.g. of version control, aren't part of the site.
+				if (path.contains("/.") || path.endsWith(".html") != html) continue;
+				try {
+					byte[] content = java.nio.file.Files.readAllBytes(file);
+					Asset asset;
+					if (html) {
+						String rewritten = fingerprintReferences(path, new String(content, StandardCharsets.UTF_8), loaded);
+						asset = new Asset(path, rewritten.getBytes(StandardCharsets.UTF_8));
+					} else {
+						asset = new Asset(path, content);
+					}
+					loaded.put(path, asset);
+					loaded.put(asset.fingerprintedPath, asset);
+				} catch (IOException e) {
+					throw new PaperbotsException(PaperbotsError.ServerError, "Couldn't load static file " + file, e);
+				}
+			}
+		}
+
+		version = new Version(root, loaded, version != null ? version.assets : null);
+		reloads.incrementAndGet();
+		Log.info("Loaded " + loaded.values().stream().distinct().count() + " static files from " + root.getPath() + " in "
+			+ (System.currentTimeMillis() - start) + " ms");
+	}
+
+	@Override
+	public void handle (Context ctx) throws Exception {
+		String path = ctx.path();
+		if (path.endsWith("/")) path += "index.html";
+		Version version = this.version;
+		Asset asset = version.get(path);
+		if (asset == null) {
+			if (version.assets.containsKey(path + "/index.html")) {
+				ctx.redirect(path + "/");
+			} else {
+				ctx.status(404);
+			}
+			return;
+		}
+
+		ctx.header("Cache-Control", path.equals(asset.fingerprintedPath) ? IMMUTABLE : REVALIDATE);
+		ctx.header("Vary", "Accept-Encoding");
+		Variant variant = asset.gzip != null && HttpCaching.acceptsGzip(ctx) ? asset.gzip : asset.identity;
+		if (HttpCaching.checkNotModified(ctx, variant.etag, 0)) return;
+
+		// Sent straight to the servlet output stream, so Javalin doesn't compress the content a second time.
+		if (variant.encoding != null) ctx.header("Content-Encoding", variant.encoding);
+		ctx.contentType(asset.contentType);
+		ctx.res.setContentLength(variant.content.remaining());
+		if (ctx.method().equals("HEAD")) return;
+		HttpCaching.send(ctx, variant.content.duplicate());
+	}
+
+	/** @return the path under which the file at the path is served immutably, or null if there is no such file. */
+	String getFingerprintedPath (String path) {
+		Asset asset = version.get(path);
+		return asset != null ? asset.fingerprintedPath : null;
+	}
+
+	/** @return the content of the file at the path with the encoding, null for no encoding, or null if there is no such variant. */
+	byte[] getContent (String path, String encoding) {
+		Asset asset = version.get(path);
+		if (asset == null) return null;
+		Variant variant = encoding == null ? asset.identity : encoding.equals("gzip") ? asset.gzip : null;
+		if (variant == null) return null;
+		byte[] content = new byte[variant.content.remaining()];
+		variant.content.duplicate().get(content);
+		return content;
+	}
+
+	/** Replaces relative and absolute references to files of the site with their fingerprinted paths. Links to other pages are
+	 * left as they are, so page URLs stay stable. */
+	private static String fingerprintReferences (String htmlPath, String html, Map<String, Asset> assets) {
+		Matcher matcher = REFERENCE.matcher(html);
+		StringBuffer rewritten = new StringBuffer(html.length());
+		while (matcher.find()) {
+			String reference = matcher.group(2);
+			String replacement = reference;
+			if (!reference.contains(":") && !reference.startsWith("//") && !reference.contains("?") && !reference.contains("#")) {
+				try {
+					String path = URI.create(htmlPath).resolve(reference).getPath();
+					Asset asset = assets.get(path);
+					if (asset != null && !path.endsWith(".html")) replacement = asset.fingerprintedPath;
+				} catch (IllegalArgumentException e) {
+					// Not a valid URI, leave it as is.
+				}
+			}
+			matcher.appendReplacement(rewritten, Matcher.quoteReplacement(matcher.group(1) + replacement + matcher.group(3)));
+		}
+		matcher.appendTail(rewritten);
+		return rewritten.toString();
+	}
+
+	private static byte[] gzip (byte[] data) {
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(data.length / 4 + 64);
+			try (GZIPOutputStream out = new GZIPOutputStream(bytes) {
+				{
+					def.setLevel(Deflater.BEST_COMPRESSION);
+				}
+			}) {
+				out.write(data);
+			}
+			return bytes.toByteArray();
+		} catch (IOException e) {
+			throw new PaperbotsException(PaperbotsError.ServerError, "Couldn't compress static file", e);
+		}
+	}
+
+	private static boolean isCompressible (String contentType) {
+		return contentType.startsWith("text/") || contentType.startsWith("application/") || contentType.equals("image/svg+xml")
+			|| contentType.equals("image/x-icon") || contentType.equals("font/ttf");
+	}
+
+	private static class Version {
+		final File root;
+		final Map<String, Asset> assets;
+		final Map<String, Asset> previousAssets;
+
+		Version (File root, Map<String, Asset> assets, Map<String, Asset> previousAssets) {
+			this.root = root;
+			this.assets = assets;
+			this.previousAssets = previousAssets;
+		}
+
+		/** @return the asset at the path, or the asset of the previous version if the path is one of its fingerprinted paths. */
+		Asset get (String path) {
+			Asset asset = assets.get(path);
+			if (asset == null && previousAssets != null) {
+				asset = previousAssets.get(path);
+				if (asset != null && !path.equals(asset.fingerprintedPath)) asset = null;
+			}
+			return asset;
+		}
+
+		Stream<Asset> getAssets () {
+			Stream<Asset> assets = this.assets.values().stream();
+			return previousAssets != null ? Stream.concat(assets, previousAssets.values().stream()) : assets;
+		}
+	}
+
+	private static class Asset {
+		final String fingerprintedPath;
+		final String contentType;
+		final Variant identity;
+		final Variant gzip;
+
+		Asset (String path, byte[] content) {
+			String hash = CachedResponse.hash(content);
+			int extension = path.lastIndexOf('.');
+			boolean hasExtension = extension > path.lastIndexOf('/');
+			String contentType = hasExtension ? CONTENT_TYPES.get(path.substring(extension + 1).toLowerCase()) : null;
+			this.contentType = contentType != null ? contentType : "application/octet-stream";
+			String fingerprint = hash.substring(0, FINGERPRINT_LENGTH);
+			this.fingerprintedPath = hasExtension ? path.substring(0, extension) + "." + fingerprint + path.substring(extension)
+				: path + "." + fingerprint;
+
+			identity = new Variant(content, null, "\"" + hash + "\"");
+			byte[] gzipped = isCompressible(this.contentType) ? StaticAssets.gzip(content) : null;
+			gzip = gzipped != null && gzipped.length <= content.length * MIN_COMPRESSION ? new Variant(gzipped, "gzip", "\"" + hash + "-gz\"")
+				: null;
+		}
+
+		long getSize () {
+			return identity.content.capacity() + (gzip != null ? gzip.content.capacity() : 0);
+		}
+	}
+
+	private static class Variant {
+		final ByteBuffer content;
+		final String encoding;
+		final String etag;
+
+		Variant (byte[] content, String encoding, String etag) {
+			ByteBuffer buffer = ByteBuffer.allocateDirect(content.length);
+			buffer.put(content).flip();
+			this.content = buffer.asReadOnlyBuffer();
+			this.encoding = encoding;
+			this.etag = etag;
+		}
+	}
+}
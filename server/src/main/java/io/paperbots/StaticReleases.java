@@ -0,0 +1,146 @@
+package io.paperbots;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Comparator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import com.esotericsoftware.minlog.Log;
+
+import io.paperbots.PaperbotsException.PaperbotsError;
+
+/** Deploys new versions of the static site without touching the files being served. The static directory must be part of a git
+ * checkout. A release fetches the upstream branch of the checkout, extracts the static directory of its latest commit into
+ * <code>static/&lt;commit&gt;</code> of the files directory, and swaps it in via {@link StaticAssets#swap(File)}. The checkout
+ * itself is left as is, the start script pulls it on the next restart.
+ *
+ * Files are served from memory, so only the directory of the served release is kept. Releases are deployed one at a time on a
+ * background thread. */
+public class StaticReleases {
+	private static final long GIT_TIMEOUT = 1000 * 60 * 2;
+
+	private final File staticDir;
+	private final File releasesDir;
+	private final StaticAssets assets;
+	private final ExecutorService executor;
+	private String currentCommit;
+
+	public StaticReleases (File staticDir, File filesDir, StaticAssets assets) {
+		this.staticDir = staticDir;
+		this.releasesDir = new File(filesDir, "static");
+		this.assets = assets;
+		// Releases of a previous run aren't served anymore.
+		delete(releasesDir);
+		executor = Executors.newSingleThreadExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "Static releases");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/** Deploys the latest commit of the upstream branch in the background, unless it's already served. */
+	public void deployLatest () {
+		executor.execute( () -> {
+			try {
+				deploy();
+			} catch (Throwable t) {
+				Log.error("Couldn't deploy static files", t);
+			}
+		});
+	}
+
+	void deploy () throws IOException {
+		File checkout = new File(git(staticDir, "rev-parse", "--show-toplevel"));
+		String prefix = git(staticDir, "rev-parse", "--show-prefix");
+		git(checkout, "fetch", "--quiet");
+		String commit = git(checkout, "rev-parse", "@{upstream}");
+		if (commit.equals(currentCommit)) {
+			Log.info("Static files are up to date at " + commit);
+			return;
+		}
+
+		long start = System.currentTimeMillis();
+		File release = new File(releasesDir, commit);
+		if (!release.exists()) {
+			File archive = new File(releasesDir, commit + ".zip");
+			File extracted = new File(releasesDir, commit + ".tmp");
+			try {
+				delete(extracted);
+				releasesDir.mkdirs();
+				git(checkout, "archive", "--format=zip", "-o", archive.getAbsolutePath(), commit + ":" + prefix);
+				extract(archive, extracted);
+				java.nio.file.Files.move(extracted.toPath(), release.toPath(), StandardCopyOption.ATOMIC_MOVE);
+			} finally {
+				archive.delete();
+				delete(extracted);
+			}
+		}
+
+		assets.swap(release);
+		if (currentCommit != null) delete(new File(releasesDir, currentCommit));
+		currentCommit = commit;
+		Log.info("Deployed static files at " + commit + " in " + (System.currentTimeMillis() - start) + " ms");
+	}
+
+	public void close () {
+		executor.shutdownNow();
+	}
+
+	/** Runs the git command in the directory.
+	 * @return the trimmed output of the command */
+	private static String git (File directory, String... arguments) throws IOException {
+		String[] command = new String[arguments.length + 1];
+		command[0] = "git";
+		System.arraycopy(arguments, 0, command, 1, arguments.length);
+		Process process = new ProcessBuilder(command).directory(directory).redirectErrorStream(true).start();
+		try {
+			String output;
+			try (InputStream in = process.getInputStream()) {
+				output = new String(in.readAllBytes(), StandardCharsets.UTF_8).trim();
+			}
+			if (!process.waitFor(GIT_TIMEOUT, TimeUnit.MILLISECONDS)) throw new IOException("Timed out: " + String.join(" ", command));
+			if (process.exitValue() != 0) throw new IOException(String.join(" ", command) + " failed: " + output);
+			return output;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted: " + String.join(" ", command), e);
+		} finally {
+			process.destroy();
+		}
+	}
+
+	private static void extract (File archive, File dir) throws IOException {
+		Path root = dir.toPath().toAbsolutePath().normalize();
+		try (ZipInputStream in = new ZipInputStream(java.nio.file.Files.newInputStream(archive.toPath()))) {
+			ZipEntry entry;
+			while ((entry = in.getNextEntry()) != null) {
+				Path file = root.resolve(entry.getName()).normalize();
+				if (!file.startsWith(root)) throw new IOException("Invalid archive entry " + entry.getName());
+				if (entry.isDirectory()) {
+					java.nio.file.Files.createDirectories(file);
+				} else {
+					java.nio.file.Files.createDirectories(file.getParent());
+					java.nio.file.Files.copy(in, file);
+				}
+			}
+		}
+	}
+
+	private static void delete (File dir) {
+		if (!dir.exists()) return;
+		try (Stream<Path> paths = java.nio.file.Files.walk(dir.toPath())) {
+			paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+		} catch (IOException e) {
+			throw new PaperbotsException(PaperbotsError.ServerError, "Couldn't delete " + dir, e);
+		}
+	}
+}
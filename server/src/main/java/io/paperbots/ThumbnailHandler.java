@@ -0,0 +1,139 @@
+package io.paperbots;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.javalin.Context;
+import io.javalin.Handler;
+
+/** Serves <code>/thumbnails/&lt;code&gt;.png</code>, see {@link Files}. The ETag of a thumbnail is its content hash. Clients that
+ * know the hash, e.g. from a project list, request <code>/thumbnails/&lt;code&gt;.png?v=&lt;hash&gt;</code>. As long as the hash
+ * is current, such a URL always returns the same image and is marked immutable. Other URLs are revalidated. Clients may add
+ * <code>w=&lt;pixels&gt;</code> to get the smallest size derived by {@link ThumbnailPipeline} that is at least that wide. Until it
+ * is derived, the original is served and revalidated.
+ *
+ * The most recently served thumbnails are kept in direct buffers, up to {@link #CACHE_BYTES}. Larger or less frequently requested
+ * thumbnails are memory-mapped. Either way, Jetty writes the buffer to the socket without copying it through the heap. */
+public class ThumbnailHandler implements Handler {
+	private static final long CACHE_BYTES = 32 * 1024 * 1024;
+	private static final long MAX_CACHED_SIZE = 512 * 1024;
+	private static final String IMMUTABLE = "public, max-age=31536000, immutable";
+	private static final String REVALIDATE = "public, max-age=0, must-revalidate";
+
+	private final Files files;
+	private final LinkedHashMap<String, ByteBuffer> cache = new LinkedHashMap<>(256, 0.75f, true);
+	private long cachedBytes;
+	private final AtomicLong hits = Metrics.counter("thumbnails.cacheHits");
+	private final AtomicLong misses = Metrics.counter("thumbnails.cacheMisses");
+
+	public ThumbnailHandler (Files files) {
+		this.files = files;
+		Metrics.gauge("thumbnails.cacheBytes", this::getCachedBytes);
+	}
+
+	@Override
+	public void handle (Context ctx) throws Exception {
+		String name = ctx.pathParam("file");
+		if (!name.endsWith(".png")) {
+			ctx.status(404);
+			return;
+		}
+		String code = name.substring(0, name.length() - ".png".length());
+		String hash = files.getThumbnailHash(code);
+		File file = files.getThumbnailFile(code);
+		if (file == null) {
+			ctx.status(404);
+			return;
+		}
+
+		// Thumbnails not yet migrated to the store have no hash.
+		String key = hash;
+		boolean complete = true;
+		int width = parseWidth(ctx.queryParam("w"));
+		if (hash != null && width > 0) {
+			File derived = files.getDerivedThumbnailFile(hash, width);
+			if (derived != null) {
+				file = derived;
+				key = hash + "-" + ThumbnailPipeline.getWidth(width);
+			} else {
+				complete = false;
+			}
+		}
+		String etag = key != null ? "\"" + key + "\"" : "\"" + file.lastModified() + "-" + file.length() + "\"";
+		boolean versioned = complete && hash != null && hash.equals(ctx.queryParam("v"));
+		ctx.header("Cache-Control", versioned ? IMMUTABLE : REVALIDATE);
+		if (HttpCaching.checkNotModified(ctx, etag, 0)) return;
+
+		ByteBuffer content;
+		try {
+			content = key != null ? getCached(key, file) : map(file);
+		} catch (NoSuchFileException e) {
+			// Replaced or deleted since the lookup.
+			ctx.status(404);
+			return;
+		}
+		ctx.contentType("image/png");
+		ctx.res.setContentLengthLong(content.remaining());
+		HttpCaching.send(ctx, content);
+	}
+
+	public synchronized long getCachedBytes () {
+		return cachedBytes;
+	}
+
+	private static int parseWidth (String width) {
+		if (width == null) return 0;
+		try {
+			return Integer.parseInt(width);
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+
+	/** @param key the hash of the image, followed by the width for derived images */
+	private ByteBuffer getCached (String key, File file) throws IOException {
+		synchronized (this) {
+			ByteBuffer cached = cache.get(key);
+			if (cached != null) {
+				hits.incrementAndGet();
+				return cached.duplicate();
+			}
+		}
+		misses.incrementAndGet();
+
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			long size = channel.size();
+			if (size > MAX_CACHED_SIZE) return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+			ByteBuffer content = ByteBuffer.allocateDirect((int)size);
+			while (content.hasRemaining() && channel.read(content) != -1)
+				;
+			content.flip();
+			ByteBuffer readOnly = content.asReadOnlyBuffer();
+
+			synchronized (this) {
+				// Images are content-addressed, a concurrent miss cached the same bytes.
+				if (cache.put(key, readOnly) == null) cachedBytes += size;
+				Iterator<Map.Entry<String, ByteBuffer>> eldest = cache.entrySet().iterator();
+				while (cachedBytes > CACHE_BYTES && eldest.hasNext()) {
+					cachedBytes -= eldest.next().getValue().capacity();
+					eldest.remove();
+				}
+			}
+			return readOnly.duplicate();
+		}
+	}
+
+	private static ByteBuffer map (File file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+	}
+}
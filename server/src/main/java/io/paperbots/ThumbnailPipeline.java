@@ -0,0 +1,221 @@
+package io.paperbots;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.awt.image.Raster;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+
+import com.esotericsoftware.minlog.Log;
+
+/** Derives smaller versions of the thumbnails in {@link Files}, one per width in {@link #WIDTHS}. A derived image is stored next to
+ * its original as <code>&lt;hash&gt;-&lt;width&gt;.png</code>. It's scaled down preserving the aspect ratio, stored without alpha
+ * channel if the original is opaque, and compressed with the highest deflate level. If that isn't smaller than the original, the
+ * original bytes are stored instead, so a derivation is never repeated. Images with more than {@link #MAX_PIXELS} pixels are never
+ * decoded, as a small, highly compressed PNG can expand to gigabytes of pixels. Their original bytes are stored for every width.
+ *
+ * Derivations run on a small worker pool with a bounded queue. When the queue is full, new derivations are rejected rather than
+ * slowing down uploads. Until its derived images exist, a thumbnail is served in its original size, and requesting it enqueues the
+ * missing derivations again, see {@link ThumbnailHandler}. */
+public class ThumbnailPipeline {
+	/** Widths of the derived images, in ascending order. Previews show thumbnails 192 pixels wide. */
+	public static final int[] WIDTHS = {96, 192, 384};
+	/** Maximum number of pixels of an image that is decoded to derive its sizes, 64 MB as ARGB. */
+	public static final long MAX_PIXELS = 4096 * 4096;
+	private static final int QUEUE_SIZE = 256;
+
+	static {
+		// Scaling doesn't need a display.
+		System.setProperty("java.awt.headless", "true");
+	}
+
+	private final Files files;
+	private final ThreadPoolExecutor executor;
+	private final Set<String> pending = Collections.newSetFromMap(new ConcurrentHashMap<>());
+	private final AtomicLong derived = Metrics.counter("thumbnails.derived");
+	private final AtomicLong rejected = Metrics.counter("thumbnails.derivationsRejected");
+	private final AtomicLong failed = Metrics.counter("thumbnails.derivationsFailed");
+	private final AtomicLong oversized = Metrics.counter("thumbnails.oversized");
+	private final AtomicLong encodeMicros = Metrics.counter("thumbnails.encodeMicros");
+	private final AtomicLong maxEncodeMicros = Metrics.counter("thumbnails.maxEncodeMicros");
+
+	public ThumbnailPipeline (Files files) {
+		this.files = files;
+		int threads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+		AtomicInteger threadCount = new AtomicInteger();
+		executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(QUEUE_SIZE), runnable -> {
+			Thread thread = new Thread(runnable, "Thumbnail pipeline " + threadCount.getAndIncrement());
+			thread.setDaemon(true);
+			thread.setPriority(Thread.MIN_PRIORITY);
+			return thread;
+		}, new ThreadPoolExecutor.AbortPolicy());
+		Metrics.gauge("thumbnails.derivationQueue", () -> executor.getQueue().size());
+	}
+
+	/** Enqueues the derivation of the image's missing sizes, unless it's already enqueued or the queue is full.
+	 * @return whether the derivation was enqueued */
+	public boolean derive (String hash) {
+		if (!pending.add(hash)) return false;
+		try {
+			executor.execute( () -> {
+				try {
+					deriveNow(hash);
+				} finally {
+					pending.remove(hash);
+				}
+			});
+			return true;
+		} catch (RejectedExecutionException e) {
+			pending.remove(hash);
+			rejected.incrementAndGet();
+			return false;
+		}
+	}
+
+	public int getQueueLength () {
+		return executor.getQueue().size();
+	}
+
+	public void close () {
+		executor.shutdownNow();
+	}
+
+	/** @return the width in {@link #WIDTHS} to serve for a client that displays the image the given number of pixels wide. */
+	public static int getWidth (int requestedWidth) {
+		for (int width : WIDTHS)
+			if (width >= requestedWidth) return width;
+		return WIDTHS[WIDTHS.length - 1];
+	}
+
+	void deriveNow (String hash) {
+		try {
+			File original = files.getImageFile(hash);
+			if (!original.exists()) return;
+			byte[] originalContent = null;
+			BufferedImage image = null;
+			for (int width : WIDTHS) {
+				File file = files.getImageFile(hash, width);
+				if (file.exists()) continue;
+				if (originalContent == null) {
+					originalContent = java.nio.file.Files.readAllBytes(original.toPath());
+					image = read(original);
+					if (image == null) {
+						oversized.incrementAndGet();
+						Log.warn("Thumbnail " + hash + " exceeds " + MAX_PIXELS + " pixels, storing its original for all sizes");
+					}
+				}
+				if (image == null) {
+					files.writeAtomically(file, originalContent);
+					continue;
+				}
+
+				long start = System.nanoTime();
+				byte[] content = encode(scale(image, width));
+				long micros = (System.nanoTime() - start) / 1000;
+				encodeMicros.addAndGet(micros);
+				maxEncodeMicros.accumulateAndGet(micros, Math::max);
+
+				files.writeAtomically(file, content.length < originalContent.length ? content : originalContent);
+				derived.incrementAndGet();
+			}
+		} catch (Throwable t) {
+			failed.incrementAndGet();
+			Log.error("Couldn't derive thumbnail sizes of " + hash, t);
+		}
+	}
+
+	/** Reads the image's dimensions from its header and decodes it only if it has at most {@link #MAX_PIXELS} pixels.
+	 * @return the image, or null if it has too many pixels
+	 * @throws IOException if the file isn't an image or can't be read */
+	static BufferedImage read (File file) throws IOException {
+		try (ImageInputStream in = ImageIO.createImageInputStream(file)) {
+			Iterator<ImageReader> readers = in != null ? ImageIO.getImageReaders(in) : Collections.emptyIterator();
+			if (!readers.hasNext()) throw new IOException("Not an image: " + file);
+			ImageReader reader = readers.next();
+			try {
+				reader.setInput(in, true, true);
+				if ((long)reader.getWidth(0) * reader.getHeight(0) > MAX_PIXELS) return null;
+				return reader.read(0);
+			} finally {
+				reader.dispose();
+			}
+		}
+	}
+
+	/** Scales the image down to the width, halving its size in steps so each step interpolates between neighbouring pixels only. */
+	static BufferedImage scale (BufferedImage image, int width) {
+		boolean opaque = isOpaque(image);
+		int type = opaque ? BufferedImage.TYPE_INT_RGB : BufferedImage.TYPE_INT_ARGB;
+		int targetWidth = Math.min(width, image.getWidth());
+		int targetHeight = Math.max(1, Math.round(image.getHeight() * (float)targetWidth / image.getWidth()));
+
+		BufferedImage scaled = image;
+		do {
+			int stepWidth = Math.max(targetWidth, scaled.getWidth() / 2);
+			int stepHeight = Math.max(targetHeight, scaled.getHeight() / 2);
+			BufferedImage step = new BufferedImage(stepWidth, stepHeight, type);
+			Graphics2D graphics = step.createGraphics();
+			graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+			graphics.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+			graphics.drawImage(scaled, 0, 0, stepWidth, stepHeight, null);
+			graphics.dispose();
+			scaled = step;
+		} while (scaled.getWidth() > targetWidth);
+		return scaled;
+	}
+
+	static byte[] encode (BufferedImage image) throws IOException {
+		Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName("png");
+		if (!writers.hasNext()) throw new IOException("No PNG writer available");
+		ImageWriter writer = writers.next();
+		try {
+			ImageWriteParam param = writer.getDefaultWriteParam();
+			if (param.canWriteCompressed()) {
+				param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+				// Quality 0 selects the highest deflate level.
+				param.setCompressionQuality(0);
+			}
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			try (ImageOutputStream out = ImageIO.createImageOutputStream(bytes)) {
+				writer.setOutput(out);
+				writer.write(null, new IIOImage(image, null, null), param);
+			}
+			return bytes.toByteArray();
+		} finally {
+			writer.dispose();
+		}
+	}
+
+	private static boolean isOpaque (BufferedImage image) {
+		if (!image.getColorModel().hasAlpha()) return true;
+		Raster alpha = image.getAlphaRaster();
+		if (alpha == null) return true;
+		int[] row = new int[alpha.getWidth()];
+		for (int y = 0; y < alpha.getHeight(); y++) {
+			alpha.getSamples(0, y, row.length, 1, 0, row);
+			for (int value : row)
+				if (value != 255) return false;
+		}
+		return true;
+	}
+}
@@ -0,0 +1,94 @@
+package io.paperbots;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.paperbots.data.User;
+
+/** Bounded in-memory cache mapping login tokens to their {@link User}. Entries expire after a fixed time to live. If the cache is
+ * full, the least recently used entry is evicted. Tokens must be invalidated via {@link #invalidate(String)} on logout. Users are
+ * never modified, so their tokens needn't be invalidated otherwise.
+ *
+ * A lookup that read a token from the database before a logout committed must not cache the revoked token afterwards. Lookups
+ * read {@link #getInvalidations()} before querying the database and pass it to {@link #put(String, User, long)}, which drops the
+ * entry if a token has been invalidated since. */
+public class TokenCache {
+	private final int maxEntries;
+	private final long timeToLive;
+	private final LinkedHashMap<String, Entry> entries;
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private long invalidations;
+
+	/** @param maxEntries the maximum number of tokens to cache
+	 * @param timeToLive the time in milliseconds after which a cached token has to be looked up again */
+	public TokenCache (int maxEntries, long timeToLive) {
+		this.maxEntries = maxEntries;
+		this.timeToLive = timeToLive;
+		this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry (Map.Entry<String, Entry> eldest) {
+				return size() > TokenCache.this.maxEntries;
+			}
+		};
+	}
+
+	/** @return the cached user for the token or null if the token isn't cached or its entry expired. */
+	public synchronized User get (String token) {
+		Entry entry = entries.get(token);
+		if (entry == null || entry.expires < System.currentTimeMillis()) {
+			if (entry != null) entries.remove(token);
+			misses.incrementAndGet();
+			return null;
+		}
+		hits.incrementAndGet();
+		return entry.user;
+	}
+
+	/** Caches the user for the token, unless a token has been invalidated since the lookup started.
+	 * @param invalidations the value of {@link #getInvalidations()} before the user was read from the database */
+	public synchronized void put (String token, User user, long invalidations) {
+		if (invalidations != this.invalidations) return;
+		entries.put(token, new Entry(user, System.currentTimeMillis() + timeToLive));
+	}
+
+	public synchronized void invalidate (String token) {
+		invalidations++;
+		entries.remove(token);
+	}
+
+	public synchronized void clear () {
+		invalidations++;
+		entries.clear();
+	}
+
+	/** @return the number of invalidations so far, see {@link #put(String, User, long)}. */
+	public synchronized long getInvalidations () {
+		return invalidations;
+	}
+
+	public synchronized int size () {
+		return entries.size();
+	}
+
+	public long getHits () {
+		return hits.get();
+	}
+
+	public long getMisses () {
+		return misses.get();
+	}
+
+	private static class Entry {
+		final User user;
+		final long expires;
+
+		Entry (User user, long expires) {
+			this.user = user;
+			this.expires = expires;
+		}
+	}
+}
@@ -0,0 +1,82 @@
+package io.paperbots;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.esotericsoftware.minlog.Log;
+
+import io.paperbots.data.Project;
+
+/** Replays a synthetic set of requests against the local server after startup, so the hot paths are compiled and the caches and
+ * connection pools are filled before the server reports ready, see {@link Server}. The set covers what most visitors load first: the
+ * front page, the featured projects with their content, thumbnails and owners' project lists, and a search. Requests accept gzip,
+ * like browsers do. Failed requests are logged and otherwise ignored. */
+public class Warmup {
+	private static final int CONNECT_TIMEOUT = 1000;
+	private static final int READ_TIMEOUT = 1000 * 10;
+
+	public static void run (Paperbots paperbots, int port, int rounds) {
+		long start = System.currentTimeMillis();
+		List<String> paths = getPaths(paperbots);
+		int failed = 0;
+		for (int round = 0; round < rounds; round++)
+			for (String path : paths)
+				if (!get("http://localhost:" + port + path)) failed++;
+		Log.info("Warmed up with " + rounds * paths.size() + " requests in " + (System.currentTimeMillis() - start) + " ms, " + failed
+			+ " failed");
+	}
+
+	static List<String> getPaths (Paperbots paperbots) {
+		List<String> paths = new ArrayList<>();
+		paths.add("/");
+		paths.add("/api/getfeaturedprojects");
+		paths.add("/api/searchprojects?query=robot");
+		try {
+			for (Project project : paperbots.getFeaturedProjects()) {
+				String code = encode(project.getCode());
+				paths.add("/api/project?projectId=" + code);
+				paths.add("/api/projectcontent?projectId=" + code);
+				paths.add("/api/projects?userName=" + encode(project.getUserName()));
+				if (project.getThumbnail() != null) paths.add("/thumbnails/" + code + ".png?v=" + project.getThumbnail() + "&w=192");
+			}
+		} catch (Throwable t) {
+			Log.warn("Couldn't query featured projects to warm up with", t);
+		}
+		return paths;
+	}
+
+	/** Reads the response completely, so the connection is reused by the next request.
+	 * @return whether the request succeeded */
+	private static boolean get (String url) {
+		try {
+			HttpURLConnection connection = (HttpURLConnection)new URL(url).openConnection();
+			connection.setConnectTimeout(CONNECT_TIMEOUT);
+			connection.setReadTimeout(READ_TIMEOUT);
+			connection.setRequestProperty("Accept-Encoding", "gzip");
+			int status = connection.getResponseCode();
+			try (InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream()) {
+				if (in != null) in.readAllBytes();
+			}
+			if (status < 400) return true;
+			Log.debug("Warm-up request " + url + " failed with status " + status);
+			return false;
+		} catch (IOException e) {
+			Log.debug("Warm-up request " + url + " failed", e);
+			return false;
+		}
+	}
+
+	private static String encode (String value) {
+		try {
+			return URLEncoder.encode(value, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+}
@@ -7,6 +7,8 @@ public class Project {
 	private String title;
 	private String description;
 	private String content;
+	private String preview;
+	private String thumbnail;
 	private String created;
 	private String lastModified;
 	private boolean isPublic;
@@ -56,6 +58,23 @@ public class Project {
 		this.content = content;
 	}
 
+	public String getPreview () {
+		return preview;
+	}
+
+	public void setPreview (String preview) {
+		this.preview = preview;
+	}
+
+	/** @return the hash of the project's thumbnail, used to build versioned thumbnail URLs, see {@link io.paperbots.ThumbnailHandler}. */
+	public String getThumbnail () {
+		return thumbnail;
+	}
+
+	public void setThumbnail (String thumbnail) {
+		this.thumbnail = thumbnail;
+	}
+
 	public String getCreated () {
 		return created;
 	}
@@ -0,0 +1,34 @@
+package io.paperbots.data;
+
+public class ProjectRevision {
+	private int revision;
+	private String created;
+	private boolean isSnapshot;
+
+	public ProjectRevision () {
+	}
+
+	public int getRevision () {
+		return revision;
+	}
+
+	public void setRevision (int revision) {
+		this.revision = revision;
+	}
+
+	public String getCreated () {
+		return created;
+	}
+
+	public void setCreated (String created) {
+		this.created = created;
+	}
+
+	public boolean isSnapshot () {
+		return isSnapshot;
+	}
+
+	public void setSnapshot (boolean isSnapshot) {
+		this.isSnapshot = isSnapshot;
+	}
+}
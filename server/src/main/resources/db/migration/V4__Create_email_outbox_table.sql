@@ -0,0 +1,12 @@
+CREATE TABLE `emailOutbox` (
+  `id` int(11) unsigned NOT NULL AUTO_INCREMENT,
+  `recipient` varchar(318) NOT NULL DEFAULT '',
+  `subject` varchar(255) NOT NULL DEFAULT '',
+  `message` mediumtext NOT NULL,
+  `created` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP,
+  `attempts` int(11) NOT NULL DEFAULT '0',
+  `nextAttempt` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP,
+  `failed` tinyint(1) NOT NULL DEFAULT '0',
+  PRIMARY KEY (`id`),
+  KEY `failed_nextAttempt` (`failed`, `nextAttempt`)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8mb4 COLLATE=utf8mb4_unicode_ci;
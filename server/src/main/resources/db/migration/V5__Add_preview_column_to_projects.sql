@@ -0,0 +1 @@
+ALTER TABLE `projects` ADD COLUMN `preview` mediumtext NULL AFTER `content`;
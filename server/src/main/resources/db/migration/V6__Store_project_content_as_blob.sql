@@ -0,0 +1,2 @@
+-- Content is stored encoded by ContentCodec. Existing rows keep their UTF-8 bytes, which the codec reads as is.
+ALTER TABLE `projects` MODIFY `content` mediumblob NOT NULL;
@@ -0,0 +1,10 @@
+CREATE TABLE `projectRevisions` (
+  `id` int(11) unsigned NOT NULL AUTO_INCREMENT,
+  `code` varchar(6) NOT NULL DEFAULT '',
+  `revision` int(11) NOT NULL,
+  `created` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP,
+  `snapshot` tinyint(1) NOT NULL DEFAULT '0',
+  `data` mediumblob NOT NULL,
+  PRIMARY KEY (`id`),
+  UNIQUE KEY `code_revision` (`code`, `revision`)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8mb4 COLLATE=utf8mb4_unicode_ci;
@@ -0,0 +1,25 @@
+-- tinyint ids capped the number of projects at 255.
+-- The list indexes end in code, the tie-breaker of every paged ordering, so pages are read in index order without a filesort.
+-- userName_lastModified_code_public covers the version query of a user's projects and filters private projects without
+-- reading rows. code, name, name_3 and token duplicate unique keys.
+ALTER TABLE `projects`
+  MODIFY `id` int(11) unsigned NOT NULL AUTO_INCREMENT,
+  MODIFY `userId` int(11) NOT NULL,
+  DROP KEY `code`,
+  DROP KEY `created`,
+  DROP KEY `lastModified`,
+  ADD KEY `created_code` (`created`, `code`),
+  ADD KEY `lastModified_code` (`lastModified`, `code`),
+  ADD KEY `userName_lastModified_code_public` (`userName`, `lastModified`, `code`, `public`),
+  ADD KEY `featured_public_lastModified` (`featured`, `public`, `lastModified`);
+
+ALTER TABLE `users`
+  DROP KEY `name_3`,
+  DROP KEY `name`;
+
+ALTER TABLE `userTokens`
+  DROP KEY `token`;
+
+-- Covers the search for projects whose revision history can be thinned.
+ALTER TABLE `projectRevisions`
+  ADD KEY `code_created` (`code`, `created`);
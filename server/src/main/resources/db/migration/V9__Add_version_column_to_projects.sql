@@ -0,0 +1,6 @@
+-- version counts the modifications of a project. ETags derive from it instead of lastModified, which has a resolution of one
+-- second. The user list index includes it, so the version query of a user's projects still reads no rows.
+ALTER TABLE `projects`
+  ADD `version` int(11) NOT NULL DEFAULT '1',
+  DROP KEY `userName_lastModified_code_public`,
+  ADD KEY `userName_lastModified_code_public_version` (`userName`, `lastModified`, `code`, `public`, `version`);
@@ -0,0 +1,198 @@
+package io.paperbots;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import io.paperbots.ImageProxy.CachedImage;
+import io.paperbots.PaperbotsException.PaperbotsError;
+
+/** Runs the proxy against a local HTTP server that counts the requests it receives. */
+public class ImageProxyTest {
+	private static final byte[] IMAGE = {(byte)0x89, 'P', 'N', 'G', 13, 10, 26, 10};
+	private static final byte[] LARGE_IMAGE = new byte[1024 * 1024];
+	static {
+		new Random(0).nextBytes(LARGE_IMAGE);
+	}
+
+	private HttpServer upstream;
+	private String baseUrl;
+	private final AtomicInteger requests = new AtomicInteger();
+	private final AtomicInteger revalidations = new AtomicInteger();
+	private ExecutorService executor = Executors.newCachedThreadPool();
+
+	@Before
+	public void setup () throws IOException {
+		upstream = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		upstream.setExecutor(executor);
+		upstream.createContext("/sprite.png", exchange -> {
+			requests.incrementAndGet();
+			sleep(200);
+			respond(exchange, 200, "image/png", "public, max-age=3600", IMAGE);
+		});
+		upstream.createContext("/uncacheable.png", exchange -> {
+			requests.incrementAndGet();
+			respond(exchange, 200, "image/png", "no-store", IMAGE);
+		});
+		upstream.createContext("/revalidated.png", exchange -> {
+			requests.incrementAndGet();
+			if ("\"v1\"".equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+				revalidations.incrementAndGet();
+				exchange.getResponseHeaders().set("Cache-Control", "max-age=0");
+				exchange.sendResponseHeaders(304, -1);
+				exchange.close();
+				return;
+			}
+			exchange.getResponseHeaders().set("ETag", "\"v1\"");
+			respond(exchange, 200, "image/png", "max-age=0", IMAGE);
+		});
+		upstream.createContext("/large.png", exchange -> {
+			requests.incrementAndGet();
+			respond(exchange, 200, "image/png", "public, max-age=3600", LARGE_IMAGE);
+		});
+		upstream.createContext("/page.html", exchange -> respond(exchange, 200, "text/html", null, "<html>".getBytes()));
+		upstream.createContext("/huge.png", exchange -> respond(exchange, 200, "image/png", null, new byte[ImageProxy.MAX_IMAGE_SIZE + 1]));
+		upstream.createContext("/slow.png", exchange -> {
+			sleep(5000);
+			respond(exchange, 200, "image/png", null, IMAGE);
+		});
+		upstream.start();
+		baseUrl = "http://127.0.0.1:" + upstream.getAddress().getPort();
+	}
+
+	@After
+	public void teardown () {
+		upstream.stop(0);
+		executor.shutdownNow();
+	}
+
+	@Test
+	public void testConcurrentMissesFetchOnce () throws Exception {
+		ImageProxy proxy = createProxy(java.nio.file.Files.createTempDirectory("paperbots").toFile().getAbsolutePath());
+		List<Callable<CachedImage>> gets = new ArrayList<>();
+		for (int i = 0; i < 8; i++)
+			gets.add( () -> proxy.get(baseUrl + "/sprite.png"));
+		ExecutorService clients = Executors.newFixedThreadPool(gets.size());
+		for (Future<CachedImage> image : clients.invokeAll(gets))
+			assertTrue(Arrays.equals(IMAGE, bytes(image.get())));
+		clients.shutdown();
+		assertEquals(1, requests.get());
+
+		proxy.get(baseUrl + "/sprite.png");
+		assertEquals(1, requests.get());
+	}
+
+	@Test
+	public void testDiskCacheSurvivesRestart () throws Exception {
+		String dir = java.nio.file.Files.createTempDirectory("paperbots").toFile().getAbsolutePath();
+		createProxy(dir).get(baseUrl + "/sprite.png");
+		ImageProxy restarted = createProxy(dir);
+		assertTrue(restarted.getDiskBytes() > IMAGE.length);
+		assertTrue(Arrays.equals(IMAGE, bytes(restarted.get(baseUrl + "/sprite.png"))));
+		assertEquals(1, requests.get());
+	}
+
+	@Test
+	public void testLargeImagesStayOnDisk () throws Exception {
+		String dir = java.nio.file.Files.createTempDirectory("paperbots").toFile().getAbsolutePath();
+		ImageProxy proxy = createProxy(dir);
+		CachedImage image = proxy.get(baseUrl + "/large.png");
+		assertTrue(Arrays.equals(LARGE_IMAGE, bytes(image)));
+		assertTrue(image.content.isDirect());
+		assertEquals(0, proxy.getMemoryBytes());
+		assertTrue(proxy.getDiskBytes() > LARGE_IMAGE.length);
+
+		// Served from the disk tier, with the same ETag, also after a restart
+		assertEquals(image.etag, proxy.get(baseUrl + "/large.png").etag);
+		CachedImage restarted = createProxy(dir).get(baseUrl + "/large.png");
+		assertTrue(Arrays.equals(LARGE_IMAGE, bytes(restarted)));
+		assertEquals(image.etag, restarted.etag);
+		assertEquals(1, requests.get());
+	}
+
+	@Test
+	public void testUpstreamCacheHeaders () throws Exception {
+		ImageProxy proxy = createProxy(java.nio.file.Files.createTempDirectory("paperbots").toFile().getAbsolutePath());
+		proxy.get(baseUrl + "/uncacheable.png");
+		proxy.get(baseUrl + "/uncacheable.png");
+		assertEquals(2, requests.get());
+
+		// Stale images are revalidated instead of fetched again
+		proxy.get(baseUrl + "/revalidated.png");
+		assertTrue(Arrays.equals(IMAGE, bytes(proxy.get(baseUrl + "/revalidated.png"))));
+		assertEquals(4, requests.get());
+		assertEquals(1, revalidations.get());
+	}
+
+	@Test
+	public void testRejectedImages () throws Exception {
+		ImageProxy proxy = createProxy(java.nio.file.Files.createTempDirectory("paperbots").toFile().getAbsolutePath());
+		for (String url : new String[] {baseUrl + "/page.html", baseUrl + "/huge.png", baseUrl + "/missing.png", "file:///etc/passwd", "nonsense"})
+			assertError(proxy, url, PaperbotsError.InvalidArgument);
+
+		long start = System.currentTimeMillis();
+		assertError(proxy, baseUrl + "/slow.png", PaperbotsError.ServerError);
+		assertTrue(System.currentTimeMillis() - start < 4000);
+	}
+
+	private static byte[] bytes (CachedImage image) {
+		ByteBuffer content = image.content.duplicate();
+		byte[] bytes = new byte[content.remaining()];
+		content.get(bytes);
+		return bytes;
+	}
+
+	private static ImageProxy createProxy (String filesDir) {
+		return new ImageProxy(new java.io.File(filesDir), 1000, 1000, 2000);
+	}
+
+	private static void assertError (ImageProxy proxy, String url, PaperbotsError error) {
+		try {
+			proxy.get(url);
+			fail("Proxied " + url);
+		} catch (PaperbotsException e) {
+			assertEquals(url, error, e.getError());
+		}
+	}
+
+	private static void respond (HttpExchange exchange, int status, String contentType, String cacheControl, byte[] content) throws IOException {
+		exchange.getResponseHeaders().set("Content-Type", contentType);
+		if (cacheControl != null) exchange.getResponseHeaders().set("Cache-Control", cacheControl);
+		exchange.sendResponseHeaders(status, content.length);
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write(content);
+		} catch (IOException e) {
+			// The proxy closed the connection early.
+		}
+		exchange.close();
+	}
+
+	private static void sleep (long millis) {
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
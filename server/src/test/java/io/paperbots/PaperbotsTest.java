@@ -2,8 +2,34 @@
 package io.paperbots;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.zip.CRC32;
+
+import javax.imageio.ImageIO;
 
 import org.junit.BeforeClass;
 import org.junit.ClassRule;
@@ -11,8 +37,17 @@ import org.junit.Test;
 import org.testcontainers.containers.MySQLContainer;
 
 import io.paperbots.Config.FilesConfig;
+import io.paperbots.Paperbots.ProjectFilter;
+import io.paperbots.Paperbots.ProjectsPage;
+import io.paperbots.Paperbots.ResourceVersion;
+import io.paperbots.Paperbots.Sorting;
 import io.paperbots.Paperbots.TokenAndName;
 import io.paperbots.PaperbotsException.PaperbotsError;
+import io.paperbots.SaveCoalescer.PendingSave;
+import io.paperbots.SearchIndex.SearchResult;
+import io.paperbots.data.Project;
+import io.paperbots.data.ProjectRevision;
+import io.paperbots.data.ProjectType;
 import io.paperbots.data.User;
 import io.paperbots.data.UserType;
 
@@ -35,7 +70,7 @@ public class PaperbotsTest {
 		paperbots.signup("badlogic", "badlogicgames@gmail.com", UserType.admin);
 
 		// Retrieve code send via email
-		String firstCode = emails.getMessage().split("\n")[5].trim();
+		String firstCode = emails.waitForMessage("badlogicgames@gmail.com").split("\n")[5].trim();
 
 		// Try to sign up with the same user name or email, should fail
 		try {
@@ -53,6 +88,630 @@ public class PaperbotsTest {
 		User user = paperbots.getUserForToken(tokenAndName.token);
 		assertEquals(user.getName(), "badlogic");
 		assertEquals(user.getType(), user.getType());
+
+		// Looking up the same token again is served from the cache
+		long hits = paperbots.getTokenCache().getHits();
+		assertEquals(user.getId(), paperbots.getUserForToken(tokenAndName.token).getId());
+		assertEquals(hits + 1, paperbots.getTokenCache().getHits());
+
+		// A lookup that read the token before a logout doesn't cache it after the logout
+		TokenCache cache = paperbots.getTokenCache();
+		long invalidations = cache.getInvalidations();
+		cache.invalidate(tokenAndName.token);
+		cache.put(tokenAndName.token, user, invalidations);
+		assertNull(cache.get(tokenAndName.token));
+		cache.put(tokenAndName.token, user, cache.getInvalidations());
+		assertEquals(user.getId(), cache.get(tokenAndName.token).getId());
+
+		// Logging out invalidates the cached token
+		paperbots.logout(tokenAndName.token);
+		try {
+			paperbots.getUserForToken(tokenAndName.token);
+			fail("Token should have been invalidated");
+		} catch (PaperbotsException e) {
+			assertEquals(PaperbotsError.UserDoesNotExist, e.getError());
+		}
+	}
+
+	@Test
+	public void testSignupConflicts () {
+		paperbots.signup("conflict", "conflict@paperbots.io", UserType.user);
+
+		// Same name, different email
+		try {
+			paperbots.signup("conflict", "other@paperbots.io", UserType.user);
+			fail("Duplicate name should have been rejected");
+		} catch (PaperbotsException e) {
+			assertEquals(PaperbotsError.UserExists, e.getError());
+		}
+
+		// Different name, same email
+		try {
+			paperbots.signup("conflict2", "conflict@paperbots.io", UserType.user);
+			fail("Duplicate email should have been rejected");
+		} catch (PaperbotsException e) {
+			assertEquals(PaperbotsError.EmailExists, e.getError());
+		}
+
+		// A failed unit of work must not leave a user behind
+		try {
+			paperbots.unitOfWork( () -> {
+				paperbots.signup("rollback", "rollback@paperbots.io", UserType.user);
+				throw new IllegalStateException();
+			});
+			fail("Unit of work should have thrown");
+		} catch (Exception e) {
+			assertEquals(IllegalStateException.class, e.getClass());
+		}
+		try {
+			paperbots.getUserForName("rollback");
+			fail("User should have been rolled back");
+		} catch (PaperbotsException e) {
+			assertEquals(PaperbotsError.UserDoesNotExist, e.getError());
+		}
+	}
+
+	@Test
+	public void testEmailBatches () throws Exception {
+		// Wait for the emails of other tests, so they don't count towards the batches
+		long timeout = System.currentTimeMillis() + 10000;
+		while ((Metrics.snapshot().get("emailOutbox.pending").longValue() > 0 || Metrics.snapshot().get("emailOutbox.inFlight").intValue() > 0)
+			&& System.currentTimeMillis() < timeout)
+			Thread.sleep(10);
+
+		// The emails are committed together, so the outbox picks them up in a single poll
+		int count = 6;
+		int batches = emails.getBatches();
+		paperbots.unitOfWork( () -> {
+			for (int i = 0; i < count; i++)
+				paperbots.signup("batched" + i, "batched" + i + "@paperbots.io", UserType.user);
+		});
+		for (int i = 0; i < count; i++)
+			emails.waitForMessage("batched" + i + "@paperbots.io");
+		assertTrue("Emails should have been sent in batches", emails.getBatches() - batches < count);
+	}
+
+	@Test
+	public void testFeaturedProjects () {
+		String token = signupAndVerify("featurer", "featurer@paperbots.io", UserType.admin);
+		String code = paperbots.saveProject(token, null, null, "Featured", "A featured project", "{}", true, ProjectType.robot);
+
+		CachedResponse empty = paperbots.getFeaturedProjectsResponse();
+		assertFalse(new String(empty.getBody(), StandardCharsets.UTF_8).contains(code));
+		assertSame(empty, paperbots.getFeaturedProjectsResponse());
+
+		// Featuring the project rebuilds the response
+		paperbots.setProjectFeaturedAdmin(token, code, true);
+		CachedResponse featured = paperbots.getFeaturedProjectsResponse();
+		assertTrue(new String(featured.getBody(), StandardCharsets.UTF_8).contains(code));
+		assertNotEquals(empty.getETag(), featured.getETag());
+
+		// Saving a featured project rebuilds the response
+		paperbots.saveProject(token, code, "featurer", "Renamed", "A featured project", "{}", true, ProjectType.robot);
+		assertTrue(new String(paperbots.getFeaturedProjectsResponse().getBody(), StandardCharsets.UTF_8).contains("Renamed"));
+
+		// Deleting a featured project rebuilds the response
+		paperbots.deleteProject(token, code);
+		assertFalse(new String(paperbots.getFeaturedProjectsResponse().getBody(), StandardCharsets.UTF_8).contains(code));
+	}
+
+	@Test
+	public void testProjectVersions () {
+		String token = signupAndVerify("versioner", "versioner@paperbots.io", UserType.user);
+		String code = paperbots.saveProject(token, null, null, "Versioned", "", "{}", false, ProjectType.robot);
+
+		// Private projects have no version for other users
+		ResourceVersion version = paperbots.getProjectVersion(token, code);
+		assertFalse(version.isPublic);
+		try {
+			paperbots.getProjectVersion(null, code);
+			fail("Private project should not be visible");
+		} catch (PaperbotsException e) {
+			assertEquals(PaperbotsError.ProjectDoesNotExist, e.getError());
+		}
+		ResourceVersion ownerList = paperbots.getUserProjectsVersion(token, "versioner", false);
+		ResourceVersion publicList = paperbots.getUserProjectsVersion(null, "versioner", false);
+		assertNotEquals(ownerList.etag, publicList.etag);
+
+		// Versions change with every save, even within the same second
+		paperbots.saveProject(token, code, "versioner", "Versioned", "", "{}", true, ProjectType.robot);
+		ResourceVersion newVersion = paperbots.getProjectVersion(null, code);
+		assertTrue(newVersion.isPublic);
+		assertNotEquals(version.etag, newVersion.etag);
+		ResourceVersion newPublicList = paperbots.getUserProjectsVersion(null, "versioner", false);
+		assertNotEquals(publicList.etag, newPublicList.etag);
+
+		paperbots.saveProject(token, code, "versioner", "Versioned", "", "{\"changed\": true}", true, ProjectType.robot);
+		assertNotEquals(newVersion.etag, paperbots.getProjectVersion(null, code).etag);
+		assertNotEquals(newPublicList.etag, paperbots.getUserProjectsVersion(null, "versioner", false).etag);
+	}
+
+	@Test
+	public void testUserProjectsPagination () {
+		String token = signupAndVerify("pager", "pager@paperbots.io", UserType.user);
+		Set<String> publicCodes = new HashSet<>();
+		for (int i = 0; i < 5; i++)
+			publicCodes.add(paperbots.saveProject(token, null, null, "Public " + i, "", "{}", true, ProjectType.robot));
+		String privateCode = paperbots.saveProject(token, null, null, "Private", "", "{}", false, ProjectType.robot);
+
+		// Page through the public projects, most are saved within the same second, so the code breaks ties.
+		Set<String> seen = new HashSet<>();
+		Project last = null;
+		while (true) {
+			Project[] page = paperbots.getUserProjects(null, "pager", false, last != null ? last.getLastModified() : null,
+				last != null ? last.getCode() : null, 2);
+			for (Project project : page)
+				assertTrue("Project returned twice", seen.add(project.getCode()));
+			if (page.length < 2) break;
+			last = page[page.length - 1];
+		}
+		assertEquals(publicCodes, seen);
+
+		// The owner also sees private projects
+		Project[] all = paperbots.getUserProjects(token, "pager", false, null, null, 10);
+		assertEquals(6, all.length);
+		assertTrue(Arrays.stream(all).anyMatch(p -> p.getCode().equals(privateCode)));
+
+		// Streaming passes the same projects in the same order
+		List<Project> streamed = new ArrayList<>();
+		paperbots.getUserProjects(token, "pager", false, null, null, 10, streamed::add);
+		assertEquals(Arrays.stream(all).map(Project::getCode).collect(Collectors.toList()),
+			streamed.stream().map(Project::getCode).collect(Collectors.toList()));
+	}
+
+	@Test
+	public void testProjectsAdmin () {
+		String admin = signupAndVerify("lister", "lister@paperbots.io", UserType.admin);
+		String user = signupAndVerify("listed", "listed@paperbots.io", UserType.user);
+		Set<String> codes = new HashSet<>();
+		for (int i = 0; i < 5; i++)
+			codes.add(paperbots.saveProject(user, null, null, "Project " + i, "", "{}", i % 2 == 0, ProjectType.robot));
+
+		for (Sorting sorting : Sorting.values()) {
+			Set<String> seen = new HashSet<>();
+			String cursor = null;
+			do {
+				ProjectsPage page = paperbots.getProjectsAdmin(admin, sorting, new ProjectFilter(null, null, null, "listed"), cursor, 2, false);
+				for (Project project : page.projects) {
+					assertTrue("Project returned twice", seen.add(project.getCode()));
+					assertEquals(null, project.getContent());
+				}
+				cursor = page.nextCursor;
+			} while (cursor != null);
+			assertEquals(codes, seen);
+		}
+
+		ProjectsPage publicProjects = paperbots.getProjectsAdmin(admin, Sorting.Newest, new ProjectFilter(ProjectType.robot, false, true, "listed"),
+			null, 10, true);
+		assertEquals(3, publicProjects.projects.length);
+		assertEquals(null, publicProjects.nextCursor);
+		assertEquals("{}", publicProjects.projects[0].getContent());
+
+		try {
+			String cursor = paperbots.getProjectsAdmin(admin, Sorting.Newest, null, null, 1, false).nextCursor;
+			paperbots.getProjectsAdmin(admin, Sorting.Oldest, null, cursor, 1, false);
+			fail("Cursor of another sort order was accepted");
+		} catch (PaperbotsException e) {
+			assertEquals(PaperbotsError.InvalidArgument, e.getError());
+		}
+		try {
+			paperbots.getProjectsAdmin(user, Sorting.Newest, null, null, 10, false);
+			fail("Non-admin user listed projects");
+		} catch (PaperbotsException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testProjectPreview () {
+		String token = signupAndVerify("previewer", "previewer@paperbots.io", UserType.user);
+		String content = "{\"code\":\"forward()\",\"world\":{\"tiles\":[null,{\"kind\":\"wall\"},null,{\"kind\":\"number\",\"value\":3}],"
+			+ "\"robot\":{\"x\":1,\"y\":2,\"dirX\":1,\"dirY\":0,\"angle\":0}},\"type\":\"robot\"}";
+		String expected = "{\"robot\":{\"x\":1,\"y\":2,\"dirX\":1,\"dirY\":0,\"angle\":0},\"tiles\":[[1,{\"kind\":\"wall\"}],[3,{\"kind\":\"number\",\"value\":3}]]}";
+		assertEquals(expected, ProjectPreviews.fromContent(content, ProjectType.robot));
+		assertEquals("{}", ProjectPreviews.fromContent(content, ProjectType.canvas));
+		assertEquals("{}", ProjectPreviews.fromContent("not json", ProjectType.robot));
+
+		String code = paperbots.saveProject(token, null, null, "Preview", "", content, true, ProjectType.robot);
+		Project[] projects = paperbots.getUserProjects(null, "previewer", true);
+		assertEquals(1, projects.length);
+		assertEquals(expected, projects[0].getPreview());
+		assertEquals(null, projects[0].getContent());
+
+		paperbots.saveProject(token, code, "previewer", "Preview", "", "{\"code\":\"\",\"world\":{\"tiles\":[]}}", true, ProjectType.robot);
+		assertEquals("{\"tiles\":[]}", paperbots.getUserProjects(null, "previewer", true)[0].getPreview());
+	}
+
+	@Test
+	public void testContentCodec () {
+		StringBuilder large = new StringBuilder("{\"code\":\"");
+		for (int i = 0; i < 200; i++)
+			large.append("forward()\\n");
+		large.append("\u00f6\"}");
+		String content = large.toString();
+
+		byte[] stored = ContentCodec.encode(content);
+		assertTrue(ContentCodec.isGzipped(stored));
+		assertTrue(stored.length < content.length() / 4);
+		assertEquals(content, ContentCodec.decode(stored));
+		assertFalse(ContentCodec.isGzipped(ContentCodec.encode("{}")));
+		assertEquals("{}", ContentCodec.decode(ContentCodec.encode("{}")));
+		// Rows written before content was encoded hold plain UTF-8
+		assertEquals("{\"a\":\"\u00f6\"}", ContentCodec.decode("{\"a\":\"\u00f6\"}".getBytes(StandardCharsets.UTF_8)));
+
+		String token = signupAndVerify("compressor", "compressor@paperbots.io", UserType.user);
+		String code = paperbots.saveProject(token, null, null, "Compressed", "", content, true, ProjectType.robot);
+		assertEquals(content, paperbots.getProject(null, code).getContent());
+		assertEquals(null, paperbots.getProject(null, code, false).getContent());
+		assertEquals(content, ContentCodec.decode(paperbots.getProjectContent(null, code)));
+	}
+
+	@Test
+	public void testProjectRevisions () {
+		for (String[] pair : new String[][] {{"", "abc"}, {"abc", ""}, {"abcdef", "abXYef"}, {"aaaa", "aa"}, {"x\ud83d\ude00y", "x\ud83d\ude01y"}}) {
+			String delta = ProjectRevisions.diff(pair[0], pair[1]);
+			assertEquals(pair[1], ProjectRevisions.patch(pair[0], delta));
+		}
+		assertEquals("2,2,XY", ProjectRevisions.diff("abcdef", "abXYef"));
+
+		String token = signupAndVerify("historian", "historian@paperbots.io", UserType.user);
+		int saves = ProjectRevisions.KEEP_RECENT + 10;
+		List<String> contents = new ArrayList<>();
+		String code = null;
+		for (int i = 0; i < saves; i++) {
+			String content = "{\"code\":\"forward(" + i + ")\"}";
+			contents.add(content);
+			code = paperbots.saveProject(token, code, "historian", "History", "", content, true, ProjectType.robot);
+			// Don't let the saves be coalesced
+			paperbots.getSaves().flush(code);
+		}
+		// Saving the same content again doesn't create a revision
+		code = paperbots.saveProject(token, code, "historian", "History", "", contents.get(saves - 1), true, ProjectType.robot);
+
+		List<ProjectRevision> revisions = paperbots.getProjectRevisions(token, code);
+		assertEquals(saves, revisions.size());
+		assertEquals(saves - 1, revisions.get(0).getRevision());
+		for (int i = 0; i < saves; i++)
+			assertEquals(contents.get(i), paperbots.getProjectRevisionContent(token, code, i));
+
+		paperbots.restoreProjectRevision(token, code, 3);
+		assertEquals(contents.get(3), paperbots.getProject(token, code).getContent());
+		assertEquals(contents.get(3), paperbots.getProjectRevisionContent(token, code, saves));
+
+		try {
+			String otherToken = signupAndVerify("snoop", "snoop@paperbots.io", UserType.user);
+			paperbots.getProjectRevisions(otherToken, code);
+			fail("Other user listed revisions");
+		} catch (PaperbotsException e) {
+			assertEquals(PaperbotsError.ProjectDoesNotExist, e.getError());
+		}
+
+		// All revisions were made today, so only the most recent ones and the last one before them survive
+		contents.add(contents.get(3));
+		paperbots.getRevisions().compact(code);
+		revisions = paperbots.getProjectRevisions(token, code);
+		assertEquals(ProjectRevisions.KEEP_RECENT + 1, revisions.size());
+		for (ProjectRevision revision : revisions)
+			assertEquals(contents.get(revision.getRevision()), paperbots.getProjectRevisionContent(token, code, revision.getRevision()));
+	}
+
+	@Test
+	public void testSaveCoalescer () throws Exception {
+		File journal = new File(java.nio.file.Files.createTempDirectory("paperbots").toFile(), "saves.journal");
+		List<PendingSave> written = Collections.synchronizedList(new ArrayList<>());
+		SaveCoalescer saves = new SaveCoalescer(journal, written::add);
+		for (int i = 0; i < 10; i++)
+			saves.save(new PendingSave("abcdef", "coalescer", "Title " + i, "", "{}", true, ProjectType.robot));
+		assertEquals(1, saves.getPending());
+		assertEquals(0, written.size());
+		saves.flush("abcdef");
+		assertEquals(1, written.size());
+		assertEquals("Title 9", written.get(0).title);
+		assertEquals(0, journal.length());
+
+		// Saves that weren't written before a crash are replayed from the journal
+		saves.save(new PendingSave("abcdef", "coalescer", "Lost", "", "{}", true, ProjectType.robot));
+		List<PendingSave> replayed = new ArrayList<>();
+		new SaveCoalescer(journal, replayed::add);
+		assertEquals(1, replayed.size());
+		assertEquals("Lost", replayed.get(0).title);
+
+		// Writes that join a transaction stay pending and journaled until the transaction is committed
+		File deferredJournal = new File(journal.getParentFile(), "deferred.journal");
+		List<PendingSave> deferred = Collections.synchronizedList(new ArrayList<>());
+		SaveCoalescer deferredSaves = new SaveCoalescer(deferredJournal, save -> {
+			deferred.add(save);
+			return false;
+		});
+		deferredSaves.save(new PendingSave("abcdef", "coalescer", "Rolled back", "", "{}", true, ProjectType.robot));
+		deferredSaves.flush("abcdef");
+		deferredSaves.flush("abcdef");
+		assertEquals(1, deferred.size());
+		assertEquals(1, deferredSaves.getPending());
+		assertTrue(deferredJournal.length() > 0);
+		deferredSaves.rolledBack(deferred.get(0));
+		deferredSaves.flush("abcdef");
+		assertEquals(2, deferred.size());
+		deferredSaves.committed(deferred.get(1));
+		assertEquals(0, deferredSaves.getPending());
+		assertEquals(0, deferredJournal.length());
+
+		// While another thread's transaction holds an uncommitted write of the project, nothing is written
+		deferredSaves.save(new PendingSave("abcdef", "coalescer", "Other thread", "", "{}", true, ProjectType.robot));
+		Thread other = new Thread( () -> deferredSaves.flush("abcdef"));
+		other.start();
+		other.join();
+		assertEquals(3, deferred.size());
+		deferredSaves.save(new PendingSave("abcdef", "coalescer", "Newer", "", "{}", true, ProjectType.robot));
+		deferredSaves.flush("abcdef");
+		assertEquals(3, deferred.size());
+		deferredSaves.committed(deferred.get(2));
+		assertEquals(1, deferredSaves.getPending());
+		deferredSaves.flush("abcdef");
+		assertEquals("Newer", deferred.get(3).title);
+
+		// Transient failures are retried, saves the database rejects are moved to the dead letter file
+		File failingJournal = new File(journal.getParentFile(), "failing.journal");
+		File deadLetters = new File(failingJournal.getPath() + ".failed");
+		SaveCoalescer.Writer failingWriter = save -> {
+			if (save.title.equals("Unavailable")) throw new RuntimeException(new SQLTransientConnectionException("Unavailable"));
+			throw new RuntimeException(new SQLException("Data too long for column 'title'", "22001", 1406));
+		};
+		SaveCoalescer failing = new SaveCoalescer(failingJournal, failingWriter);
+		failing.save(new PendingSave("abcdef", "coalescer", "Unavailable", "", "{}", true, ProjectType.robot));
+		try {
+			failing.flush("abcdef");
+			fail("Transient failure should have been passed on");
+		} catch (RuntimeException e) {
+			assertEquals(1, failing.getPending());
+		}
+		failing.save(new PendingSave("abcdef", "coalescer", "Rejected", "", "{}", true, ProjectType.robot));
+		failing.flush("abcdef");
+		assertEquals(0, failing.getPending());
+		long deadLettersLength = deadLetters.length();
+		assertTrue(deadLettersLength > 0);
+
+		// Replaying a save the database rejects doesn't keep the server from starting
+		failing.save(new PendingSave("ghijkl", "coalescer", "Rejected", "", "{}", true, ProjectType.robot));
+		assertEquals(0, new SaveCoalescer(failingJournal, failingWriter).getPending());
+		assertTrue(deadLetters.length() > deadLettersLength);
+	}
+
+	@Test
+	public void testCoalescedSaves () {
+		String token = signupAndVerify("saver", "saver@paperbots.io", UserType.user);
+		String code = paperbots.saveProject(token, null, null, "Saved", "", "{}", false, ProjectType.robot);
+		for (int i = 0; i < 5; i++)
+			paperbots.saveProject(token, code, "saver", "Saved " + i, "", "{\"code\":\"" + i + "\"}", false, ProjectType.robot);
+
+		// Reads see the latest save
+		Project project = paperbots.getProject(token, code);
+		assertEquals("Saved 4", project.getTitle());
+		assertEquals("{\"code\":\"4\"}", project.getContent());
+		assertEquals(0, paperbots.getSaves().getPending());
+		assertEquals(2, paperbots.getProjectRevisions(token, code).size());
+
+		try {
+			String otherToken = signupAndVerify("notsaver", "notsaver@paperbots.io", UserType.user);
+			paperbots.saveProject(otherToken, code, "saver", "Stolen", "", "{}", true, ProjectType.robot);
+			fail("Other user saved project");
+		} catch (PaperbotsException e) {
+			assertEquals(PaperbotsError.ProjectDoesNotExist, e.getError());
+		}
+
+		// A save flushed by a unit of work that is rolled back is written later
+		paperbots.saveProject(token, code, "saver", "Rolled back", "", "{}", false, ProjectType.robot);
+		try {
+			paperbots.unitOfWork( () -> {
+				assertEquals("Rolled back", paperbots.getProject(token, code).getTitle());
+				throw new IllegalStateException("Rollback");
+			});
+			fail("Unit of work didn't fail");
+		} catch (Exception e) {
+			assertEquals("Rollback", e.getMessage());
+		}
+		assertEquals(1, paperbots.getSaves().getPending());
+		assertEquals("Rolled back", paperbots.getProject(token, code).getTitle());
+
+		// Saves that don't fit the database are rejected before they are acknowledged
+		String ampersands = new String(new char[100]).replace('\0', '&');
+		try {
+			paperbots.saveProject(token, code, "saver", ampersands, "", "{}", false, ProjectType.robot);
+			fail("Title exceeding the column after HTML encoding was accepted");
+		} catch (PaperbotsException e) {
+			assertEquals(PaperbotsError.InvalidArgument, e.getError());
+		}
+		assertEquals(0, paperbots.getSaves().getPending());
+
+		// Saves of deleted projects fail
+		paperbots.deleteProject(token, code);
+		try {
+			paperbots.saveProject(token, code, "saver", "Deleted", "", "{}", false, ProjectType.robot);
+			fail("Saved deleted project");
+		} catch (PaperbotsException e) {
+			assertEquals(PaperbotsError.ProjectDoesNotExist, e.getError());
+		}
+	}
+
+	@Test
+	public void testSearchProjects () {
+		String token = signupAndVerify("searcher", "searcher@paperbots.io", UserType.user);
+		String maze = paperbots.saveProject(token, null, null, "Maze Runner", "Finds the exit & stops", "{\"code\":\"fun solveMaze()\\nforward()\\nend\"}", true, ProjectType.robot);
+		String spiral = paperbots.saveProject(token, null, null, "Spiral", "Draws a maze like spiral", "{\"code\":\"var turns = 10\"}", true, ProjectType.canvas);
+		String hidden = paperbots.saveProject(token, null, null, "Hidden maze", "", "{}", false, ProjectType.robot);
+
+		// Title matches rank before description matches, prefixes match, private projects aren't found
+		SearchResult result = paperbots.searchProjects("maz", 0, 10);
+		assertEquals(2, result.total);
+		assertEquals(maze, result.projects[0].getCode());
+		assertEquals(spiral, result.projects[1].getCode());
+		assertEquals(null, result.projects[0].getContent());
+
+		// All terms must match, identifiers in the code are indexed, camel case is split
+		assertEquals(1, paperbots.searchProjects("maze solve", 0, 10).total);
+		assertEquals(1, paperbots.searchProjects("turns", 0, 10).total);
+		assertEquals(0, paperbots.searchProjects("maze turns", 0, 10).total);
+		assertEquals(2, paperbots.searchProjects("searcher", 0, 10).total);
+		assertEquals(0, paperbots.searchProjects("amp", 0, 10).total);
+
+		// Paging
+		result = paperbots.searchProjects("maze", 1, 1);
+		assertEquals(2, result.total);
+		assertEquals(1, result.projects.length);
+		assertEquals(spiral, result.projects[0].getCode());
+
+		// Saves and deletes update the index
+		paperbots.saveProject(token, hidden, "searcher", "Hidden maze", "", "{}", true, ProjectType.robot);
+		paperbots.getSaves().flush(hidden);
+		assertEquals(3, paperbots.searchProjects("maze", 0, 10).total);
+		paperbots.saveProject(token, maze, "searcher", "Runner", "", "{}", false, ProjectType.robot);
+		paperbots.getSaves().flush(maze);
+		paperbots.deleteProject(token, spiral);
+		result = paperbots.searchProjects("maze", 0, 10);
+		assertEquals(1, result.total);
+		assertEquals(hidden, result.projects[0].getCode());
+
+		assertTrue(SearchIndex.getIdentifiers("{\"code\":\"var robotSpeed = 1\\nfun go_home()\"}").containsAll(Arrays.asList("robotSpeed", "robot", "Speed", "go_home", "home")));
+		assertTrue(paperbots.getSearchIndex().estimateMemory() > 0);
+	}
+
+	@Test
+	public void testThumbnailStore () throws Exception {
+		File dir = java.nio.file.Files.createTempDirectory("paperbots").toFile();
+		File legacy = new File(dir, "thumbnails/legacy.png");
+		legacy.getParentFile().mkdirs();
+		java.nio.file.Files.write(legacy.toPath(), new byte[] {1, 2, 3});
+		Files files = new Files(new FilesConfig(dir.getAbsolutePath()));
+
+		// Identical thumbnails share one file
+		String hash = files.saveThumbnail("first", new byte[] {4, 5, 6});
+		assertEquals(hash, files.saveThumbnail("second", new byte[] {4, 5, 6}));
+		assertEquals(files.getThumbnailFile("first"), files.getThumbnailFile("second"));
+		assertEquals(new File(dir, "thumbnails/" + hash.substring(0, 2) + "/" + hash + ".png"), files.getThumbnailFile("first"));
+		assertNotEquals(hash, files.saveThumbnail("second", new byte[] {7}));
+		assertEquals(null, files.getThumbnailFile("missing"));
+		assertEquals(null, files.getThumbnailFile("../first"));
+
+		// Legacy thumbnails are moved into the store
+		long timeout = System.currentTimeMillis() + 10000;
+		while (files.getThumbnailHash("legacy") == null && System.currentTimeMillis() < timeout)
+			Thread.sleep(10);
+		assertFalse(legacy.exists());
+		assertTrue(Arrays.equals(new byte[] {1, 2, 3}, java.nio.file.Files.readAllBytes(files.getThumbnailFile("legacy").toPath())));
+
+		// Images no project refers to are deleted once old enough
+		files.deleteThumbnail("first");
+		File orphan = files.getThumbnailFile("legacy");
+		files.deleteThumbnail("legacy");
+		assertEquals(null, files.getThumbnailFile("legacy"));
+		orphan.setLastModified(System.currentTimeMillis() - 1000 * 60 * 60 * 2);
+		files.deleteOrphans();
+		assertFalse(orphan.exists());
+		assertTrue(new File(dir, "thumbnails/" + hash.substring(0, 2) + "/" + hash + ".png").exists());
+		files.close();
+	}
+
+	@Test
+	public void testThumbnailSizes () throws Exception {
+		Files files = new Files(new FilesConfig(java.nio.file.Files.createTempDirectory("paperbots").toFile().getAbsolutePath()));
+		// Noise doesn't compress, so each derived size is smaller than the original
+		Random random = new Random(0);
+		BufferedImage image = new BufferedImage(400, 200, BufferedImage.TYPE_INT_ARGB);
+		for (int y = 0; y < image.getHeight(); y++)
+			for (int x = 0; x < image.getWidth(); x++)
+				image.setRGB(x, y, 0xff000000 | random.nextInt(0x1000000));
+		byte[] original = ThumbnailPipeline.encode(image);
+		String hash = files.saveThumbnail("sized", original);
+
+		for (int width : ThumbnailPipeline.WIDTHS) {
+			long timeout = System.currentTimeMillis() + 10000;
+			File file;
+			while ((file = files.getDerivedThumbnailFile(hash, width)) == null && System.currentTimeMillis() < timeout)
+				Thread.sleep(10);
+			BufferedImage derived = ImageIO.read(file);
+			assertEquals(width, derived.getWidth());
+			assertEquals(width / 2, derived.getHeight());
+			// Opaque images are stored without alpha channel
+			assertFalse(derived.getColorModel().hasAlpha());
+		}
+		assertEquals(files.getDerivedThumbnailFile(hash, 192), files.getDerivedThumbnailFile(hash, 100));
+		assertEquals(files.getDerivedThumbnailFile(hash, 384), files.getDerivedThumbnailFile(hash, 1000));
+
+		// Images with too many pixels aren't decoded, their original is stored for every size
+		byte[] bomb = ThumbnailPipeline.encode(new BufferedImage(1, 1, BufferedImage.TYPE_INT_RGB));
+		ByteBuffer header = ByteBuffer.wrap(bomb);
+		header.putInt(16, 100000).putInt(20, 100000);
+		CRC32 crc = new CRC32();
+		crc.update(bomb, 12, 17);
+		header.putInt(29, (int)crc.getValue());
+		String bombHash = files.saveThumbnail("bomb", bomb);
+		for (int width : ThumbnailPipeline.WIDTHS) {
+			long timeout = System.currentTimeMillis() + 10000;
+			File file;
+			while ((file = files.getDerivedThumbnailFile(bombHash, width)) == null && System.currentTimeMillis() < timeout)
+				Thread.sleep(10);
+			assertTrue(Arrays.equals(bomb, java.nio.file.Files.readAllBytes(file.toPath())));
+		}
+		files.close();
+	}
+
+	@Test
+	public void testSaveThumbnail () throws Exception {
+		String token = signupAndVerify("thumbnailer", "thumbnailer@paperbots.io", UserType.user);
+		String otherToken = signupAndVerify("otherthumbnailer", "otherthumbnailer@paperbots.io", UserType.user);
+		String code = paperbots.saveProject(token, null, null, "Thumbnail", "", "{}", true, ProjectType.canvas);
+		byte[] image = {(byte)0x89, 'P', 'N', 'G', 13, 10, 26, 10};
+		String dataUrl = "data:image/png;base64," + Base64.getEncoder().encodeToString(image);
+
+		ResourceVersion version = paperbots.getProjectVersion(null, code);
+		ResourceVersion listVersion = paperbots.getUserProjectsVersion(null, "thumbnailer", false);
+		paperbots.saveThumbnail(token, code, stream(dataUrl));
+		assertTrue(Arrays.equals(image, java.nio.file.Files.readAllBytes(paperbots.getFiles().getThumbnailFile(code).toPath())));
+		assertEquals(Files.hash(image), paperbots.getProject(null, code).getThumbnail());
+
+		// Cached copies of the project and the project list are revalidated
+		assertNotEquals(version.etag, paperbots.getProjectVersion(null, code).etag);
+		assertNotEquals(listVersion.etag, paperbots.getUserProjectsVersion(null, "thumbnailer", false).etag);
+
+		// Nothing is read before the caller is authenticated
+		InputStream unread = stream(dataUrl);
+		try {
+			paperbots.saveThumbnail(otherToken, code, unread);
+			fail("Only the owner may save a thumbnail");
+		} catch (PaperbotsException e) {
+			assertEquals(PaperbotsError.ProjectDoesNotExist, e.getError());
+		}
+		assertEquals(dataUrl.length(), unread.available());
+
+		for (String invalid : new String[] {"data:image/jpeg;base64,AAAA", "data:image/png;base64,!!!!", "data:image/png;base64,"}) {
+			try {
+				paperbots.saveThumbnail(token, code, stream(invalid));
+				fail("Invalid thumbnail " + invalid + " was accepted");
+			} catch (PaperbotsException e) {
+				assertEquals(PaperbotsError.InvalidArgument, e.getError());
+			}
+		}
+
+		Files small = new Files(new FilesConfig(java.nio.file.Files.createTempDirectory("paperbots").toFile().getAbsolutePath(), 8l));
+		small.saveThumbnail(code, image);
+		try {
+			small.saveThumbnail(code, new byte[9]);
+			fail("Thumbnail exceeding the maximum size was accepted");
+		} catch (PaperbotsException e) {
+			assertEquals(PaperbotsError.InvalidArgument, e.getError());
+		}
+		assertTrue(Arrays.equals(image, java.nio.file.Files.readAllBytes(small.getThumbnailFile(code).toPath())));
+		small.close();
+	}
+
+	private static InputStream stream (String value) {
+		return new ByteArrayInputStream(value.getBytes(StandardCharsets.US_ASCII));
+	}
+
+	private static String signupAndVerify (String name, String email, UserType type) {
+		paperbots.signup(name, email, type);
+		String code = emails.waitForMessage(email).split("\n")[5].trim();
+		return paperbots.verifyCode(code).token;
 	}
 
 	@Test
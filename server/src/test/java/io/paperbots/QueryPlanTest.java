@@ -0,0 +1,189 @@
+package io.paperbots;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.jdbi.v3.core.Handle;
+import org.jdbi.v3.core.Jdbi;
+import org.jdbi.v3.core.argument.Argument;
+import org.jdbi.v3.core.statement.PreparedBatch;
+import org.jdbi.v3.core.statement.Query;
+import org.jdbi.v3.core.statement.SqlLogger;
+import org.jdbi.v3.core.statement.StatementContext;
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.testcontainers.containers.MySQLContainer;
+
+import io.paperbots.Config.FilesConfig;
+import io.paperbots.Paperbots.ProjectFilter;
+import io.paperbots.Paperbots.ProjectsPage;
+import io.paperbots.Paperbots.Sorting;
+import io.paperbots.data.Project;
+import io.paperbots.data.ProjectType;
+import io.paperbots.data.UserType;
+
+/** Records every statement the server runs while exercising its API, then runs EXPLAIN on each and fails if a statement reads a
+ * whole table. The tables are seeded with enough rows for the optimizer to prefer indexes over scans, like in production. */
+public class QueryPlanTest {
+	private static final int SEED_USERS = 100;
+	private static final int SEED_PROJECTS = 2000;
+
+	/** Statements that read whole tables by design, e.g. to build an in-memory index. */
+	private static final String[] FULL_SCANS = {"content AS storedContent FROM projects WHERE public=1"};
+
+	private static Jdbi jdbi;
+	private static Paperbots paperbots;
+	private static TestEmails emails = new TestEmails();
+	private static final Map<String, Map<String, Argument>> statements = new ConcurrentHashMap<>();
+
+	@ClassRule public static MySQLContainer mysql = new MySQLContainer().withDatabaseName("paperbots");
+
+	@BeforeClass
+	public static void setup () throws IOException {
+		jdbi = Database.setupDatabase(new Config.DatabaseConfig(mysql.getJdbcUrl(), mysql.getUsername(), mysql.getPassword()), true);
+		seed();
+		jdbi.setSqlLogger(new SqlLogger() {
+			@Override
+			public void logBeforeExecution (StatementContext context) {
+				record(context);
+			}
+		});
+		paperbots = new Paperbots(jdbi, emails, new Files(new FilesConfig(java.nio.file.Files.createTempDirectory("paperbots").toFile().getAbsolutePath())));
+	}
+
+	@Test
+	public void testNoFullTableScans () {
+		exerciseApi();
+
+		List<String> scans = new ArrayList<>();
+		try (Handle handle = jdbi.open()) {
+			for (Map.Entry<String, Map<String, Argument>> statement : statements.entrySet()) {
+				String sql = statement.getKey();
+				if (isFullScanAllowed(sql)) continue;
+				Query explain = handle.createQuery("EXPLAIN " + sql);
+				for (Map.Entry<String, Argument> argument : statement.getValue().entrySet())
+					explain.bind(argument.getKey(), argument.getValue());
+				for (Map<String, Object> row : explain.mapToMap().list()) {
+					// Inserts report the table they insert into as a scan.
+					String selectType = String.valueOf(get(row, "select_type"));
+					if (selectType.equals("INSERT") || selectType.equals("REPLACE")) continue;
+					if ("ALL".equals(get(row, "type"))) scans.add(get(row, "table") + ": " + sql);
+				}
+			}
+		}
+		assertTrue("Captured too few statements, is the SQL logger installed?", statements.size() > 20);
+		assertEquals("Full table scans:\n" + String.join("\n", scans), 0, scans.size());
+	}
+
+	/** Calls every API of {@link Paperbots} that touches the database. */
+	private static void exerciseApi () {
+		String adminToken = signupAndVerify("planadmin", "planadmin@paperbots.io", UserType.admin);
+		String token = signupAndVerify("planuser", "planuser@paperbots.io", UserType.user);
+		paperbots.login("planuser@paperbots.io");
+		emails.waitForMessage("planuser@paperbots.io");
+		paperbots.getUserForToken(token);
+		paperbots.getUserForName("planuser");
+
+		String code = paperbots.saveProject(token, null, null, "Plan", "", "{\"code\":\"forward()\"}", true, ProjectType.robot);
+		paperbots.saveProject(token, code, "planuser", "Plan", "", "{\"code\":\"turnLeft()\"}", true, ProjectType.robot);
+		paperbots.getProjectVersion(token, code);
+		paperbots.getProject(token, code);
+		paperbots.getProject(null, code, false);
+		paperbots.getProjectContent(null, code);
+		paperbots.saveThumbnail(token, code, new ByteArrayInputStream("data:image/png;base64,iVBORw0KGgo=".getBytes(StandardCharsets.US_ASCII)));
+
+		paperbots.getUserProjectsVersion(token, "planuser", true);
+		paperbots.getUserProjects(token, "planuser", true);
+		Project[] page = paperbots.getUserProjects(null, "seed1", false, null, null, 5);
+		paperbots.getUserProjects(null, "seed1", false, page[page.length - 1].getLastModified(), page[page.length - 1].getCode(), 5);
+
+		paperbots.setProjectFeaturedAdmin(adminToken, code, true);
+		paperbots.getFeaturedProjects();
+		paperbots.getFeaturedProjectsResponse();
+
+		for (Sorting sorting : Sorting.values()) {
+			ProjectsPage first = paperbots.getProjectsAdmin(adminToken, sorting, null, null, 20, false);
+			paperbots.getProjectsAdmin(adminToken, sorting, null, first.nextCursor, 20, true);
+		}
+		paperbots.getProjectsAdmin(adminToken, Sorting.Newest, new ProjectFilter(ProjectType.canvas, null, null, null), null, 20, false);
+		paperbots.getProjectsAdmin(adminToken, Sorting.Newest, new ProjectFilter(null, true, null, null), null, 20, false);
+		paperbots.getProjectsAdmin(adminToken, Sorting.LastModified, new ProjectFilter(null, null, false, null), null, 20, false);
+		paperbots.getProjectsAdmin(adminToken, Sorting.Newest, new ProjectFilter(null, null, null, "seed2"), null, 20, false);
+
+		paperbots.getProjectRevisions(token, code);
+		paperbots.getProjectRevisionContent(token, code, 0);
+		paperbots.restoreProjectRevision(token, code, 0);
+		paperbots.getRevisions().compactAll();
+		paperbots.getRevisions().compact(code);
+
+		paperbots.deleteProject(token, code);
+		paperbots.logout(token);
+	}
+
+	private static void seed () {
+		jdbi.useHandle(handle -> {
+			PreparedBatch users = handle.prepareBatch("insert into users (name, email) values (:name, :email)");
+			for (int i = 0; i < SEED_USERS; i++)
+				users.bind("name", "seed" + i).bind("email", "seed" + i + "@paperbots.io").add();
+			users.execute();
+
+			PreparedBatch projects = handle.prepareBatch(
+				"insert into projects (userId, userName, code, title, description, content, public, featured, type) values (:userId, :userName, :code, :title, '', :content, :isPublic, :featured, :type)");
+			for (int i = 0; i < SEED_PROJECTS; i++) {
+				int user = i % SEED_USERS;
+				//@off
+				projects.bind("userId", user + 1)
+					.bind("userName", "seed" + user)
+					.bind("code", String.format("s%05d", i))
+					.bind("title", "Seed " + i)
+					.bind("content", ContentCodec.encode("{}"))
+					.bind("isPublic", i % 10 != 0)
+					.bind("featured", i % 100 == 0)
+					.bind("type", i % 3 == 0 ? "canvas" : "robot")
+					.add();
+				//@on
+			}
+			projects.execute();
+			handle.createQuery("ANALYZE TABLE users, projects").mapToMap().list();
+		});
+	}
+
+	private static void record (StatementContext context) {
+		String sql = context.getRenderedSql();
+		String statement = sql.trim().toLowerCase();
+		if (!(statement.startsWith("select") || statement.startsWith("update") || statement.startsWith("delete") || statement.startsWith("insert")))
+			return;
+		Map<String, Argument> arguments = new LinkedHashMap<>();
+		for (String name : context.getParsedSql().getParameters().getParameterNames())
+			context.getBinding().findForName(name, context).ifPresent(argument -> arguments.put(name, argument));
+		statements.putIfAbsent(sql, arguments);
+	}
+
+	private static boolean isFullScanAllowed (String sql) {
+		for (String fullScan : FULL_SCANS)
+			if (sql.contains(fullScan)) return true;
+		return false;
+	}
+
+	private static Object get (Map<String, Object> row, String column) {
+		for (Map.Entry<String, Object> entry : row.entrySet())
+			if (entry.getKey().equalsIgnoreCase(column)) return entry.getValue();
+		return null;
+	}
+
+	private static String signupAndVerify (String name, String email, UserType type) {
+		paperbots.signup(name, email, type);
+		String code = emails.waitForMessage(email).split("\n")[5].trim();
+		return paperbots.verifyCode(code).token;
+	}
+}
@@ -0,0 +1,96 @@
+package io.paperbots;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.jdbi.v3.core.Jdbi;
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.testcontainers.containers.MySQLContainer;
+
+import io.paperbots.Config.FilesConfig;
+import io.paperbots.PaperbotsException.PaperbotsError;
+import io.paperbots.data.ProjectType;
+import io.paperbots.data.UserType;
+
+/** Uses two independent MySQL instances as primary and replica. As nothing is replicated, a read shows which instance served it. */
+public class ReadReplicasTest {
+	private static final long HEALTH_CHECK_INTERVAL = 500;
+
+	private static TestEmails emails = new TestEmails();
+	private static Jdbi primary;
+	private static Jdbi replica;
+
+	@ClassRule public static MySQLContainer primaryMysql = new MySQLContainer().withDatabaseName("paperbots");
+	@ClassRule public static MySQLContainer replicaMysql = new MySQLContainer().withDatabaseName("paperbots");
+
+	@BeforeClass
+	public static void setup () {
+		primary = Database.setupDatabase(new Config.DatabaseConfig(primaryMysql.getJdbcUrl(), primaryMysql.getUsername(), primaryMysql.getPassword()), true);
+		replica = Database.setupDatabase(new Config.DatabaseConfig(replicaMysql.getJdbcUrl(), replicaMysql.getUsername(), replicaMysql.getPassword()), true);
+	}
+
+	@Test
+	public void testReadsGoToReplicaUnlessRecentlyWritten () throws Exception {
+		ReadReplicas replicas = new ReadReplicas(Arrays.asList(replica), 0, HEALTH_CHECK_INTERVAL);
+		Paperbots paperbots = createPaperbots(replicas);
+
+		String token = signupAndVerify(paperbots, "replicated", "replicated@paperbots.io");
+		String code = paperbots.saveProject(token, null, null, "On primary", "", "{}", true, ProjectType.robot);
+
+		// Read your own writes
+		assertEquals("On primary", paperbots.getProject(null, code).getTitle());
+
+		// Once the write is old enough, reads go to the replica, which doesn't have the project
+		Thread.sleep(HEALTH_CHECK_INTERVAL * 2);
+		try {
+			paperbots.getProject(null, code);
+			fail("Project should have been read from the replica");
+		} catch (PaperbotsException e) {
+			assertEquals(PaperbotsError.ProjectDoesNotExist, e.getError());
+		}
+		replica.useHandle(handle -> handle
+			.execute("insert into projects (userId, userName, code, title, description, content, public, type) values (1, 'replicated', ?, 'On replica', '', '{}', 1, 'robot')", code));
+		assertEquals("On replica", paperbots.getProject(null, code).getTitle());
+		assertEquals(1, paperbots.getUserProjects(null, "replicated", false).length);
+
+		// Saving the project routes its reads back to the primary
+		paperbots.saveProject(token, code, "replicated", "Saved", "", "{}", true, ProjectType.robot);
+		assertEquals("Saved", paperbots.getProject(null, code).getTitle());
+		assertEquals("Saved", paperbots.getUserProjects(null, "replicated", false)[0].getTitle());
+		replicas.close();
+	}
+
+	@Test
+	public void testUnreachableReplica () throws Exception {
+		ReadReplicas replicas = new ReadReplicas(Arrays.asList(Jdbi.create("jdbc:mysql://127.0.0.1:1/paperbots", "paperbots", "paperbots")), 0, 60000);
+		// Replicas aren't read from before their first health check passed
+		assertEquals(0, replicas.getHealthyCount());
+		Paperbots paperbots = createPaperbots(replicas);
+
+		String token = signupAndVerify(paperbots, "unreachable", "unreachable@paperbots.io");
+		String code = paperbots.saveProject(token, null, null, "Fallback", "", "{}", true, ProjectType.robot);
+		assertEquals("unreachable", paperbots.getUserForName("unreachable").getName());
+
+		// Reads fall back to the primary, whether the replica failed its health check or the read itself
+		Thread.sleep(HEALTH_CHECK_INTERVAL);
+		assertEquals(0, replicas.getHealthyCount());
+		assertEquals("Fallback", paperbots.getProject(null, code).getTitle());
+		replicas.close();
+	}
+
+	private static Paperbots createPaperbots (ReadReplicas replicas) throws IOException {
+		return new Paperbots(primary, replicas, emails,
+			new Files(new FilesConfig(java.nio.file.Files.createTempDirectory("paperbots").toFile().getAbsolutePath())));
+	}
+
+	private static String signupAndVerify (Paperbots paperbots, String name, String email) {
+		paperbots.signup(name, email, UserType.user);
+		String code = emails.waitForMessage(email).split("\n")[5].trim();
+		return paperbots.verifyCode(code).token;
+	}
+}
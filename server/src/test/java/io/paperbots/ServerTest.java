@@ -2,12 +2,25 @@
 package io.paperbots;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
+import java.awt.image.BufferedImage;
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
 
 import org.apache.http.ParseException;
 import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpHead;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.entity.StringEntity;
 import org.apache.http.impl.client.CloseableHttpClient;
@@ -30,19 +43,33 @@ import io.paperbots.PaperbotsException.PaperbotsError;
 import io.paperbots.Server.ErrorResponse;
 import io.paperbots.Server.SignupRequest;
 import io.paperbots.Server.VerifyRequest;
+import io.paperbots.data.ProjectType;
+import io.paperbots.data.UserType;
 
 @FixMethodOrder(MethodSorters.NAME_ASCENDING)
 public class ServerTest {
 	private static Server server;
+	private static Paperbots paperbots;
 	private static TestEmails emails = new TestEmails();
 
 	@ClassRule public static MySQLContainer mysql = new MySQLContainer().withDatabaseName("paperbots");
 
 	@BeforeClass
 	public static void setup () throws IOException {
+		paperbots = createPaperbots(true);
+		server = new Server(paperbots, false, new File("../client"));
+	}
+
+	private static Paperbots createPaperbots (boolean cleanDatabase) throws IOException {
 		final Config.DatabaseConfig config = new Config.DatabaseConfig(mysql.getJdbcUrl(), mysql.getUsername(), mysql.getPassword());
-		server = new Server(new Paperbots(Database.setupDatabase(config, true), emails,
-			new Files(new FilesConfig(java.nio.file.Files.createTempDirectory("paperbots").toFile().getAbsolutePath()))), false, new File("../client"));
+		return new Paperbots(Database.setupDatabase(config, cleanDatabase), emails,
+			new Files(new FilesConfig(java.nio.file.Files.createTempDirectory("paperbots").toFile().getAbsolutePath())));
+	}
+
+	private static String signupAndVerify (String name, String email) {
+		paperbots.signup(name, email, UserType.user);
+		String code = emails.waitForMessage(email).split("\n")[5].trim();
+		return paperbots.verifyCode(code).token;
 	}
 
 	@AfterClass
@@ -56,7 +83,7 @@ public class ServerTest {
 		post("http://localhost:8001/api/signup", new SignupRequest("badlogic", "badlogicgames@gmail.com"), Void.class);
 
 		// Retrieve code sent via email
-		String code = emails.getMessage().split("\n")[5];
+		String code = emails.waitForMessage("badlogicgames@gmail.com").split("\n")[5];
 
 		// Try to sign up with the same user name or email, should fail
 		try {
@@ -76,6 +103,16 @@ public class ServerTest {
 		}
 	}
 
+	@Test
+	public void test_01_Ready () throws IOException {
+		assertTrue(server.isReady());
+		try (CloseableHttpClient client = HttpClients.createDefault()) {
+			CloseableHttpResponse response = client.execute(new HttpGet("http://localhost:8001/api/ready"));
+			assertEquals(200, response.getStatusLine().getStatusCode());
+			assertEquals("OK", EntityUtils.toString(response.getEntity()));
+		}
+	}
+
 	public static <REQ, RES> RES post (String url, REQ request, Class<RES> clazz) throws JsonParseException, JsonMappingException, ParseException, IOException {
 		CloseableHttpClient client = HttpClients.createDefault();
 		HttpPost httpPost = new HttpPost(url);
@@ -103,6 +140,122 @@ public class ServerTest {
 		}
 	}
 
+	@Test
+	public void test_02_InvalidQueryParameters () throws IOException {
+		for (String url : new String[] {"/api/searchprojects?query=robot&offset=abc", "/api/searchprojects?query=robot&limit=1e3",
+			"/api/projects?userName=badlogic&pageSize=ten"}) {
+			try (CloseableHttpClient client = HttpClients.createDefault()) {
+				CloseableHttpResponse response = client.execute(new HttpGet("http://localhost:8001" + url));
+				assertEquals(400, response.getStatusLine().getStatusCode());
+				ErrorResponse error = new ObjectMapper().readValue(EntityUtils.toString(response.getEntity()), ErrorResponse.class);
+				assertEquals(PaperbotsError.InvalidArgument, error.error);
+			}
+		}
+	}
+
+	@Test
+	public void test_03_EncodingSpecificETags () throws IOException {
+		String token = signupAndVerify("etags", "etags@paperbots.io");
+		String code = paperbots.saveProject(token, null, null, "ETags", "", "{}", true, ProjectType.robot);
+		for (String url : new String[] {"/api/project?projectId=" + code, "/api/projectcontent?projectId=" + code,
+			"/api/projects?userName=etags", "/api/getfeaturedprojects"}) {
+			try (CloseableHttpClient client = HttpClients.custom().disableContentCompression().build()) {
+				HttpGet identity = new HttpGet("http://localhost:8001" + url);
+				CloseableHttpResponse identityResponse = client.execute(identity);
+				assertEquals(200, identityResponse.getStatusLine().getStatusCode());
+				assertNull(identityResponse.getFirstHeader("Content-Encoding"));
+				String identityETag = identityResponse.getFirstHeader("ETag").getValue();
+				EntityUtils.consume(identityResponse.getEntity());
+
+				HttpGet gzip = new HttpGet("http://localhost:8001" + url);
+				gzip.setHeader("Accept-Encoding", "gzip");
+				CloseableHttpResponse gzipResponse = client.execute(gzip);
+				assertEquals(200, gzipResponse.getStatusLine().getStatusCode());
+				String gzipETag = gzipResponse.getFirstHeader("ETag").getValue();
+				EntityUtils.consume(gzipResponse.getEntity());
+				assertNotEquals(identityETag, gzipETag);
+
+				// The identity ETag must not validate the gzipped representation
+				gzip.setHeader("If-None-Match", identityETag);
+				CloseableHttpResponse revalidated = client.execute(gzip);
+				assertEquals(200, revalidated.getStatusLine().getStatusCode());
+				EntityUtils.consume(revalidated.getEntity());
+				gzip.setHeader("If-None-Match", gzipETag);
+				revalidated = client.execute(gzip);
+				assertEquals(304, revalidated.getStatusLine().getStatusCode());
+				EntityUtils.consume(revalidated.getEntity());
+			}
+		}
+	}
+
+	@Test
+	public void test_04_StaticAssetsHead () throws IOException {
+		try (CloseableHttpClient client = HttpClients.custom().disableContentCompression().build()) {
+			CloseableHttpResponse get = client.execute(new HttpGet("http://localhost:8001/index.html"));
+			assertEquals(200, get.getStatusLine().getStatusCode());
+			String etag = get.getFirstHeader("ETag").getValue();
+			String contentLength = get.getFirstHeader("Content-Length").getValue();
+			EntityUtils.consume(get.getEntity());
+
+			CloseableHttpResponse head = client.execute(new HttpHead("http://localhost:8001/index.html"));
+			assertEquals(200, head.getStatusLine().getStatusCode());
+			assertEquals(etag, head.getFirstHeader("ETag").getValue());
+			assertEquals(contentLength, head.getFirstHeader("Content-Length").getValue());
+			assertNull(head.getEntity());
+		}
+	}
+
+	@Test
+	public void test_98_ShutdownWritesPendingSaves () throws IOException {
+		String token = signupAndVerify("shutdown", "shutdown@paperbots.io");
+		String code = paperbots.saveProject(token, null, null, "Shutdown", "", "{}", true, ProjectType.robot);
+		paperbots.saveProject(token, code, "shutdown", "Written on shutdown", "", "{}", true, ProjectType.robot);
+		assertEquals(1, paperbots.getSaves().getPending());
+
+		server.shutdown();
+		assertFalse(server.isRunning());
+
+		// Read the project with a new instance, which doesn't share the closed instance's pending saves
+		paperbots = createPaperbots(false);
+		assertEquals("Written on shutdown", paperbots.getProject(null, code).getTitle());
+		server = new Server(paperbots, false, new File("../client"));
+	}
+
+	@Test
+	public void test_99_ShutdownDrainsRequests () throws Exception {
+		String token = signupAndVerify("drainer", "drainer@paperbots.io");
+		String code = paperbots.saveProject(token, null, null, "Drain", "", "{}", true, ProjectType.canvas);
+		byte[] body = ("data:image/png;base64," + Base64.getEncoder()
+			.encodeToString(ThumbnailPipeline.encode(new BufferedImage(1, 1, BufferedImage.TYPE_INT_RGB)))).getBytes(StandardCharsets.UTF_8);
+
+		// Upload the thumbnail slowly, so the request is in flight when the server shuts down
+		try (Socket socket = new Socket("localhost", 8001)) {
+			OutputStream out = socket.getOutputStream();
+			out.write(("POST /api/savethumbnail?projectId=" + code + " HTTP/1.1\r\nHost: localhost\r\nCookie: token=" + token
+				+ "\r\nContent-Type: text/plain\r\nContent-Length: " + body.length + "\r\nConnection: close\r\n\r\n").getBytes(StandardCharsets.UTF_8));
+			out.write(body, 0, body.length / 2);
+			out.flush();
+			long timeout = System.currentTimeMillis() + 10000;
+			while (Metrics.snapshot().get("server.activeRequests").intValue() == 0 && System.currentTimeMillis() < timeout)
+				Thread.sleep(10);
+
+			Thread shutdown = new Thread(server::shutdown);
+			shutdown.start();
+			while (server.isReady() && System.currentTimeMillis() < timeout)
+				Thread.sleep(10);
+			Thread.sleep(500);
+			assertTrue(shutdown.isAlive());
+
+			out.write(body, body.length / 2, body.length - body.length / 2);
+			out.flush();
+			String status = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8)).readLine();
+			assertEquals("HTTP/1.1 200 OK", status);
+			shutdown.join(10000);
+			assertFalse(shutdown.isAlive());
+		}
+		assertTrue(paperbots.getFiles().getThumbnailFile(code).exists());
+	}
+
 	public static class ErrorResponseException extends RuntimeException {
 		public final ErrorResponse response;
 
@@ -0,0 +1,97 @@
+package io.paperbots;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.Test;
+
+public class StaticAssetsTest {
+	@Test
+	public void testFingerprintsAndCompression () throws IOException {
+		File root = java.nio.file.Files.createTempDirectory("paperbots").toFile();
+		String script = new String(new char[1000]).replace("\0", "console.log('paperbots');\n");
+		write(root, "js/app.js", script);
+		write(root, "css/style.css", "body { background: url(../img/floor.png); }");
+		write(root, "admin/index.html", "<script src=\"../js/app.js\"></script><link href=\"/css/style.css\"><a href=\"/index.html\"></a>"
+			+ "<link href=\"https://fonts.googleapis.com/css\"><img src=\"missing.png\">");
+		write(root, "index.html", "<a href=\"admin/\"></a>");
+		write(root, ".git/config", "secret");
+		StaticAssets assets = new StaticAssets(root);
+
+		// Fingerprinted paths stay in the directory of the file, so relative references keep working
+		String app = assets.getFingerprintedPath("/js/app.js");
+		String style = assets.getFingerprintedPath("/css/style.css");
+		assertTrue(app.matches("/js/app\\.[0-9a-f]{12}\\.js"));
+		assertTrue(style.matches("/css/style\\.[0-9a-f]{12}\\.css"));
+		assertEquals(script, new String(assets.getContent(app, null), StandardCharsets.UTF_8));
+
+		// Only references to files that aren't pages are rewritten
+		assertEquals("<script src=\"" + app + "\"></script><link href=\"" + style + "\"><a href=\"/index.html\"></a>"
+			+ "<link href=\"https://fonts.googleapis.com/css\"><img src=\"missing.png\">",
+			new String(assets.getContent("/admin/index.html", null), StandardCharsets.UTF_8));
+
+		// Compressed variants are only kept if they are smaller
+		try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(assets.getContent("/js/app.js", "gzip")))) {
+			assertEquals(script, new String(in.readAllBytes(), StandardCharsets.UTF_8));
+		}
+		assertNull(assets.getContent("/js/app.js", "br"));
+		assertNull(assets.getContent("/index.html", "gzip"));
+		assertNull(assets.getContent("/.git/config", null));
+
+		// Changed files get new fingerprints on reload, the fingerprinted paths of the previous version remain available
+		write(root, "js/app.js", "console.log('changed');");
+		assets.reload();
+		String changedApp = assets.getFingerprintedPath("/js/app.js");
+		assertNotEquals(app, changedApp);
+		assertEquals(script, new String(assets.getContent(app, null), StandardCharsets.UTF_8));
+		assertEquals("console.log('changed');", new String(assets.getContent("/js/app.js", null), StandardCharsets.UTF_8));
+		write(root, "js/app.js", "console.log('changed again');");
+		assets.reload();
+		assertNull(assets.getContent(app, null));
+		assertEquals("console.log('changed');", new String(assets.getContent(changedApp, null), StandardCharsets.UTF_8));
+	}
+
+	@Test
+	public void testReleases () throws Exception {
+		File upstream = java.nio.file.Files.createTempDirectory("paperbots").toFile();
+		git(upstream, "init", "-q");
+		write(upstream, "site/index.html", "v1");
+		git(upstream, "add", ".");
+		git(upstream, "-c", "user.name=test", "-c", "user.email=test@paperbots.io", "commit", "-q", "-m", "v1");
+
+		File checkout = java.nio.file.Files.createTempDirectory("paperbots").toFile();
+		git(checkout, "clone", "-q", upstream.getAbsolutePath(), ".");
+		File staticDir = new File(checkout, "site");
+		StaticAssets assets = new StaticAssets(staticDir);
+		StaticReleases releases = new StaticReleases(staticDir, java.nio.file.Files.createTempDirectory("paperbots").toFile(), assets);
+
+		write(upstream, "site/index.html", "v2");
+		git(upstream, "-c", "user.name=test", "-c", "user.email=test@paperbots.io", "commit", "-q", "-a", "-m", "v2");
+		releases.deploy();
+		assertEquals("v2", new String(assets.getContent("/index.html", null), StandardCharsets.UTF_8));
+		// The served checkout isn't modified
+		assertEquals("v1", new String(java.nio.file.Files.readAllBytes(new File(staticDir, "index.html").toPath()), StandardCharsets.UTF_8));
+		releases.close();
+	}
+
+	private static void git (File dir, String... arguments) throws Exception {
+		String[] command = new String[arguments.length + 1];
+		command[0] = "git";
+		System.arraycopy(arguments, 0, command, 1, arguments.length);
+		assertEquals(0, new ProcessBuilder(command).directory(dir).inheritIO().start().waitFor());
+	}
+
+	private static void write (File root, String path, String content) throws IOException {
+		File file = new File(root, path);
+		file.getParentFile().mkdirs();
+		java.nio.file.Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+	}
+}
@@ -1,27 +1,76 @@
-
 package io.paperbots;
 
+import java.util.ArrayList;
+import java.util.List;
+
 public class TestEmails implements Emails {
+	private final List<SentEmail> sent = new ArrayList<>();
+	private int batches;
 	private String to;
 	private String subject;
 	private String message;
 
 	@Override
-	public void send (String to, String subject, String message) {
+	public synchronized void send (String to, String subject, String message) {
 		this.to = to;
 		this.subject = subject;
 		this.message = message;
+		sent.add(new SentEmail(to, subject, message));
+		notifyAll();
+	}
+
+	@Override
+	public synchronized List<Email> send (List<Email> emails) {
+		batches++;
+		for (Email email : emails)
+			send(email.getTo(), email.getSubject(), email.getMessage());
+		return new ArrayList<>();
+	}
+
+	/** @return the number of batches sent via {@link #send(List)}. */
+	public synchronized int getBatches () {
+		return batches;
+	}
+
+	/** Emails are sent asynchronously via the {@link EmailOutbox}. Waits up to 10 seconds for an email to the recipient to
+	 * arrive, and returns its message. */
+	public synchronized String waitForMessage (String to) {
+		long timeout = System.currentTimeMillis() + 10000;
+		while (true) {
+			for (int i = 0; i < sent.size(); i++) {
+				if (sent.get(i).to.equals(to)) return sent.remove(i).message;
+			}
+			long remaining = timeout - System.currentTimeMillis();
+			if (remaining <= 0) throw new AssertionError("No email sent to " + to);
+			try {
+				wait(remaining);
+			} catch (InterruptedException e) {
+				throw new AssertionError("Interrupted while waiting for email to " + to);
+			}
+		}
 	}
 
-	public String getTo () {
+	public synchronized String getTo () {
 		return to;
 	}
 
-	public String getSubject () {
+	public synchronized String getSubject () {
 		return subject;
 	}
 
-	public String getMessage () {
+	public synchronized String getMessage () {
 		return message;
 	}
+
+	private static class SentEmail {
+		final String to;
+		final String subject;
+		final String message;
+
+		SentEmail (String to, String subject, String message) {
+			this.to = to;
+			this.subject = subject;
+			this.message = message;
+		}
+	}
 }